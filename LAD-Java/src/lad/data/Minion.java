@@ -1,12 +1,22 @@
 package lad.data;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import lad.db.IdAllocator;
 import lad.db.MySQLDB;
+import lad.db.PendingWrite;
+import lad.db.PooledConnection;
+import lad.db.Snapshot;
+import lad.db.SnapshotProfile;
 import lad.db.TableProfile;
+import lad.db.WorkingSet;
+import lad.db.TrainerManager;
 
 /**
  * Data handler for minions
@@ -14,17 +24,17 @@ import lad.db.TableProfile;
  * @author msflowers
  * @author Kevin
  */
-public class Minion implements TableProfile
+public class Minion implements SnapshotProfile
 {
     /**
      * Current experience of the minion
      */
-    private int exp = 0;
+    private volatile int exp = 0;
 
     /**
      * Current level of the minion
      */
-    private int level = 0;
+    private volatile int level = 0;
 
     /**
      * ID of the minion
@@ -34,37 +44,23 @@ public class Minion implements TableProfile
     /**
      * Owner of the minion
      */
-    private int owner = 0;
+    private volatile int owner = 0;
 
     /**
-     * Statement for inserting a new minion
+     * SQL for deleting a minion
      */
-    private static PreparedStatement insertStmt = null;
+    private static final String deleteSQL = "DELETE FROM MINIONS WHERE ID = ?";
 
     /**
-     * Statement for deleting a minion
+     * SQL for updating the owner, exp and level
      */
-    private static PreparedStatement deleteStmt = null;
+    private static final String updateSQL = "UPDATE MINIONS SET OWNER = ?, " +
+            "EXP = ?, LEVEL = ? WHERE ID = ?";
 
     /**
-     * Statement for updating Level
+     * Allocator of the minion IDs
      */
-    private static PreparedStatement updateLevelStmt = null;
-
-    /**
-     * Statement for updating Exp
-     */
-    private static PreparedStatement updateExpStmt = null;
-
-    /**
-     * Statement for updating Owner
-     */
-    private static PreparedStatement updateOwnerStmt = null;
-
-    /**
-     * Statement for adjusting Exp
-     */
-    private static PreparedStatement adjustExpStmt = null;
+    private static final IdAllocator ids = IdAllocator.forTable( "MINIONS" );
 
     /**
      * Ctor (Adding to DB)
@@ -106,72 +102,36 @@ public class Minion implements TableProfile
      * Sets the level
      *
      * @param value Value to set the level to
-     * @throws GameException Thrown if the update fails
      */
     public void setLevel( int value )
     {
         level = value;
 
-        try
-        {
-            updateLevelStmt.setInt( 1, value );
-            updateLevelStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateLevelStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion level." +
-                                        e.getMessage() );
-        }
+        queueUpdate();
     }
 
     /**
      * Sets the experience
      *
      * @param value Value to set the experience to
-     * @throws GameException Thrown if the update fails
      */
     public void setExp( int value )
     {
         exp = value;
 
-        try
-        {
-            updateExpStmt.setInt( 1, value );
-            updateExpStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateExpStmt );
-        }
-        catch( SQLException x )
-        {
-            throw new GameException( 3, "Error while setting minion exp." +
-                                        x.getMessage() );
-        }
+        queueUpdate();
     }
 
     /**
      * Sets the owner
      *
      * @param value Value to set the owner to
-     * @throws GameException Thrown if the update fails
      */
     public void setOwner( int value )
     {
         owner = value;
 
-        try
-        {
-            updateOwnerStmt.setInt( 1, value );
-            updateOwnerStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateOwnerStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion owner." +
-                                        e.getMessage() );
-        }
+        queueUpdate();
     }
     
     /**
@@ -225,12 +185,21 @@ public class Minion implements TableProfile
         return owner;
     }
 
+    /**
+     * Gets the key of the minion's row
+     *
+     * @return ID
+     */
+    public long getRowKey()
+    {
+        return ID;
+    }
+
     /**
      *  Adds the given amount of experience.
      *  Levels the minion if the appropriate amount of experience has been met.
      *
      * @param xp Experience to add
-     * @throws GameException Thrown if the update fails
      */
     public void adjustExp( int xp )
     {
@@ -246,87 +215,47 @@ public class Minion implements TableProfile
             exp = 0;
         }
 
-        try
-        {
-            adjustExpStmt.setInt( 1, level );
-            adjustExpStmt.setInt( 2, exp );
-            adjustExpStmt.setInt( 3, ID );
+        queueUpdate();
+    }
 
-            MySQLDB.delaySQL( adjustExpStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion level." +
-                                        e.getMessage() );
-        }
+    /**
+     * Queues the update of this minion's row with its current values
+     */
+    private void queueUpdate()
+    {
+        MySQLDB.delaySQL( PendingWrite.update( "MINIONS", ID, updateSQL, owner,
+                                               exp, level, ID ) );
     }
 
     /**
-     * Creates a new minion and adds it to the DB in the process
+     * Creates a new minion and adds it to the DB in the process.
+     *
+     * The ID is taken from a block reserved ahead of time and the insert is
+     * queued with the delayed writes, so this does not wait on the database.
      *
      * @param owner The owner of the minion
      * @return The created minion
-     * @throws GameException Thrown if the creation fails
+     * @throws GameException Thrown if no ID could be reserved
      */
     public static Minion create( int owner )
     {
         Minion ret = new Minion();
-        ResultSet generatedKeys;
-        try
-        {
-            // Set statement values
-            insertStmt.setInt( 1, owner );
-
-            // Validate it works/run it
-            int affectedRows = insertStmt.executeUpdate();
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "Creating minion failed, " +
-                                        "no rows affected." );
-            }
-
-            // Get the ID
-            generatedKeys = insertStmt.getGeneratedKeys();
-            if( generatedKeys.next() )
-            {
-                ret.ID = generatedKeys.getInt( 1 );
-            }
-            else
-            {
-                throw new SQLException( "Creating minion failed, " +
-                                        "no key returned." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, e.getMessage() );
-        }
+        ret.ID = ids.next();
+        ret.owner = owner;
+        MySQLDB.delaySQL( PendingWrite.upsert( ret, ret.ID, ret.ID, owner,
+                                               0, 0 ) );
         return ret;
     }
 
     /**
-     * Destroys the minion in the database
+     * Destroys the minion in the database.
      *
-     * @throws GameException Thrown if the destruction fails
+     * The delete is queued with the delayed writes.
      */
     void destroy()
     {
-        try
-        {
-            deleteStmt.setInt( 1, ID );
-
-            // Run the delete
-            int affectedRows = deleteStmt.executeUpdate();
-
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "No rows were deleted." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, e.getMessage());
-        }
+        MySQLDB.delaySQL( PendingWrite.execute( "MINIONS", ID, deleteSQL,
+                                                ID ) );
 
         owner = ID = exp = level = 0;
     }
@@ -366,32 +295,194 @@ public class Minion implements TableProfile
             "`owner` int(10) unsigned NOT NULL," +
             "`exp` int(10) unsigned NOT NULL," +
             "`level` int(10) unsigned NOT NULL," +
-            "PRIMARY KEY (`ID`)" +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`ID`)," +
+            Snapshot.UPDATED_INDEX +
             ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
     }
 
     /**
      * Gets the headers of the SQL table
      *
-     * @return [ID,owner,exp,level]
+     * @return [ID,owner,exp,level,updated]
      */
     @Override
     public String[] tableHeaders()
     {
-        return new String[] { "ID", "owner", "exp", "level" };
+        return new String[] { "ID", "owner", "exp", "level",
+                              Snapshot.UPDATED_COLUMN };
+    }
+
+    /**
+     * Gets the columns of the primary key
+     *
+     * @return [ID]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[] { "ID" };
+    }
+
+    /**
+     * Gets the key of a row
+     *
+     * @param rs Row starting with the ID
+     * @return ID
+     * @throws SQLException Thrown if a column lookup fails
+     */
+    @Override
+    public long rowKey( ResultSet rs ) throws SQLException
+    {
+        return rs.getInt( 1 );
     }
 
     /**
-     * Empty because loadData is false.
+     * Loads a minion and attaches it to its trainer.
      *
-     * Data is loaded from trainer class.
+     * All of the minions are loaded in a single pass over the table, the
+     * trainer manager matches each one with its trainer by ID.
      *
-     * @param rs Unused parameter
+     * @param rs Row of the minion
+     * @throws SQLException Thrown if a column lookup fails
      */
     @Override
-    public void loadRow( ResultSet rs )
+    public void loadRow( ResultSet rs ) throws SQLException
     {
-        // Not run because loadData is false
+        TrainerManager.getInstance().attachMinion( fromRow( rs ) );
+    }
+
+    /**
+     * Creates a minion from a row of the table
+     *
+     * @param rs Row of the minion
+     * @return The minion
+     * @throws SQLException Thrown if a column lookup fails
+     */
+    private static Minion fromRow( ResultSet rs ) throws SQLException
+    {
+        int n_ID = rs.getInt( 1 );
+        int n_owner = rs.getInt( 2 );
+        int n_exp = rs.getInt( 3 );
+        int n_level = rs.getInt( 4 );
+
+        return new Minion( n_ID, n_exp, n_level, n_owner );
+    }
+
+    /**
+     * Writes the minions of every trainer
+     *
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
+     */
+    @Override
+    public void writeRows( DataOutput out ) throws IOException
+    {
+        int count = 0;
+        for( Trainer trainer : TrainerManager.getInstance().getTrainers() )
+        {
+            count += trainer.getMinions().size();
+        }
+        out.writeInt( count );
+        for( Trainer trainer : TrainerManager.getInstance().getTrainers() )
+        {
+            for( Minion minion : trainer.getMinions() )
+            {
+                out.writeInt( minion.ID );
+                out.writeInt( minion.owner );
+                out.writeInt( minion.exp );
+                out.writeInt( minion.level );
+            }
+        }
+    }
+
+    /**
+     * Reads the minions written by writeRows and attaches them to their
+     * trainers
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    @Override
+    public void readRows( DataInput in ) throws IOException
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        for( int count = in.readInt(); count > 0; count-- )
+        {
+            int n_ID = in.readInt();
+            int n_owner = in.readInt();
+            int n_exp = in.readInt();
+            int n_level = in.readInt();
+            manager.attachMinion( new Minion( n_ID, n_exp, n_level,
+                                              n_owner ) );
+        }
+    }
+
+    /**
+     * Updates the minions that changed in the database, adding any that are
+     * new.
+     *
+     * A minion whose owner changed is moved to its new trainer.
+     *
+     * @param rs Changed rows
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown if a column lookup fails
+     */
+    @Override
+    public int catchUp( ResultSet rs ) throws SQLException
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        Map< Integer, Minion > loaded = new HashMap<>();
+        Map< Integer, Trainer > trainers = new HashMap<>();
+        for( Trainer trainer : manager.getTrainers() )
+        {
+            for( Minion minion : trainer.getMinions() )
+            {
+                loaded.put( minion.ID, minion );
+                trainers.put( minion.ID, trainer );
+            }
+        }
+
+        int count = 0;
+        while( rs.next() )
+        {
+            Minion changed = fromRow( rs );
+            Minion minion = loaded.get( changed.ID );
+            if( minion == null )
+            {
+                manager.attachMinion( changed );
+            }
+            else
+            {
+                minion.exp = changed.exp;
+                minion.level = changed.level;
+                if( minion.owner != changed.owner )
+                {
+                    trainers.get( minion.ID ).removeMinion( minion );
+                    minion.owner = changed.owner;
+                    manager.attachMinion( minion );
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the minions that are no longer in the database
+     *
+     * @param keys IDs of every minion in the database
+     * @return Number of minions removed
+     */
+    @Override
+    public int retainRows( Set< Long > keys )
+    {
+        int removed = 0;
+        for( Trainer trainer : TrainerManager.getInstance().getTrainers() )
+        {
+            removed += trainer.retainMinions( keys );
+        }
+        return removed;
     }
 
     /**
@@ -402,31 +493,27 @@ public class Minion implements TableProfile
     @Override
     public void postinit() throws SQLException
     {
-        Connection conn = MySQLDB.getConn();
-
-        final String pre = "UPDATE MINIONS SET ";
-        final String post = " WHERE ID = ?";
-
-        updateLevelStmt = conn.prepareStatement( pre + "LEVEL = ?" + post );
-        updateExpStmt = conn.prepareStatement( pre + "EXP = ?" + post );
-        updateOwnerStmt = conn.prepareStatement( pre + "OWNER = ?" + post );
-        adjustExpStmt = conn.prepareStatement( pre + "LEVEL = ?, EXP = ?" +
-                                               post );
-        deleteStmt = conn.prepareStatement( "DELETE FROM MINIONS" + post );
-        insertStmt = conn.prepareStatement(
-            "INSERT INTO MINIONS VALUES( NULL, ?, 0, 0 )",
-            Statement.RETURN_GENERATED_KEYS );
+        // Prepare the statements once so errors show up at startup
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.prepare( deleteSQL );
+        }
+        finally
+        {
+            pc.release();
+        }
     }
 
     /**
-     * Tells the TableManager not to load data from this table because it is
-     * handled elsewhere.
+     * Tells the table manager to load this data from the database, unless
+     * the rows are loaded for each user by the working set.
      *
-     * @return false
+     * @return True if the working set is off
      */
     @Override
     public boolean loadData()
     {
-        return false;
+        return !WorkingSet.isEnabled();
     }
 }
@@ -1,36 +1,46 @@
 package lad.data;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import lad.db.EXPManager;
 import lad.db.ModifierManager;
+import lad.db.IdAllocator;
 import lad.db.MySQLDB;
+import lad.db.PendingWrite;
+import lad.db.PooledConnection;
+import lad.db.Snapshot;
+import lad.db.SnapshotProfile;
 import lad.db.TableProfile;
+import lad.db.WorkingSet;
 
 /**
  * Data handler for modifiers
  *
  * @author msflowers
  */
-public class Modifier implements TableProfile
+public class Modifier implements SnapshotProfile
 {
     /**
      * Target for this modifier
      */
-    private ModifierTarget target;
+    private volatile ModifierTarget target;
 
     /**
      * Rarity of this modifier (1-9)
      */
-    private int rarity;
+    private volatile int rarity;
 
     /**
      * The number of battles this modifier will survive for
      */
-    private int battles;
+    private volatile int battles;
 
     /**
      * The initial multiplier for battles this modifier was good for
@@ -40,7 +50,7 @@ public class Modifier implements TableProfile
     /**
      * Owner of the modifier
      */
-    private int owner;
+    private volatile int owner;
 
     /**
      * ID of the modifier
@@ -50,22 +60,24 @@ public class Modifier implements TableProfile
     /**
      * Trainer that has this modifier equipped (no DB)
      */
-    private Trainer equipped = null;
+    private volatile Trainer equipped = null;
 
     /**
-     * Prepared statement used to insert a new modifier
+     * SQL used to delete a used modifier
      */
-    private static PreparedStatement insertStmt = null;
+    private static final String deleteSQL =
+            "DELETE FROM MODIFIERS WHERE ID = ?";
 
     /**
-     * Prepared statement used to delete a used modifier
+     * SQL used to update a modifier's battles
      */
-    private static PreparedStatement deleteStmt = null;
+    private static final String commitSQL = "UPDATE MODIFIERS SET " +
+            "BATTLES = ?, TARGET = ?, RARITY = ?, OWNER = ? WHERE ID = ?";
 
     /**
-     * Prepared statement used to update a modifier's battles
+     * Allocator of the modifier IDs
      */
-    private static PreparedStatement commitStmt = null;
+    private static final IdAllocator ids = IdAllocator.forTable( "MODIFIERS" );
 
     /**
      * Ctor (dummy)
@@ -111,11 +123,13 @@ public class Modifier implements TableProfile
      * Sets the target of this modifier
      *
      * @param target Target to set
-     * @throws GameException Thrown if the update fails
      */
     public void setTarget( ModifierTarget target )
     {
+        ModifierTarget oldTarget = this.target;
         this.target = target;
+        ModifierManager.getInstance().modifierChanged( this, owner,
+                                                       oldTarget );
         commit();
     }
 
@@ -133,7 +147,6 @@ public class Modifier implements TableProfile
      * Sets the rarity of this modifier
      *
      * @param rarity Rarity to set
-     * @throws GameException Thrown if the update fails
      */
     public void setRarity( int rarity )
     {
@@ -155,11 +168,13 @@ public class Modifier implements TableProfile
      * Sets the owner of this modifier
      *
      * @param owner Owner to set
-     * @throws GameException Thrown if the update fails
      */
     public void setOwner( int owner )
     {
+        int oldOwner = this.owner;
         this.owner = owner;
+        ModifierManager.getInstance().modifierChanged( this, oldOwner,
+                                                       target );
         commit();
     }
 
@@ -184,6 +199,7 @@ public class Modifier implements TableProfile
     public void setEquipped( Trainer equipped )
     {
         this.equipped = equipped;
+        ModifierManager.getInstance().modifierChanged( this, owner, target );
     }
 
     /**
@@ -202,7 +218,6 @@ public class Modifier implements TableProfile
      * If the parameter is below 0 it is automatically set to 0.
      *
      * @param battles Remaining battles to set
-     * @throws GameException Thrown if the update fails
      */
     public void setBattles( int battles )
     {
@@ -212,6 +227,7 @@ public class Modifier implements TableProfile
             return;
         }
         this.battles = acceptedBattles;
+        ModifierManager.getInstance().modifierChanged( this, owner, target );
         commit();
     }
 
@@ -231,6 +247,16 @@ public class Modifier implements TableProfile
         return ID;
     }
 
+    /**
+     * Gets the key of the modifier's row
+     *
+     * @return ID
+     */
+    public long getRowKey()
+    {
+        return ID;
+    }
+
     /**
      * Reduces battles by one.
      *
@@ -242,6 +268,7 @@ public class Modifier implements TableProfile
     public void reduceBattles()
     {
         this.battles--;
+        ModifierManager.getInstance().modifierChanged( this, owner, target );
     }
 
     /**
@@ -251,25 +278,12 @@ public class Modifier implements TableProfile
      * to commit the changes to the DB.
      *
      * @see lad.data.Modifier#reduceBattles()
-     * @throws GameException Thrown if the update fails
      */
     public void commit()
     {
-        try
-        {
-            commitStmt.setInt( 1, battles );
-            commitStmt.setInt( 2, target.getValue() );
-            commitStmt.setInt( 3, rarity );
-            commitStmt.setInt( 4, owner );
-            commitStmt.setInt( 5, ID );
-
-            MySQLDB.delaySQL( commitStmt );
-        }
-        catch( SQLException x )
-        {
-            throw new GameException( 3, "Error while updating modifier." +
-                                     x.getMessage() );
-        }
+        MySQLDB.delaySQL( PendingWrite.update( "MODIFIERS", ID, commitSQL,
+                                               battles, target.getValue(),
+                                               rarity, owner, ID ) );
     }
 
     /**
@@ -280,7 +294,7 @@ public class Modifier implements TableProfile
      * @param owner Owner of the modifier
      * @param battleMult Multiplier for the number of battles
      * @return The created modifier
-     * @throws GameException Thrown if the update fails
+     * @throws GameException Thrown if no ID could be reserved
      */
     public static Modifier create( int targ, int rare, int owner,
                                    int battleMult )
@@ -292,69 +306,22 @@ public class Modifier implements TableProfile
         Modifier adder = new Modifier( 0, targ, rare, owner,
                                        battles, battleMult );
 
-        ResultSet generatedKeys;
-        try
-        {
-            // Set statement values
-            insertStmt.setInt( 1, owner );
-            insertStmt.setInt( 2, targ );
-            insertStmt.setInt( 3, rare );
-            insertStmt.setInt( 4, battles );
-            insertStmt.setInt( 5, battleMult );
-
-            // Validate it works/run it
-            int affectedRows = insertStmt.executeUpdate();
-            if( affectedRows == 0 )
-            {
-                throw new SQLException(
-                        "Creating modifier failed, no rows affected." );
-            }
-
-            // Get the ID
-            generatedKeys = insertStmt.getGeneratedKeys();
-            if( generatedKeys.next() )
-            {
-                adder.ID = generatedKeys.getInt( 1 );
-            }
-            else
-            {
-                throw new SQLException(
-                        "Creating trainer failed, no key returned." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while creating modifier: " +
-                                     e.getMessage() );
-        }
+        adder.ID = ids.next();
+        MySQLDB.delaySQL( PendingWrite.upsert( adder, adder.ID, adder.ID,
+                                               owner, targ, rare, battles,
+                                               battleMult ) );
         return adder;
     }
 
     /**
-     * Destroys the trainer in the database
+     * Destroys the modifier in the database.
      *
-     * @throws GameException Thrown if the update fails
+     * The delete is queued with the delayed writes.
      */
     public void destroy()
     {
-        // Ensure the delete statement is prepared
-        try
-        {
-            deleteStmt.setInt( 1, ID );
-
-            // Run the delete
-            int affectedRows = deleteStmt.executeUpdate();
-
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "No rows were deleted." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while deleting modifier: " +
-                                     e.getMessage() );
-        }
+        MySQLDB.delaySQL( PendingWrite.execute( "MODIFIERS", ID, deleteSQL,
+                                                ID ) );
 
         owner = ID = initialMultiplier = battles = rarity = 0;
     }
@@ -612,7 +579,7 @@ public class Modifier implements TableProfile
     public void battled( boolean won, Weapon weapon )
     {
         // Clear the trainer
-        equipped = null;
+        setEquipped( null );
         
         // Abort if the modifier has no more uses
         if( getBattles() == 0 )
@@ -676,20 +643,47 @@ public class Modifier implements TableProfile
             "`rarity` int(10) unsigned NOT NULL," +
             "`battles` int(10) unsigned NOT NULL," +
             "`multiplier` int(10) unsigned NOT NULL," +
-            "PRIMARY KEY (`ID`)" +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`ID`)," +
+            Snapshot.UPDATED_INDEX +
             ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
     }
 
     /**
      * Returns an array containing the SQL table headers
      *
-     * @return [ID,owner,target,rarity,battles,multiplier]
+     * @return [ID,owner,target,rarity,battles,multiplier,updated]
      */
     @Override
     public String[] tableHeaders()
     {
         return new String[]{ "ID", "owner", "target", "rarity",
-                            "battles", "multiplier" };
+                            "battles", "multiplier",
+                            Snapshot.UPDATED_COLUMN };
+    }
+
+    /**
+     * Returns the columns of the primary key
+     *
+     * @return [ID]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[]{ "ID" };
+    }
+
+    /**
+     * Gets the key of a row
+     *
+     * @param rs Row starting with the ID
+     * @return ID
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public long rowKey( ResultSet rs ) throws SQLException
+    {
+        return rs.getInt( 1 );
     }
 
     /**
@@ -700,6 +694,18 @@ public class Modifier implements TableProfile
      */
     @Override
     public void loadRow( ResultSet rs ) throws SQLException
+    {
+        ModifierManager.getInstance().addModifier( fromRow( rs ) );
+    }
+
+    /**
+     * Creates a modifier from a row of the table
+     *
+     * @param rs Result row from SQL database
+     * @return The modifier
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    private static Modifier fromRow( ResultSet rs ) throws SQLException
     {
         int n_ID = rs.getInt( 1 );
         int n_owner = rs.getInt( 2 );
@@ -708,9 +714,104 @@ public class Modifier implements TableProfile
         int n_battles = rs.getInt( 5 );
         int n_mult = rs.getInt( 6 );
 
-        Modifier modifier = new Modifier( n_ID, n_target, n_rarity, n_owner,
-                                          n_battles, n_mult );
-        ModifierManager.getInstance().addModifier( modifier );
+        return new Modifier( n_ID, n_target, n_rarity, n_owner, n_battles,
+                             n_mult );
+    }
+
+    /**
+     * Writes every modifier of the manager
+     *
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
+     */
+    @Override
+    public void writeRows( DataOutput out ) throws IOException
+    {
+        List< Modifier > modifiers =
+                ModifierManager.getInstance().getModifiers();
+        out.writeInt( modifiers.size() );
+        for( Modifier modifier : modifiers )
+        {
+            out.writeInt( modifier.ID );
+            out.writeInt( modifier.target.getValue() );
+            out.writeInt( modifier.rarity );
+            out.writeInt( modifier.owner );
+            out.writeInt( modifier.battles );
+            out.writeInt( modifier.initialMultiplier );
+        }
+    }
+
+    /**
+     * Reads the modifiers written by writeRows and adds them to the manager
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    @Override
+    public void readRows( DataInput in ) throws IOException
+    {
+        ModifierManager manager = ModifierManager.getInstance();
+        for( int count = in.readInt(); count > 0; count-- )
+        {
+            manager.addModifier( new Modifier( in.readInt(), in.readInt(),
+                                               in.readInt(), in.readInt(),
+                                               in.readInt(), in.readInt() ) );
+        }
+    }
+
+    /**
+     * Updates the modifiers that changed in the database, adding any that
+     * are new
+     *
+     * @param rs Changed rows
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public int catchUp( ResultSet rs ) throws SQLException
+    {
+        ModifierManager manager = ModifierManager.getInstance();
+        Map< Integer, Modifier > loaded = new HashMap<>();
+        for( Modifier modifier : manager.getModifiers() )
+        {
+            loaded.put( modifier.ID, modifier );
+        }
+
+        int count = 0;
+        while( rs.next() )
+        {
+            Modifier changed = fromRow( rs );
+            Modifier modifier = loaded.get( changed.ID );
+            if( modifier == null )
+            {
+                manager.addModifier( changed );
+            }
+            else
+            {
+                int oldOwner = modifier.owner;
+                ModifierTarget oldTarget = modifier.target;
+                modifier.target = changed.target;
+                modifier.rarity = changed.rarity;
+                modifier.owner = changed.owner;
+                modifier.battles = changed.battles;
+                modifier.initialMultiplier = changed.initialMultiplier;
+                manager.modifierChanged( modifier, oldOwner, oldTarget );
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the modifiers that are no longer in the database
+     *
+     * @param keys IDs of every modifier in the database
+     * @return Number of modifiers removed
+     */
+    @Override
+    public int retainRows( Set< Long > keys )
+    {
+        return ModifierManager.getInstance().retainModifiers( keys );
     }
 
     /**
@@ -721,26 +822,27 @@ public class Modifier implements TableProfile
     @Override
     public void postinit() throws SQLException
     {
-        Connection conn = MySQLDB.getConn();
-
-        deleteStmt = conn.prepareStatement( "DELETE FROM MODIFIERS WHERE ID " +
-                                            "= ?" );
-        insertStmt = conn.prepareStatement(
-                        "INSERT INTO MODIFIERS VALUES( NULL, ?, ?, ?, ?, ? )",
-                        Statement.RETURN_GENERATED_KEYS );
-        commitStmt = conn.prepareStatement( "UPDATE MODIFIERS SET BATTLES = " +
-                                            "?, TARGET = ?, RARITY = ?, " +
-                                            "OWNER = ? WHERE ID = ?" );
+        // Prepare the statements once so errors show up at startup
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.prepare( deleteSQL );
+        }
+        finally
+        {
+            pc.release();
+        }
     }
 
     /**
-     * Tells the table manager to load this data from the database.
+     * Tells the table manager to load this data from the database, unless
+     * the rows are loaded for each user by the working set.
      *
-     * @return true
+     * @return True if the working set is off
      */
     @Override
     public boolean loadData()
     {
-        return true;
+        return !WorkingSet.isEnabled();
     }
 }
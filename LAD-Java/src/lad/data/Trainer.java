@@ -1,32 +1,41 @@
 package lad.data;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lad.db.IdAllocator;
 import lad.db.MySQLDB;
+import lad.db.PendingWrite;
+import lad.db.PooledConnection;
+import lad.db.Snapshot;
+import lad.db.SnapshotProfile;
 import lad.db.TableProfile;
+import lad.db.WorkingSet;
 import lad.db.TrainerManager;
 
 /**
  * Data handler for trainers
  */
-public class Trainer implements TableProfile
+public class Trainer implements SnapshotProfile
 {
     /**
      * Current amount of experience the trainer has
      */
-    private int exp = 0;
+    private volatile int exp = 0;
 
     /**
      * Current level the trainer is
      */
-    private int level = 0;
+    private volatile int level = 0;
 
     /**
      * ID of the trainer
@@ -37,7 +46,7 @@ public class Trainer implements TableProfile
      * Owner of the trainer. Referenced from the user ID from the
      * PHP server.
      */
-    private int owner;
+    private volatile int owner;
 
     /**
      * Set to true when this trainer is actually an NPC.
@@ -47,52 +56,30 @@ public class Trainer implements TableProfile
     /**
      * Current state (arena battling) the trainer is in
      */
-    private BattleState battleState = BattleState.NoBattle;
+    private volatile BattleState battleState = BattleState.NoBattle;
 
     /**
-     * List of minions that this trainer owns
+     * List of minions that this trainer owns, copied on write so views can
+     * read it while the game loop changes it
      */
-    private List< Minion > minionList = new LinkedList<>();
+    private final List< Minion > minionList = new CopyOnWriteArrayList<>();
 
     /**
-     * Prepared statement for pulling all the minions for a trainer
+     * SQL for deleting a trainer
      */
-    private static PreparedStatement minionStmt = null;
+    private static final String deleteSQL =
+            "DELETE FROM TRAINERS WHERE ID = ?";
 
     /**
-     * Statement for inserting a new trainer
+     * SQL for updating the owner, exp and level
      */
-    private static PreparedStatement insertStmt = null;
+    private static final String updateSQL = "UPDATE TRAINERS SET OWNER = ?, " +
+            "EXP = ?, LEVEL = ? WHERE ID = ?";
 
     /**
-     * Statement for deleting a trainer
+     * Allocator of the trainer IDs
      */
-    private static PreparedStatement deleteStmt = null;
-
-    /**
-     * Statement for deleting a trainer's minions
-     */
-    private static PreparedStatement deleteMinionStmt = null;
-
-    /**
-     * Statement for updating Level
-     */
-    private static PreparedStatement updateLevelStmt = null;
-
-    /**
-     * Statement for updating Exp
-     */
-    private static PreparedStatement updateExpStmt = null;
-
-    /**
-     * Statement for updating Owner
-     */
-    private static PreparedStatement updateOwnerStmt = null;
-
-    /**
-     * Statement for adjusting Exp
-     */
-    private static PreparedStatement adjustExpStmt = null;
+    private static final IdAllocator ids = IdAllocator.forTable( "TRAINERS" );
 
     /**
      * Ctor (from DB)
@@ -139,41 +126,6 @@ public class Trainer implements TableProfile
         exp = level = ID = owner = 0;
     }
 
-    /**
-     * Loads minions from DB
-     *
-     * @throws GameException Thrown if a failure occurs while updating
-     */
-    public void load()
-    {
-        ResultSet result;
-        try
-        {
-            // Set up the statement
-            minionStmt.setLong( 1, ID );
-
-            // Run the statement
-            result = minionStmt.executeQuery();
-
-            while( result.next() )
-            {
-                // Pull the values
-                int minionid = result.getInt( "id" );
-                int minionexp = result.getInt( "exp" );
-                int minionlevel = result.getInt( "level" );
-
-                // Add the minion to our list
-                minionList.add( new Minion( minionid, minionexp,
-                                            minionlevel, ID ) );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while getting trainer minions:" +
-                                        e.getMessage() );
-        }
-    }
-
     /**
      * Get experience
      *
@@ -214,6 +166,16 @@ public class Trainer implements TableProfile
         return owner;
     }
 
+    /**
+     * Gets the key of the trainer's row
+     *
+     * @return ID
+     */
+    public long getRowKey()
+    {
+        return ID;
+    }
+
     /**
      * Get whether this trainer is an NPC or not
      *
@@ -248,72 +210,38 @@ public class Trainer implements TableProfile
      * Set exp
      *
      * @param value New value of the exp
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setExp( int value )
     {
         exp = value;
 
-        try
-        {
-            updateExpStmt.setInt( 1, value );
-            updateExpStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateExpStmt );
-        }
-        catch( SQLException x )
-        {
-            throw new GameException( 3, "Error while setting minion exp." +
-                                     x.getMessage() );
-        }
+        queueUpdate();
     }
 
     /**
      * Set level
      *
      * @param value New value of the level
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setLevel( int value )
     {
         level = value;
 
-        try
-        {
-            updateLevelStmt.setInt( 1, value );
-            updateLevelStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateLevelStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion level." +
-                                        e.getMessage() );
-        }
+        queueUpdate();
     }
 
     /**
      * Set owner
      *
      * @param value New value of the owner
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setOwner( int value )
     {
+        int oldOwner = owner;
         owner = value;
+        TrainerManager.getInstance().ownerChanged( this, oldOwner );
 
-        try
-        {
-            updateOwnerStmt.setInt( 1, value );
-            updateOwnerStmt.setInt( 2, ID );
-
-            MySQLDB.delaySQL( updateOwnerStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion owner." +
-                                     e.getMessage() );
-        }
+        queueUpdate();
     }
 
     /**
@@ -336,11 +264,40 @@ public class Trainer implements TableProfile
         minionList.add( minion );
     }
 
+    /**
+     * Removes a minion from the list without destroying it
+     *
+     * @param minion The minion to remove from this trainer's list
+     */
+    void removeMinion( Minion minion )
+    {
+        minionList.remove( minion );
+    }
+
+    /**
+     * Removes every minion whose row is not in the given keys
+     *
+     * @param keys Keys of the minion rows to keep
+     * @return Number of minions removed
+     */
+    int retainMinions( Set< Long > keys )
+    {
+        List< Minion > gone = new ArrayList<>();
+        for( Minion minion : minionList )
+        {
+            if( !keys.contains( minion.getRowKey() ) )
+            {
+                gone.add( minion );
+            }
+        }
+        minionList.removeAll( gone );
+        return gone.size();
+    }
+
     /**
      * Adds exp and updates the level accordingly
      *
      * @param xp The exp to add
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void adjustExp( int xp )
     {
@@ -356,19 +313,16 @@ public class Trainer implements TableProfile
             exp = 0;
         }
 
-        try
-        {
-            adjustExpStmt.setInt( 1, level );
-            adjustExpStmt.setInt( 2, exp );
-            adjustExpStmt.setInt( 3, ID );
+        queueUpdate();
+    }
 
-            MySQLDB.delaySQL( adjustExpStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while setting minion level " +
-                                     "and exp." + e.getMessage() );
-        }
+    /**
+     * Queues the update of this trainer's row with its current values
+     */
+    private void queueUpdate()
+    {
+        MySQLDB.delaySQL( PendingWrite.update( "TRAINERS", ID, updateSQL, owner,
+                                               exp, level, ID ) );
     }
 
     /**
@@ -402,13 +356,11 @@ public class Trainer implements TableProfile
         int gainedExp = (int)( totalLoserXp * 0.2 );
 
         // Remove the loser from our list
-        ListIterator< Minion> iter = minionList.listIterator();
-        while( iter.hasNext() )
+        for( Minion minionTester : minionList )
         {
-            Minion minionTester = iter.next();
             if( minionTester.getID() == loser.getID() )
             {
-                iter.remove();
+                minionList.remove( minionTester );
                 break;
             }
         }
@@ -429,78 +381,38 @@ public class Trainer implements TableProfile
     }
 
     /**
-     * Creates a trainer
+     * Creates a trainer.
+     *
+     * The ID is taken from a block reserved ahead of time and the insert is
+     * queued with the delayed writes, so this does not wait on the database.
      *
      * @param n_owner Owner of the trainer
      * @return The created trainer
-     * @throws GameException Thrown if a failure occurs while creating
+     * @throws GameException Thrown if no ID could be reserved
      */
     public static Trainer create( int n_owner )
     {
         Trainer trainer = new Trainer( n_owner );
-        ResultSet generatedKeys;
-        try
-        {
-            // Set statement values
-            insertStmt.setInt( 1, n_owner );
-
-            // Validate it works/run it
-            int affectedRows = insertStmt.executeUpdate();
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( 
-                        "Creating trainer failed, no rows affected." );
-            }
-
-            // Get the ID
-            generatedKeys = insertStmt.getGeneratedKeys();
-            if( generatedKeys.next() )
-            {
-                trainer.ID = generatedKeys.getInt( 1 );
-            }
-            else
-            {
-                throw new SQLException( 
-                        "Creating trainer failed, no key returned." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while creating minion: " +
-                                     e.getMessage() );
-        }
+        trainer.ID = ids.next();
+        MySQLDB.delaySQL( PendingWrite.upsert( trainer, trainer.ID,
+                                               trainer.ID, n_owner, 0, 0 ) );
         return trainer;
     }
 
     /**
-     * Destroys the trainer in the database
+     * Destroys the trainer and its minions in the database.
      *
-     * @throws GameException Thrown if a failure occurs while deleting
+     * The deletes are queued with the delayed writes.  Each minion is deleted
+     * by its own ID so the delete is ordered after the minion's insert.
      */
     void destroy()
     {
-        // Ensure the delete statement is prepared
-        try
+        for( Minion minion : minionList )
         {
-            deleteStmt.setInt( 1, ID );
-            deleteMinionStmt.setInt( 1, ID );
-
-            // Run the delete
-            int affectedRows = deleteStmt.executeUpdate();
-
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "No rows were deleted." );
-            }
-
-            // Minion statement does not need to be checked
-            deleteMinionStmt.executeUpdate();
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while deleting trainer: " +
-                                     e.getMessage() );
+            minion.destroy();
         }
+        MySQLDB.delaySQL( PendingWrite.execute( "TRAINERS", ID, deleteSQL,
+                                                ID ) );
 
         owner = ID = exp = level = 0;
     }
@@ -593,19 +505,46 @@ public class Trainer implements TableProfile
             "`owner` int(10) unsigned NOT NULL," +
             "`exp` int(10) unsigned NOT NULL," +
             "`level` int(10) unsigned NOT NULL," +
-            "PRIMARY KEY (`ID`)" +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`ID`)," +
+            Snapshot.UPDATED_INDEX +
             ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
     }
 
     /**
      * Returns an array containing the SQL table headers
      *
-     * @return [ID,owner,exp,level]
+     * @return [ID,owner,exp,level,updated]
      */
     @Override
     public String[] tableHeaders()
     {
-        return new String[] { "ID", "owner", "exp", "level" };
+        return new String[] { "ID", "owner", "exp", "level",
+                              Snapshot.UPDATED_COLUMN };
+    }
+
+    /**
+     * Returns the columns of the primary key
+     *
+     * @return [ID]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[] { "ID" };
+    }
+
+    /**
+     * Gets the key of a row
+     *
+     * @param rs Row starting with the ID
+     * @return ID
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public long rowKey( ResultSet rs ) throws SQLException
+    {
+        return rs.getInt( 1 );
     }
 
     /**
@@ -616,54 +555,148 @@ public class Trainer implements TableProfile
      */
     @Override
     public void loadRow( ResultSet rs ) throws SQLException
+    {
+        TrainerManager.getInstance().addTrainer( fromRow( rs ) );
+    }
+
+    /**
+     * Creates a trainer from a row of the table
+     *
+     * @param rs Result row from SQL database
+     * @return The trainer
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    private static Trainer fromRow( ResultSet rs ) throws SQLException
     {
         int n_ID = rs.getInt( 1 );
         int n_owner = rs.getInt( 2 );
         int n_exp = rs.getInt( 3 );
         int n_level = rs.getInt( 4 );
 
-        Trainer trainer = new Trainer( n_ID, n_owner, n_exp, n_level );
-        TrainerManager.getInstance().addTrainer( trainer );
-        trainer.load();
+        return new Trainer( n_ID, n_owner, n_exp, n_level );
     }
 
     /**
-     * Prepares all of the prepared statements
+     * Writes every trainer of the manager
      *
-     * @throws SQLException If an error occurs when preparing the statements
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
      */
     @Override
-    public void postinit() throws SQLException
+    public void writeRows( DataOutput out ) throws IOException
     {
-        Connection conn = MySQLDB.getConn();
+        List< Trainer > trainers = TrainerManager.getInstance().getTrainers();
+        out.writeInt( trainers.size() );
+        for( Trainer trainer : trainers )
+        {
+            out.writeInt( trainer.ID );
+            out.writeInt( trainer.owner );
+            out.writeInt( trainer.exp );
+            out.writeInt( trainer.level );
+        }
+    }
 
-        final String pre = "UPDATE TRAINERS SET ";
-        final String post = " WHERE ID = ?";
+    /**
+     * Reads the trainers written by writeRows and adds them to the manager
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    @Override
+    public void readRows( DataInput in ) throws IOException
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        for( int count = in.readInt(); count > 0; count-- )
+        {
+            manager.addTrainer( new Trainer( in.readInt(), in.readInt(),
+                                             in.readInt(), in.readInt() ) );
+        }
+    }
+
+    /**
+     * Updates the trainers that changed in the database, adding any that are
+     * new
+     *
+     * @param rs Changed rows
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public int catchUp( ResultSet rs ) throws SQLException
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        Map< Integer, Trainer > loaded = new HashMap<>();
+        for( Trainer trainer : manager.getTrainers() )
+        {
+            loaded.put( trainer.ID, trainer );
+        }
+
+        int count = 0;
+        while( rs.next() )
+        {
+            Trainer changed = fromRow( rs );
+            Trainer trainer = loaded.get( changed.ID );
+            if( trainer == null )
+            {
+                manager.addTrainer( changed );
+            }
+            else
+            {
+                int oldOwner = trainer.owner;
+                trainer.owner = changed.owner;
+                if( oldOwner != trainer.owner )
+                {
+                    manager.ownerChanged( trainer, oldOwner );
+                }
+                trainer.exp = changed.exp;
+                trainer.level = changed.level;
+            }
+            count++;
+        }
+        return count;
+    }
 
-        updateLevelStmt = conn.prepareStatement( pre + "LEVEL = ?" + post );
-        updateExpStmt = conn.prepareStatement( pre + "EXP = ?" + post );
-        updateOwnerStmt = conn.prepareStatement( pre + "OWNER = ?" + post );
-        adjustExpStmt = conn.prepareStatement( pre + "LEVEL = ?, EXP = ?" +
-                                               post );
-        deleteStmt = conn.prepareStatement( "DELETE FROM TRAINERS" + post );
-        deleteMinionStmt = conn.prepareStatement( "DELETE FROM MINIONS WHERE " +
-                                                  "OWNER = ?" );
+    /**
+     * Removes the trainers that are no longer in the database
+     *
+     * @param keys IDs of every trainer in the database
+     * @return Number of trainers removed
+     */
+    @Override
+    public int retainRows( Set< Long > keys )
+    {
+        return TrainerManager.getInstance().retainTrainers( keys );
+    }
 
-        minionStmt = conn.prepareStatement( "SELECT * FROM MINIONS WHERE " +
-                                            "OWNER = ?" );
-        insertStmt = conn.prepareStatement(
-                        "INSERT INTO TRAINERS VALUES( NULL, ?, 0, 0 )",
-                        Statement.RETURN_GENERATED_KEYS );
+    /**
+     * Prepares all of the prepared statements
+     *
+     * @throws SQLException If an error occurs when preparing the statements
+     */
+    @Override
+    public void postinit() throws SQLException
+    {
+        // Prepare the statements once so errors show up at startup
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.prepare( deleteSQL );
+        }
+        finally
+        {
+            pc.release();
+        }
     }
 
     /**
-     * Tells the table manager to load this data from the database.
+     * Tells the table manager to load this data from the database, unless
+     * the rows are loaded for each user by the working set.
      *
-     * @return true
+     * @return True if the working set is off
      */
     @Override
     public boolean loadData()
     {
-        return true;
+        return !WorkingSet.isEnabled();
     }
 }
\ No newline at end of file
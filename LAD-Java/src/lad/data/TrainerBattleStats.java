@@ -1,12 +1,23 @@
 package lad.data;
 
-import java.sql.Connection;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import lad.db.EXPManager;
 import lad.db.MySQLDB;
+import lad.db.PendingWrite;
+import lad.db.PooledConnection;
+import lad.db.Snapshot;
+import lad.db.SnapshotProfile;
 import lad.db.TableProfile;
+import lad.db.WorkingSet;
 import lad.game.PairList;
 
 /**
@@ -14,7 +25,7 @@ import lad.game.PairList;
  *
  * @author msflowers
  */
-public class TrainerBattleStats implements TableProfile
+public class TrainerBattleStats implements SnapshotProfile
 {
     // Fields
     /**
@@ -32,82 +43,78 @@ public class TrainerBattleStats implements TableProfile
     /**
      * Number of times gun was fired
      */
-    private int shotsFired = 0;
+    private volatile int shotsFired = 0;
 
     /**
      * Amount of damage dealt
      */
-    private double damageDealt = 0;
+    private volatile double damageDealt = 0;
 
     /**
      * Amount of damage taken
      */
-    private double damageTaken = 0;
+    private volatile double damageTaken = 0;
 
     /**
      * Number of times gun was reloaded
      */
-    private int reloads = 0;
+    private volatile int reloads = 0;
 
     /**
      * Number of times gun shot hit the enemy
      */
-    private int shotsHit = 0;
+    private volatile int shotsHit = 0;
 
     /**
      * Distance moved
      */
-    private double distanceMoved = 0;
+    private volatile double distanceMoved = 0;
 
     /**
      * Number of shots evaded to prevent damage
      */
-    private int shotsEvaded = 0;
+    private volatile int shotsEvaded = 0;
 
     /**
      * Amount of damage reduced by shielding
      */
-    private double damageReduced = 0;
+    private volatile double damageReduced = 0;
 
     /**
      * Number of critical hits landed
      */
-    private int criticalsHit = 0;
+    private volatile int criticalsHit = 0;
 
     /**
      * Number of times shot without being shot at
      */
-    private int safelyShot = 0;
+    private volatile int safelyShot = 0;
 
     /**
      * Number of times ran away from damage
      */
-    private int ranAway = 0;
+    private volatile int ranAway = 0;
 
     /**
      * Number of battles taken part of
      */
-    private int battles = 0;
+    private volatile int battles = 0;
 
     /**
      * Number of battles won
      */
-    private int battlesWon = 0;
+    private volatile int battlesWon = 0;
 
     /**
-     * Statement for inserting a new statistic block
+     * True if the values changed since they were last written
      */
-    private static PreparedStatement insertStmt = null;
+    private boolean dirty = false;
 
     /**
-     * Statement for deleting a statistic block
+     * SQL for deleting a statistic block
      */
-    private static PreparedStatement deleteStmt = null;
-
-    /**
-     * Statement for updating
-     */
-    private static PreparedStatement updateStmt = null;
+    private static final String deleteSQL = "DELETE FROM TRAINERBATTLESTATS " +
+            "WHERE type = ? AND id = ?";
 
     /**
      * Ctor (Adding to DB)
@@ -144,6 +151,17 @@ public class TrainerBattleStats implements TableProfile
             throw new GameException( 4, "Invalid battle statistic doubles." );
         }
 
+        setValues( ints, doubles );
+    }
+
+    /**
+     * Sets all of the statistics without committing them
+     *
+     * @param ints    Array of all the integer values
+     * @param doubles Array of all the double values
+     */
+    private void setValues( int ints[], double doubles[] )
+    {
         this.shotsFired   = ints[ 0 ];
         this.reloads      = ints[ 1 ];
         this.shotsHit     = ints[ 2 ];
@@ -163,6 +181,10 @@ public class TrainerBattleStats implements TableProfile
     /**
      * Updates all of the statistics by adding the values to each.
      *
+     * The values are not written right away, the block is marked dirty and
+     * written by the next flush of the manager.
+     *
+     * @see lad.db.EXPManager#flushBattleStats()
      * @param ints    Integer values to add in to the statistic block
      * @param doubles Double values to add in to the statistic block
      * @throws GameException Thrown if either of the arrays are an incorrect
@@ -196,32 +218,30 @@ public class TrainerBattleStats implements TableProfile
         this.distanceMoved += doubles[ 2 ];
         this.damageReduced += doubles[ 3 ];
 
-        // Commit values to DB
-        try
+        // Leave the write for the next flush
+        if( !dirty )
         {
-            updateStmt.setInt( 1, this.shotsFired );
-            updateStmt.setDouble( 2, this.damageDealt );
-            updateStmt.setDouble( 3, this.damageTaken );
-            updateStmt.setInt( 4, this.reloads );
-            updateStmt.setInt( 5, this.shotsHit );
-            updateStmt.setDouble( 6, this.distanceMoved );
-            updateStmt.setInt( 7, this.shotsEvaded );
-            updateStmt.setDouble( 8, this.damageReduced );
-            updateStmt.setInt( 9, this.criticalsHit );
-            updateStmt.setInt( 10, this.safelyShot );
-            updateStmt.setInt( 11, this.ranAway );
-            updateStmt.setInt( 12, this.battles );
-            updateStmt.setInt( 13, this.battlesWon );
-            updateStmt.setInt( 14, this.type );
-            updateStmt.setInt( 15, this.id );
-
-            MySQLDB.delaySQL( updateStmt );
+            dirty = true;
+            EXPManager.getInstance().markDirty( this );
         }
-        catch( SQLException e )
+    }
+
+    /**
+     * Queues a write of the whole block if it changed since the last one.
+     *
+     * The write inserts the row if it does not exist yet.
+     */
+    public void commit()
+    {
+        if( !dirty )
         {
-            throw new GameException( 3, "Error while updating statistic " +
-                                        "block." + e.getMessage() );
+            return;
         }
+        dirty = false;
+        MySQLDB.delaySQL( PendingWrite.statistic( this, getRowKey(), type, id,
+                shotsFired, damageDealt, damageTaken, reloads, shotsHit,
+                distanceMoved, shotsEvaded, damageReduced, criticalsHit,
+                safelyShot, ranAway, battles, battlesWon ) );
     }
 
     /**
@@ -244,6 +264,28 @@ public class TrainerBattleStats implements TableProfile
         return this.type;
     }
 
+    /**
+     * Gets the key of this statistic block's row
+     *
+     * @return Type and ID packed in a single number
+     */
+    public long getRowKey()
+    {
+        return rowKey( type, id );
+    }
+
+    /**
+     * Packs the key columns of a row in a single number
+     *
+     * @param type Type of the target of the statistic block
+     * @param id   ID of the target of the statistic block
+     * @return Key of the row
+     */
+    public static long rowKey( int type, int id )
+    {
+        return ( (long)type << 32 ) | ( id & 0xffffffffL );
+    }
+
     /**
      * Gets the integers in this statistic block.
      *
@@ -279,33 +321,17 @@ public class TrainerBattleStats implements TableProfile
     }
 
     /**
-     * Creates a new statistic block and adds it to the DB in the process
+     * Creates a new statistic block.
+     *
+     * The row is inserted by the first write of the block, so this does not
+     * wait on the database.
      *
      * @param type Type of the target of the block
      * @param id   ID of the target of the block
      * @return Created statistic block
-     * @throws GameException Thrown if the creation fails
      */
     public static TrainerBattleStats create( int type, int id )
     {
-        try
-        {
-            // Set statement values
-            insertStmt.setInt( 1, type );
-            insertStmt.setInt( 2, id );
-
-            // Validate it works/run it
-            int affectedRows = insertStmt.executeUpdate();
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "Creating trainer statistic block " +
-                                        "failed, no rows affected." );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, e.getMessage() );
-        }
         return new TrainerBattleStats( type, id );
     }
 
@@ -316,8 +342,12 @@ public class TrainerBattleStats implements TableProfile
      */
     void destroy()
     {
+        PooledConnection pc = null;
         try
         {
+            pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+            PreparedStatement deleteStmt = pc.prepare( deleteSQL );
+
             deleteStmt.setInt( 1, type );
             deleteStmt.setInt( 2, id );
 
@@ -333,7 +363,15 @@ public class TrainerBattleStats implements TableProfile
         {
             throw new GameException( 3, e.getMessage());
         }
+        finally
+        {
+            if( pc != null )
+            {
+                pc.release();
+            }
+        }
 
+        dirty = false;
         battles = battlesWon = criticalsHit = id = reloads = safelyShot =
                   shotsEvaded = shotsFired = shotsHit = type = 0;
         damageDealt = damageReduced = damageTaken = distanceMoved = 0.0;
@@ -474,7 +512,9 @@ public class TrainerBattleStats implements TableProfile
             "`ranAway` int(10) unsigned NOT NULL," +
             "`battles` int(10) unsigned NOT NULL," +
             "`battlesWon` int(10) unsigned NOT NULL," +
-            "PRIMARY KEY (`type`,`id`)" +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`type`,`id`)," +
+            Snapshot.UPDATED_INDEX +
             ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
     }
 
@@ -483,7 +523,7 @@ public class TrainerBattleStats implements TableProfile
      *
      * @return [type,id,shotsFired,damageDealt,damageTaken,reloads,shotsHit,
      *         distanceMoved,shotsEvaded,damageReduced,criticalsHit,safelyShot,
-     *         battles,battlesWon]
+     *         battles,battlesWon,updated]
      */
     @Override
     public String[] tableHeaders()
@@ -492,7 +532,31 @@ public class TrainerBattleStats implements TableProfile
             "shotsFired", "damageDealt", "damageTaken", "reloads",
             "shotsHit", "distanceMoved", "shotsEvaded",
             "damageReduced", "criticalsHit", "safelyShot", "ranAway",
-            "battles", "battlesWon" };
+            "battles", "battlesWon", Snapshot.UPDATED_COLUMN };
+    }
+
+    /**
+     * Returns the columns of the primary key
+     *
+     * @return [type,id]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[]{ "type", "id" };
+    }
+
+    /**
+     * Gets the key of a row
+     *
+     * @param rs Row starting with the type and ID
+     * @return Type and ID packed in a single number
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public long rowKey( ResultSet rs ) throws SQLException
+    {
+        return rowKey( rs.getInt( 1 ), rs.getInt( 2 ) );
     }
 
     /**
@@ -503,6 +567,19 @@ public class TrainerBattleStats implements TableProfile
      */
     @Override
     public void loadRow( ResultSet rs ) throws SQLException
+    {
+        EXPManager.getInstance().addBattleStats( fromRow( rs ) );
+    }
+
+    /**
+     * Creates a statistic block from a row of the table
+     *
+     * @param rs Result row from SQL database
+     * @return The statistic block
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    private static TrainerBattleStats fromRow( ResultSet rs )
+            throws SQLException
     {
         int n_type = rs.getInt( 1 );
         int n_id = rs.getInt( 2 );
@@ -529,10 +606,113 @@ public class TrainerBattleStats implements TableProfile
             n_distanceMoved, n_damageReduced
         };
 
-        TrainerBattleStats stats =
-                new TrainerBattleStats( n_type, n_id, ints, doubles );
+        return new TrainerBattleStats( n_type, n_id, ints, doubles );
+    }
+
+    /**
+     * Writes every statistic block of the manager
+     *
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
+     */
+    @Override
+    public void writeRows( DataOutput out ) throws IOException
+    {
+        List< TrainerBattleStats > all =
+                EXPManager.getInstance().getAllBattleStats();
+        out.writeInt( all.size() );
+        for( TrainerBattleStats stats : all )
+        {
+            out.writeInt( stats.type );
+            out.writeInt( stats.id );
+            for( int value : stats.getInts() )
+            {
+                out.writeInt( value );
+            }
+            for( double value : stats.getDoubles() )
+            {
+                out.writeDouble( value );
+            }
+        }
+    }
+
+    /**
+     * Reads the statistic blocks written by writeRows and adds them to the
+     * manager
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    @Override
+    public void readRows( DataInput in ) throws IOException
+    {
+        EXPManager manager = EXPManager.getInstance();
+        for( int count = in.readInt(); count > 0; count-- )
+        {
+            int n_type = in.readInt();
+            int n_id = in.readInt();
+            int ints[] = new int[ 9 ];
+            for( int i = 0; i < ints.length; i++ )
+            {
+                ints[ i ] = in.readInt();
+            }
+            double doubles[] = new double[ 4 ];
+            for( int i = 0; i < doubles.length; i++ )
+            {
+                doubles[ i ] = in.readDouble();
+            }
+            manager.addBattleStats( new TrainerBattleStats( n_type, n_id,
+                                                            ints,
+                                                            doubles ) );
+        }
+    }
+
+    /**
+     * Updates the statistic blocks that changed in the database, adding any
+     * that are new
+     *
+     * @param rs Changed rows
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public int catchUp( ResultSet rs ) throws SQLException
+    {
+        EXPManager manager = EXPManager.getInstance();
+        Map< Long, TrainerBattleStats > loaded = new HashMap<>();
+        for( TrainerBattleStats stats : manager.getAllBattleStats() )
+        {
+            loaded.put( stats.getRowKey(), stats );
+        }
 
-        EXPManager.getInstance().addBattleStats( stats );
+        int count = 0;
+        while( rs.next() )
+        {
+            TrainerBattleStats changed = fromRow( rs );
+            TrainerBattleStats stats = loaded.get( changed.getRowKey() );
+            if( stats == null )
+            {
+                manager.addBattleStats( changed );
+            }
+            else
+            {
+                stats.setValues( changed.getInts(), changed.getDoubles() );
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the statistic blocks that are no longer in the database
+     *
+     * @param keys Keys of every statistic block in the database
+     * @return Number of statistic blocks removed
+     */
+    @Override
+    public int retainRows( Set< Long > keys )
+    {
+        return EXPManager.getInstance().retainBattleStats( keys );
     }
 
     /**
@@ -543,28 +723,27 @@ public class TrainerBattleStats implements TableProfile
     @Override
     public void postinit() throws SQLException
     {
-        Connection conn = MySQLDB.getConn();
-
-        updateStmt = conn.prepareStatement( "UPDATE TRAINERBATTLESTATS SET " +
-            "shotsFired = ?, damageDealt = ?, damageTaken = ?, reloads = ?, " +
-            "shotsHit = ?, distanceMoved = ?, shotsEvaded = ?, " +
-            "damageReduced = ?, criticalsHit = ?, safelyShot = ?," +
-            "ranAway = ?, battles = ?, battlesWon = ? WHERE " +
-            "type = ? AND id = ?" );
-        deleteStmt = conn.prepareStatement( "DELETE FROM TRAINERBATTLESTATS " +
-                                            "WHERE type = ? AND id = ?" );
-        insertStmt = conn.prepareStatement( "INSERT INTO TRAINERBATTLESTATS " +
-            "VALUES( ?, ?, 0, 0.0, 0.0, 0, 0, 0.0, 0, 0.0, 0, 0, 0, 0, 0 )" );
+        // Prepare the statements once so errors show up at startup
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.prepare( deleteSQL );
+        }
+        finally
+        {
+            pc.release();
+        }
     }
 
     /**
-     * Tells the table manager to load this data from the database.
+     * Tells the table manager to load this data from the database, unless
+     * the rows are loaded for each user by the working set.
      *
-     * @return true
+     * @return True if the working set is off
      */
     @Override
     public boolean loadData()
     {
-        return true;
+        return !WorkingSet.isEnabled();
     }
 }
@@ -1,22 +1,32 @@
 package lad.data;
 
-import java.sql.Connection;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import lad.db.EXPManager;
 import lad.db.MySQLDB;
+import lad.db.PendingWrite;
+import lad.db.PooledConnection;
+import lad.db.Snapshot;
+import lad.db.SnapshotProfile;
 import lad.db.TableProfile;
+import lad.db.WorkingSet;
 
 /**
  * Data class for the user's experience
  *
  * @author msflowers
  */
-public class UserExp implements TableProfile
+public class UserExp implements SnapshotProfile
 {
     /**
      * ID of the User that the EXP belongs to
@@ -36,37 +46,30 @@ public class UserExp implements TableProfile
     /**
      * Level of the EXP
      */
-    private int level;
+    private volatile int level;
 
     /**
      * Remainder experience for this EXP
      */
-    private int exp;
+    private volatile int exp;
 
     /**
      * Total experience that has been earned
      */
-    private int totalExp;
+    private volatile int totalExp;
 
     /**
-     * List of points required to advance levels at the current level
+     * List of points required to advance levels at the current level,
+     * replaced whole when it changes
      */
-    private final List< Integer > bonusLevels = new ArrayList<>( 10 );
+    private volatile List< Integer > bonusLevels =
+            Collections.emptyList();
 
     /**
-     * Statement for inserting a new trainer
+     * SQL for deleting the EXP of a user
      */
-    private static PreparedStatement insertStmt = null;
-
-    /**
-     * Statement for updating Level
-     */
-    private static PreparedStatement updateStmt = null;
-
-    /**
-     * Statement for deleting a trainer
-     */
-    private static PreparedStatement deleteStmt = null;
+    private static final String deleteSQL =
+            "DELETE FROM USEREXP WHERE OWNER = ?";
 
     /**
      * Ctor (from DB)
@@ -160,6 +163,29 @@ public class UserExp implements TableProfile
         return type;
     }
 
+    /**
+     * Gets the key of the EXP's row
+     *
+     * @return Owner, target and type packed in a single number
+     */
+    public long getRowKey()
+    {
+        return rowKey( owner, target.getValue(), type.getValue() );
+    }
+
+    /**
+     * Packs the key columns of a row in a single number
+     *
+     * @param owner  Owner of the EXP
+     * @param target Target of the EXP
+     * @param type   Type of the EXP
+     * @return Key of the row
+     */
+    private static long rowKey( int owner, int target, int type )
+    {
+        return ( (long)owner << 16 ) | ( target << 8 ) | type;
+    }
+
     /**
      * Gets the array of bonus levels
      *
@@ -167,12 +193,11 @@ public class UserExp implements TableProfile
      */
     public List< Integer > getBonusLevels()
     {
-        return Collections.unmodifiableList( this.bonusLevels );
+        return this.bonusLevels;
     }
 
     /**
      * @param level the level to set
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setLevel( int level )
     {
@@ -183,7 +208,6 @@ public class UserExp implements TableProfile
 
     /**
      * @param exp the exp to set
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setExp( int exp )
     {
@@ -196,7 +220,6 @@ public class UserExp implements TableProfile
     /**
      * @param level The new level to set
      * @param exp The new exp to set
-     * @throws GameException Thrown if a failure occurs while updating
      */
     public void setValues( int level, int exp )
     {
@@ -207,60 +230,32 @@ public class UserExp implements TableProfile
     }
 
     /**
-     * Simply calls SQL update with appropriate values
-     *
-     * @throws GameException Thrown if a failure occurs while updating
+     * Simply queues the SQL update for this EXP
      */
     private void runUpdate()
     {
-        try
-        {
-            updateStmt.setInt( 1, this.level );
-            updateStmt.setInt( 2, this.exp );
-            updateStmt.setInt( 3, this.totalExp );
-            updateStmt.setInt( 4, this.owner );
-            updateStmt.setInt( 5, this.target.getValue() );
-            updateStmt.setInt( 6, this.getType().getValue() );
-
-            MySQLDB.delaySQL( updateStmt );
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while updating user EXP." +
-                                     e.getMessage() );
-        }
+        MySQLDB.delaySQL( PendingWrite.upsert( this, getRowKey(), owner,
+                                               target.getValue(),
+                                               type.getValue(), level, exp,
+                                               totalExp ) );
     }
 
     /**
-     * Creates a new EXP attribute and adds it to the DB in the process
+     * Creates a new EXP attribute.
+     *
+     * The row is queued with the delayed writes as an upsert, so this does
+     * not wait on the database.  Any update before the runner gets to it
+     * replaces the queued row.
      *
      * @param owner Owner of the EXP
      * @param target Target of the EXP
      * @param type Type of the EXP
      * @return The created EXP block
-     * @throws GameException Thrown if a failure occurs while creating
      */
     public static UserExp create( int owner, int target, int type )
     {
         UserExp ret = new UserExp( owner, target, type );
-        try
-        {
-            insertStmt.setInt( 1, owner );
-            insertStmt.setInt( 2, target );
-            insertStmt.setInt( 3, type );
-
-            int affectedRows = insertStmt.executeUpdate();
-            if( affectedRows == 0 )
-            {
-                throw new SQLException( "Creating EXP failed, duplicate key?" );
-            }
-        }
-        catch( SQLException e )
-        {
-            throw new GameException( 3, "Error while creating exp: " +
-                                     e.getMessage() );
-        }
-
+        ret.runUpdate();
         return ret;
     }
 
@@ -272,8 +267,12 @@ public class UserExp implements TableProfile
      */
     public static void deleteByUser( int owner )
     {
+        PooledConnection pc = null;
         try
         {
+            pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+            PreparedStatement deleteStmt = pc.prepare( deleteSQL );
+
             deleteStmt.setInt( 1, owner );
             deleteStmt.executeUpdate();
             // Don't need to make sure some were deleted since it's possible
@@ -284,6 +283,13 @@ public class UserExp implements TableProfile
             throw new GameException( 3, "Error while deleting exp: " +
                                      e.getMessage() );
         }
+        finally
+        {
+            if( pc != null )
+            {
+                pc.release();
+            }
+        }
     }
     /**
      * Returns the amount of experience required for the next level of this
@@ -321,14 +327,14 @@ public class UserExp implements TableProfile
     }
 
     /**
-     * Clears and then refills the bonus levels array
+     * Rebuilds the bonus levels array
      */
     private void updateBonuses()
     {
         int bonusLevel = 0, bonusMultiplier = 1, bonusExp = this.exp,
             expRequired = EXPManager.expRequiredAtLevel( this.level );
 
-        this.bonusLevels.clear();
+        List< Integer > levels = new ArrayList<>( 10 );
         
         while( bonusExp > expRequired )
         {
@@ -338,10 +344,11 @@ public class UserExp implements TableProfile
             }
             bonusLevel += bonusMultiplier;
             bonusExp -= expRequired;
-            this.bonusLevels.add( expRequired );
+            levels.add( expRequired );
             expRequired = EXPManager.expRequiredAtLevel( this.level +
                                                          bonusLevel );
         }
+        this.bonusLevels = Collections.unmodifiableList( levels );
     }
 
     /**
@@ -381,20 +388,47 @@ public class UserExp implements TableProfile
             "`level` int(10) unsigned NOT NULL," +
             "`exp` int(10) unsigned NOT NULL," +
             "`totalexp` int(10) unsigned NOT NULL," +
-            "PRIMARY KEY (`owner`,`target`,`type`)" +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`owner`,`target`,`type`)," +
+            Snapshot.UPDATED_INDEX +
             ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
     }
 
     /**
      * Gets the headers of the SQL table
      *
-     * @return [owner,target,type,level,exp,totalexp]
+     * @return [owner,target,type,level,exp,totalexp,updated]
      */
     @Override
     public String[] tableHeaders()
     {
         return new String[]{ "owner", "target", "type",
-                                "level", "exp", "totalexp" };
+                                "level", "exp", "totalexp",
+                                Snapshot.UPDATED_COLUMN };
+    }
+
+    /**
+     * Gets the columns of the primary key
+     *
+     * @return [owner,target,type]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[]{ "owner", "target", "type" };
+    }
+
+    /**
+     * Gets the key of a row
+     *
+     * @param rs Row starting with the owner, target and type
+     * @return Owner, target and type packed in a single number
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public long rowKey( ResultSet rs ) throws SQLException
+    {
+        return rowKey( rs.getInt( 1 ), rs.getInt( 2 ), rs.getInt( 3 ) );
     }
 
     /**
@@ -405,6 +439,18 @@ public class UserExp implements TableProfile
      */
     @Override
     public void loadRow( ResultSet rs ) throws SQLException
+    {
+        EXPManager.getInstance().addEXP( fromRow( rs ) );
+    }
+
+    /**
+     * Creates an EXP block from a row of the table
+     *
+     * @param rs Result row from SQL database
+     * @return The EXP block
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    private static UserExp fromRow( ResultSet rs ) throws SQLException
     {
         int n_owner = rs.getInt( 1 );
         int n_target = rs.getInt( 2 );
@@ -413,9 +459,99 @@ public class UserExp implements TableProfile
         int n_exp = rs.getInt( 5 );
         int n_totalexp = rs.getInt( 6 );
 
-        UserExp userexp = new UserExp( n_owner, n_target, n_type,
-                                        n_level, n_exp, n_totalexp );
-        EXPManager.getInstance().addEXP( userexp );
+        return new UserExp( n_owner, n_target, n_type, n_level, n_exp,
+                            n_totalexp );
+    }
+
+    /**
+     * Writes every EXP block of the manager
+     *
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
+     */
+    @Override
+    public void writeRows( DataOutput out ) throws IOException
+    {
+        List< UserExp > exps = EXPManager.getInstance().getExps();
+        out.writeInt( exps.size() );
+        for( UserExp userexp : exps )
+        {
+            out.writeInt( userexp.owner );
+            out.writeInt( userexp.target.getValue() );
+            out.writeInt( userexp.type.getValue() );
+            out.writeInt( userexp.level );
+            out.writeInt( userexp.exp );
+            out.writeInt( userexp.totalExp );
+        }
+    }
+
+    /**
+     * Reads the EXP blocks written by writeRows and adds them to the manager
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    @Override
+    public void readRows( DataInput in ) throws IOException
+    {
+        EXPManager manager = EXPManager.getInstance();
+        for( int count = in.readInt(); count > 0; count-- )
+        {
+            manager.addEXP( new UserExp( in.readInt(), in.readInt(),
+                                         in.readInt(), in.readInt(),
+                                         in.readInt(), in.readInt() ) );
+        }
+    }
+
+    /**
+     * Updates the EXP blocks that changed in the database, adding any that
+     * are new
+     *
+     * @param rs Changed rows
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown if there is an error reading the SQL
+     */
+    @Override
+    public int catchUp( ResultSet rs ) throws SQLException
+    {
+        EXPManager manager = EXPManager.getInstance();
+        Map< Long, UserExp > loaded = new HashMap<>();
+        for( UserExp userexp : manager.getExps() )
+        {
+            loaded.put( userexp.getRowKey(), userexp );
+        }
+
+        int count = 0;
+        while( rs.next() )
+        {
+            UserExp changed = fromRow( rs );
+            UserExp userexp = loaded.get( changed.getRowKey() );
+            if( userexp == null )
+            {
+                manager.addEXP( changed );
+            }
+            else
+            {
+                userexp.level = changed.level;
+                userexp.exp = changed.exp;
+                userexp.totalExp = changed.totalExp;
+                userexp.updateBonuses();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the EXP blocks that are no longer in the database
+     *
+     * @param keys Keys of every EXP block in the database
+     * @return Number of EXP blocks removed
+     */
+    @Override
+    public int retainRows( Set< Long > keys )
+    {
+        return EXPManager.getInstance().retainExps( keys );
     }
 
     /**
@@ -426,26 +562,27 @@ public class UserExp implements TableProfile
     @Override
     public void postinit() throws SQLException
     {
-        Connection conn = MySQLDB.getConn();
-
-        updateStmt = conn.prepareStatement( "UPDATE USEREXP SET LEVEL = ?, " +
-                                            "EXP = ?, TOTALEXP = ? WHERE " +
-                                            "OWNER = ? AND TARGET = ? AND " +
-                                            "TYPE = ?" );
-        deleteStmt = conn.prepareStatement( "DELETE FROM USEREXP WHERE OWNER " +
-                                            "= ?");
-        insertStmt = conn.prepareStatement(
-                        "INSERT INTO USEREXP VALUES( ?, ?, ?, 0, 0, 0 )" );
+        // Prepare the statements once so errors show up at startup
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.prepare( deleteSQL );
+        }
+        finally
+        {
+            pc.release();
+        }
     }
 
     /**
-     * Tells the table manager to load this data from the database.
+     * Tells the table manager to load this data from the database, unless
+     * the rows are loaded for each user by the working set.
      *
-     * @return true
+     * @return True if the working set is off
      */
     @Override
     public boolean loadData()
     {
-        return true;
+        return !WorkingSet.isEnabled();
     }
 }
@@ -0,0 +1,371 @@
+package lad.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import lad.game.Debug;
+
+/**
+ * A fixed size pool of connections for one lane of MySQLDB.
+ *
+ * Connections are opened the first time they are needed, up to the size of
+ * the pool.  Once all of them are borrowed, further borrowers wait for one to
+ * be released.  A connection that has been idle for a while, or that was
+ * invalidated by its last user, is checked before it is handed out and
+ * reopened if it is no longer valid.
+ *
+ * @author msflowers
+ */
+public class ConnectionPool
+{
+    /**
+     * Name of the pool, used for logging
+     */
+    private final String name;
+
+    /**
+     * Database that opens the connections
+     */
+    private final MySQLDB db;
+
+    /**
+     * Auto commit setting of the pool's connections
+     */
+    private final boolean autoCommit;
+
+    /**
+     * Maximum number of connections
+     */
+    private final int size;
+
+    /**
+     * Connections waiting to be borrowed
+     */
+    private final LinkedList< PooledConnection > idle = new LinkedList<>();
+
+    /**
+     * Number of connections opened
+     */
+    private int opened = 0;
+
+    /**
+     * Number of connections currently borrowed
+     */
+    private int busy = 0;
+
+    /**
+     * Time (System.nanoTime) the pool was created
+     */
+    private final long created = System.nanoTime();
+
+    /**
+     * Number of times a connection was borrowed
+     */
+    private long borrows = 0;
+
+    /**
+     * Total nanoseconds spent waiting for a connection
+     */
+    private long waitNanos = 0;
+
+    /**
+     * Longest nanoseconds spent waiting for a connection
+     */
+    private long maxWaitNanos = 0;
+
+    /**
+     * Total nanoseconds connections spent borrowed
+     */
+    private long busyNanos = 0;
+
+    /**
+     * Number of connections that failed the check and were reopened
+     */
+    private long reconnects = 0;
+
+    /**
+     * Milliseconds a connection may be idle before it is checked
+     */
+    private static volatile long validateIdle =
+            Long.getLong( "lad.db.validateIdle", 5000 );
+
+    /**
+     * Ctor
+     *
+     * @param n_name       Name of the pool
+     * @param n_db         Database that opens the connections
+     * @param n_size       Maximum number of connections (at least 1)
+     * @param n_autoCommit Auto commit setting of the connections
+     */
+    ConnectionPool( String n_name, MySQLDB n_db, int n_size,
+                    boolean n_autoCommit )
+    {
+        name = n_name;
+        db = n_db;
+        size = Math.max( 1, n_size );
+        autoCommit = n_autoCommit;
+    }
+
+    /**
+     * Sets how long a connection may be idle before it is checked on borrow.
+     *
+     * Defaults to the lad.db.validateIdle system property, or 5000.
+     *
+     * @param millis Idle time in milliseconds (0 checks on every borrow)
+     */
+    public static void setValidateIdle( long millis )
+    {
+        validateIdle = Math.max( 0, millis );
+    }
+
+    /**
+     * Borrows a connection, waiting for one if all of them are in use.
+     *
+     * @return A checked connection
+     * @throws SQLException Thrown if a connection fails to open
+     */
+    PooledConnection borrow() throws SQLException
+    {
+        PooledConnection pc = null;
+        long start = System.nanoTime();
+        synchronized( this )
+        {
+            boolean reserved = false;
+            while( idle.isEmpty() && !reserved )
+            {
+                if( opened < size )
+                {
+                    // Reserve the slot, the connection is opened below
+                    opened++;
+                    reserved = true;
+                }
+                else
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException( "Interrupted waiting for a " +
+                                                name + " connection." );
+                    }
+                }
+            }
+            if( !reserved )
+            {
+                pc = idle.poll();
+            }
+            busy++;
+        }
+
+        try
+        {
+            if( pc == null )
+            {
+                pc = new PooledConnection( this, open() );
+            }
+            else
+            {
+                check( pc );
+            }
+        }
+        catch( SQLException e )
+        {
+            synchronized( this )
+            {
+                // The connection is lost, so free up its slot
+                opened--;
+                busy--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        long now = System.nanoTime();
+        pc.requestedAt = start;
+        pc.borrowedAt = now;
+        synchronized( this )
+        {
+            long waited = now - start;
+            borrows++;
+            waitNanos += waited;
+            maxWaitNanos = Math.max( maxWaitNanos, waited );
+        }
+        return pc;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param pc Connection being returned
+     */
+    synchronized void release( PooledConnection pc )
+    {
+        pc.releasedAt = System.nanoTime();
+        busyNanos += pc.releasedAt - pc.borrowedAt;
+        busy--;
+        idle.add( pc );
+        notifyAll();
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    synchronized void close()
+    {
+        for( PooledConnection pc : idle )
+        {
+            pc.close();
+        }
+        opened -= idle.size();
+        idle.clear();
+    }
+
+    /**
+     * Checks a connection before it is handed out and reopens it if needed.
+     *
+     * @param pc Connection to check
+     * @throws SQLException Thrown if the connection fails to reopen
+     */
+    private void check( PooledConnection pc ) throws SQLException
+    {
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() -
+                                                         pc.releasedAt );
+        if( !pc.suspect && idleMillis < validateIdle )
+        {
+            return;
+        }
+
+        boolean valid;
+        try
+        {
+            valid = pc.getConnection().isValid( 2 );
+        }
+        catch( SQLException e )
+        {
+            valid = false;
+        }
+
+        if( valid )
+        {
+            pc.suspect = false;
+        }
+        else
+        {
+            Debug.log( "Reopening " + name + " connection", "MySQL" );
+            pc.replace( open() );
+            synchronized( this )
+            {
+                reconnects++;
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection for this pool
+     *
+     * @return The opened connection
+     * @throws SQLException Thrown if the connection fails to open
+     */
+    private Connection open() throws SQLException
+    {
+        Connection conn = db.openConnection();
+        conn.setAutoCommit( autoCommit );
+        return conn;
+    }
+
+    /**
+     * Gets the maximum number of connections in the pool
+     *
+     * @return Size of the pool
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the number of times a connection was borrowed
+     *
+     * @return Borrows since startup
+     */
+    public synchronized long getBorrows()
+    {
+        return borrows;
+    }
+
+    /**
+     * Gets the average time borrowers waited for a connection
+     *
+     * @return Average wait in milliseconds
+     */
+    public synchronized double getAverageWait()
+    {
+        return borrows == 0 ? 0 : waitNanos / 1e6 / borrows;
+    }
+
+    /**
+     * Gets the longest time a borrower waited for a connection
+     *
+     * @return Longest wait in milliseconds
+     */
+    public synchronized double getMaxWait()
+    {
+        return maxWaitNanos / 1e6;
+    }
+
+    /**
+     * Gets the fraction of the pool's capacity that has been in use since the
+     * pool was created.
+     *
+     * @return Utilisation between 0 and 1
+     */
+    public synchronized double getUtilisation()
+    {
+        long elapsed = System.nanoTime() - created;
+        if( elapsed <= 0 )
+        {
+            return 0;
+        }
+        return Math.min( 1.0, busyNanos / ( (double)elapsed * size ) );
+    }
+
+    /**
+     * Gets the number of connections currently borrowed
+     *
+     * @return Connections in use
+     */
+    public synchronized int getBusy()
+    {
+        return busy;
+    }
+
+    /**
+     * Gets the number of connections that failed their check and were
+     * reopened
+     *
+     * @return Reconnects since startup
+     */
+    public synchronized long getReconnects()
+    {
+        return reconnects;
+    }
+
+    /**
+     * Summarizes the pool's metrics
+     *
+     * @return Metrics as a single line
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( "%s pool: %d/%d busy, %d borrows, " +
+                              "%.2fms avg wait, %.2fms max wait, " +
+                              "%.1f%% utilised, %d reconnects", name, busy,
+                              size, borrows, getAverageWait(), getMaxWait(),
+                              getUtilisation() * 100, reconnects );
+    }
+}
@@ -1,9 +1,20 @@
 package lad.db;
 
-import java.sql.Connection;
+import java.io.IOException;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import lad.data.GameException;
 import lad.game.Debug;
 
@@ -29,6 +40,16 @@ public abstract class DBManager
      */
     public abstract TableProfile[] profiles();
 
+    /**
+     * Called once every table of every manager being initialized has been
+     * loaded.
+     *
+     * Override to drop anything only needed while loading.
+     */
+    protected void loaded()
+    {
+    }
+
     /**
      * Initializes the table.
      *
@@ -37,75 +58,471 @@ public abstract class DBManager
      * Once the table is known to be good, all rows are pulled and sent through
      * the profile for handling.  Any errors that occur during this process are
      * fatal and will cause the server to shutdown immediately.
+     *
+     * @see lad.db.DBManager#initializeAll(lad.db.DBManager[])
      */
     public void initialize()
     {
-        TableProfile[] profs = profiles();
-        final int proflen = profs.length;
-        Connection conn = MySQLDB.getConn();
+        initializeAll( this );
+    }
+
+    /**
+     * Initializes the tables of several managers.
+     *
+     * Every table is validated first, one after another, since that may
+     * change the structure of the database.  The IDBLOCKS table used by
+     * IdAllocator is always validated before the others.  After that the
+     * tables are loaded concurrently, each on its own pooled connection.  The
+     * rows are streamed from the server and handed to the profiles as they
+     * arrive instead of being buffered by the driver.  A report of the
+     * rows, estimated bytes and time of each table is logged to the Startup
+     * region once everything is loaded.  Any errors that occur during this
+     * process are fatal and will cause the server to shutdown immediately.
+     *
+     * Before anything is read the delayed writes replayed from the log are
+     * flushed.  If every table to load is a SnapshotProfile and the snapshot
+     * file matches them, the tables are read from the snapshot instead and
+     * caught up with the database, see Snapshot.
+     *
+     * Tables of different profiles must not share the structures their rows
+     * are loaded into, since they may be loaded at the same time.
+     *
+     * @param managers Managers to initialize
+     */
+    public static void initializeAll( DBManager... managers )
+    {
+        List< TableProfile > loads = new ArrayList<>();
+        validate( IdAllocator.getProfile() );
+        for( DBManager manager : managers )
+        {
+            for( TableProfile profile : manager.profiles() )
+            {
+                validate( profile );
+                if( profile.loadData() )
+                {
+                    loads.add( profile );
+                }
+            }
+        }
+
+        // Writes replayed from the log must be in the tables first
+        MySQLDB.flush();
+        if( !loads.isEmpty() )
+        {
+            Snapshot snapshot = Snapshot.open( loads );
+            if( snapshot != null )
+            {
+                restoreAll( snapshot, loads );
+            }
+            else
+            {
+                loadAll( loads );
+            }
+        }
+
+        for( DBManager manager : managers )
+        {
+            manager.loaded();
+        }
+    }
+
+    /**
+     * Loads the tables from the database concurrently.  Errors are fatal.
+     *
+     * @param loads Profiles of the tables to load
+     */
+    private static void loadAll( List< TableProfile > loads )
+    {
+        // Leave a connection free for anything loadRow has to query
+        int threads = Math.min( loads.size(), Math.max( 1,
+                MySQLDB.getPool( MySQLDB.Lane.SYNC ).getSize() - 1 ) );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List< Future< TableLoad > > results = new ArrayList<>();
+        long start = System.nanoTime();
+        for( final TableProfile profile : loads )
+        {
+            results.add( executor.submit( new Callable< TableLoad >()
+            {
+                @Override
+                public TableLoad call() throws SQLException
+                {
+                    return load( profile );
+                }
+            } ) );
+        }
+        executor.shutdown();
+
+        long totalRows = 0;
+        long totalBytes = 0;
+        for( int i = 0; i < results.size(); i++ )
+        {
+            try
+            {
+                TableLoad result = results.get( i ).get();
+                totalRows += result.rows;
+                totalBytes += result.bytes;
+                Debug.log( result.toString(), "Startup" );
+            }
+            catch( ExecutionException | InterruptedException e )
+            {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                System.err.println( "Error while initializing " +
+                                    loads.get( i ).tableName() + ": " +
+                                    cause.toString() );
+                System.exit( -1 );
+            }
+        }
+        Debug.log( String.format( "Loaded %d tables: %d rows, %d KB in " +
+                                  "%d ms on %d threads", loads.size(),
+                                  totalRows, totalBytes / 1024,
+                                  TimeUnit.NANOSECONDS.toMillis(
+                                          System.nanoTime() - start ),
+                                  threads ), "Startup" );
+    }
+
+    /**
+     * Reads the tables from a snapshot and catches them up.
+     *
+     * The tables are read from the snapshot concurrently.  They are caught
+     * up one after another in the order they were given, since rows caught
+     * up in one table may refer to rows of an earlier one.  Errors are fatal.
+     *
+     * @param snapshot Snapshot matching every table
+     * @param loads    Profiles of the tables to load
+     */
+    private static void restoreAll( final Snapshot snapshot,
+                                    List< TableProfile > loads )
+    {
+        int threads = Math.min( loads.size(),
+                                Runtime.getRuntime().availableProcessors() );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List< Future< Integer > > results = new ArrayList<>();
+        long start = System.nanoTime();
+        for( final TableProfile profile : loads )
+        {
+            results.add( executor.submit( new Callable< Integer >()
+            {
+                @Override
+                public Integer call() throws IOException
+                {
+                    return snapshot.restore( (SnapshotProfile)profile );
+                }
+            } ) );
+        }
+        executor.shutdown();
 
-        for( int i = 0; i < proflen; i++ )
+        long totalBytes = 0;
+        for( int i = 0; i < results.size(); i++ )
         {
-            String[] tableHeaders = profs[ i ].tableHeaders();
-            String   tableName = profs[ i ].tableName();
-            String   createStr = profs[ i ].createString();
-            MySQLDB db = MySQLDB.getInstance();
             try
             {
-                db.validateTable( tableName, createStr );
+                totalBytes += results.get( i ).get();
             }
-            catch( SQLException e )
+            catch( ExecutionException | InterruptedException e )
             {
-                System.err.println( "Error with " + tableName + " table:" +
-                                    e.toString() );
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                System.err.println( "Error while restoring " +
+                                    loads.get( i ).tableName() + ": " +
+                                    cause.toString() );
                 System.exit( -1 );
             }
+        }
+        long restored = System.nanoTime();
+
+        for( TableProfile profile : loads )
+        {
             try
             {
-                db.validateStructure( tableHeaders, tableName );
+                int[] counts = snapshot.catchUp( (SnapshotProfile)profile );
+                Debug.log( String.format( "Caught up %s: %d rows changed, " +
+                                          "%d removed", profile.tableName(),
+                                          counts[ 0 ], counts[ 1 ] ),
+                           "Startup" );
             }
             catch( SQLException e )
             {
-                System.err.println( "Error with " + tableName + " headers." +
+                System.err.println( "Error while catching up " +
+                                    profile.tableName() + ": " +
                                     e.toString() );
-                    System.exit( -1 );
+                System.exit( -1 );
             }
-            catch( GameException g )
+        }
+        Debug.log( String.format( "Restored %d tables: %d KB in %d ms, " +
+                                  "caught up in %d ms", loads.size(),
+                                  totalBytes / 1024,
+                                  TimeUnit.NANOSECONDS.toMillis(
+                                          restored - start ),
+                                  TimeUnit.NANOSECONDS.toMillis(
+                                          System.nanoTime() - restored ) ),
+                   "Startup" );
+    }
+
+    /**
+     * Validates the table of a profile and prepares the profile.
+     *
+     * If the headers do not match/do not exist, then the table is
+     * re/created.  Errors are fatal.
+     *
+     * @param profile Profile of the table
+     */
+    private static void validate( TableProfile profile )
+    {
+        String[] tableHeaders = profile.tableHeaders();
+        String   tableName = profile.tableName();
+        String   createStr = profile.createString();
+        MySQLDB db = MySQLDB.getInstance();
+        try
+        {
+            db.validateTable( tableName, createStr );
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Error with " + tableName + " table:" +
+                                e.toString() );
+            System.exit( -1 );
+        }
+        try
+        {
+            db.validateStructure( tableHeaders, tableName );
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Error with " + tableName + " headers." +
+                                e.toString() );
+                System.exit( -1 );
+        }
+        catch( GameException g )
+        {
+            if( upgrade( profile ) )
             {
-                Debug.log( "Recreating table " + tableName, "Thread" );
-                try
-                {
-                    db.dropStructure( tableName );
-                    db.validateTable( tableName, createStr );
-                }
-                catch( SQLException e )
-                {
-                    System.err.println( "Can't drop table " + tableName +
-                                        e.toString() );
-                    System.exit( -1 );
-                }
+                Debug.log( "Added the updated column to " + tableName,
+                           "Thread" );
             }
+            else
+            {
+                recreate( tableName, createStr );
+            }
+        }
+
+        try
+        {
+            profile.postinit();
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Error while initializing " + tableName +
+                                ": " + e.toString() );
+            System.exit( -1 );
+        }
+    }
+
+    /**
+     * Adds the updated column of Snapshot to a table that only lacks that.
+     *
+     * @param profile Profile of the table
+     * @return True if the column was added, false if the table is different
+     *         in some other way
+     */
+    private static boolean upgrade( TableProfile profile )
+    {
+        String[] headers = profile.tableHeaders();
+        if( !( profile instanceof SnapshotProfile ) ||
+            !Snapshot.UPDATED_COLUMN.equals( headers[ headers.length - 1 ] ) )
+        {
+            return false;
+        }
+        MySQLDB db = MySQLDB.getInstance();
+        try
+        {
+            db.validateStructure( Arrays.copyOf( headers, headers.length - 1 ),
+                                  profile.tableName() );
+            db.alterTable( profile.tableName(), "ADD COLUMN " +
+                           Snapshot.UPDATED_DEFINITION + ", ADD " +
+                           Snapshot.UPDATED_INDEX );
+            return true;
+        }
+        catch( GameException g )
+        {
+            return false;
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Can't add the updated column to " +
+                                profile.tableName() + e.toString() );
+            System.exit( -1 );
+            return false;
+        }
+    }
 
+    /**
+     * Drops a table and creates it again.  Errors are fatal.
+     *
+     * @param tableName Name of the table
+     * @param createStr String used to create the table
+     */
+    private static void recreate( String tableName, String createStr )
+    {
+        MySQLDB db = MySQLDB.getInstance();
+        Debug.log( "Recreating table " + tableName, "Thread" );
+        try
+        {
+            db.dropStructure( tableName );
+            db.validateTable( tableName, createStr );
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Can't drop table " + tableName +
+                                e.toString() );
+            System.exit( -1 );
+        }
+    }
+
+    /**
+     * Streams every row of a profile's table into the profile.
+     *
+     * The backend's streaming fetch size on a forward only, read only
+     * statement makes the driver stream the rows instead of reading the
+     * whole result into memory.
+     *
+     * @param profile Profile of the table
+     * @return Rows, estimated bytes and time of the load
+     * @throws SQLException Thrown if the select or a row fails
+     */
+    private static TableLoad load( TableProfile profile ) throws SQLException
+    {
+        TableLoad result = new TableLoad( profile.tableName() );
+        long start = System.nanoTime();
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            Statement stmt = pc.getConnection().createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+            stmt.setFetchSize( MySQLDB.getBackend().streamingFetchSize() );
             try
             {
-                profs[ i ].postinit();
-                if( profs[ i ].loadData() )
+                ResultSet rs = stmt.executeQuery( "SELECT * FROM " +
+                                                  result.table );
+                int[] sizes = columnSizes( rs.getMetaData() );
+                while( rs.next() )
                 {
-                    Statement stmt = conn.createStatement();
-                    ResultSet result = stmt.executeQuery( "SELECT * FROM " +
-                                                        tableName );
-                    while( result.next() )
+                    profile.loadRow( rs );
+                    result.rows++;
+                    for( int i = 0; i < sizes.length; i++ )
                     {
-                        profs[ i ].loadRow( result );
+                        if( sizes[ i ] >= 0 )
+                        {
+                            result.bytes += sizes[ i ];
+                        }
+                        else
+                        {
+                            String value = rs.getString( i + 1 );
+                            result.bytes += value == null ? 0 :
+                                            value.length();
+                        }
                     }
                 }
             }
-            catch( SQLException e )
+            finally
             {
-                System.err.println( "Error while initializing " + tableName +
-                                    ": " + e.toString() );
-                System.exit( -1 );
+                // Closing also discards any rows left in the stream
+                stmt.close();
             }
         }
+        finally
+        {
+            pc.release();
+        }
+        result.millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() -
+                                                       start );
+        return result;
+    }
+
+    /**
+     * Gets the size in bytes of each column of a result.
+     *
+     * @param meta Metadata of the result
+     * @return Size of each column, or -1 if it depends on the value
+     * @throws SQLException Thrown if the metadata fails
+     */
+    private static int[] columnSizes( ResultSetMetaData meta )
+            throws SQLException
+    {
+        int[] sizes = new int[ meta.getColumnCount() ];
+        for( int i = 0; i < sizes.length; i++ )
+        {
+            switch( meta.getColumnType( i + 1 ) )
+            {
+                case Types.TINYINT:
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    sizes[ i ] = 1;
+                    break;
+                case Types.SMALLINT:
+                    sizes[ i ] = 2;
+                    break;
+                case Types.INTEGER:
+                case Types.REAL:
+                    sizes[ i ] = 4;
+                    break;
+                case Types.BIGINT:
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.TIMESTAMP:
+                    sizes[ i ] = 8;
+                    break;
+                default:
+                    sizes[ i ] = -1;
+                    break;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Result of loading a single table
+     */
+    private static class TableLoad
+    {
+        /**
+         * Name of the table
+         */
+        private final String table;
+
+        /**
+         * Number of rows loaded
+         */
+        private long rows = 0;
+
+        /**
+         * Estimated number of bytes loaded
+         */
+        private long bytes = 0;
+
+        /**
+         * Milliseconds the load took
+         */
+        private long millis = 0;
+
+        /**
+         * Ctor
+         *
+         * @param n_table Name of the table
+         */
+        TableLoad( String n_table )
+        {
+            table = n_table;
+        }
+
+        /**
+         * Summarizes the load
+         *
+         * @return Table, rows, bytes and time as a single line
+         */
+        @Override
+        public String toString()
+        {
+            return String.format( "Loaded %s: %d rows, %d KB in %d ms", table,
+                                  rows, bytes / 1024, millis );
+        }
     }
 }
@@ -0,0 +1,1183 @@
+package lad.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import lad.game.Debug;
+import lad.game.Histogram;
+import lad.game.LADJava;
+
+/**
+ * Writes the queued statements of one partition in the background.
+ *
+ * MySQLDB runs one of these for each partition of the delayed writes, each
+ * on its own thread and on its own pooled connection.  Every write of a row
+ * goes to the same partition so the writes of a row stay in order.
+ *
+ * The queue is a bounded ring buffer, so queueing never locks unless the
+ * queue is full.  What happens then depends on MySQLDB's full policy: the
+ * caller blocks until there is room, the write is spilled to a file that is
+ * written once the queue is empty, or a low priority write is dropped.
+ *
+ * Each time the runner wakes up it takes up to drainSize writes from the
+ * queue, adds them to JDBC batches (one for each distinct SQL) and commits
+ * them as a single transaction.  Batches are run in the order their first
+ * write was queued.  If a write would end up in a batch that runs before
+ * an earlier write of the same row (or before an earlier raw statement),
+ * the batches collected so far are run first.  The upserts of a table are
+ * collected the same way, but are run as INSERT statements of many rows, up
+ * to MySQLDB's rows per upsert.
+ *
+ * If the partition has a log, every write is appended to it before it is
+ * queued and its record is marked committed once the write is committed (or
+ * replaced by a newer write, or dropped).  A drain that fails because the
+ * database can not be reached is tried again until the server stops, and
+ * whatever is not written by then is replayed from the log on the next
+ * start.  A drain that fails for any other reason is rolled back and written
+ * again in pieces of up to MySQLDB's rows per upsert, and a piece that still
+ * fails one write at a time.  Only a write that fails on its own is dropped.
+ *
+ * @author msflowers
+ */
+class DelayedRunner implements Runnable
+{
+    /**
+     * The writes were committed
+     */
+    private static final int WRITTEN = 0;
+
+    /**
+     * The database could not be reached, the writes should be tried again
+     */
+    private static final int UNREACHABLE = 1;
+
+    /**
+     * A statement failed, the writes were rolled back
+     */
+    private static final int FAILED = 2;
+
+    /**
+     * Partition the runner writes
+     */
+    private final int partition;
+
+    /**
+     * Pool the runner borrows its connection from
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * Writes waiting to be run, in the order they were queued
+     */
+    private final RingBuffer< Slot > queue;
+
+    /**
+     * Slots of the updates currently waiting in the queue, by row and SQL
+     */
+    private final ConcurrentHashMap< PendingWrite.Key, Slot > queuedRows =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Overflow file used when the queue is full and the policy is to spill
+     */
+    private final SpillFile spill;
+
+    /**
+     * Log the writes are appended to before they are queued, null if the
+     * writes are not logged
+     */
+    private final WriteAheadLog log;
+
+    /**
+     * Time (System.nanoTime) the log was last forced by the runner
+     */
+    private long lastSync = System.nanoTime();
+
+    /**
+     * True while writes are going to the spill file instead of the queue.
+     * Only changed while holding the spill file's lock.
+     */
+    private volatile boolean spilling = false;
+
+    /**
+     * Thread running the runner
+     */
+    private volatile Thread thread = null;
+
+    /**
+     * True while the runner is parked waiting for writes
+     */
+    private volatile boolean sleeping = false;
+
+    /**
+     * True while the queue is being emptied
+     */
+    private volatile boolean draining = false;
+
+    /**
+     * Number of times the runner started emptying the queue
+     */
+    private volatile long passesStarted = 0;
+
+    /**
+     * Number of times the runner finished emptying the queue
+     */
+    private volatile long passesFinished = 0;
+
+    /**
+     * Number of rows written
+     */
+    private volatile long rowsWritten = 0;
+
+    /**
+     * Number of rows not written because a newer write replaced them
+     */
+    private final AtomicLong rowsCoalesced = new AtomicLong();
+
+    /**
+     * Number of rows dropped because the queue was full
+     */
+    private final AtomicLong rowsShed = new AtomicLong();
+
+    /**
+     * Number of rows sent to the spill file because the queue was full
+     */
+    private final AtomicLong rowsSpilled = new AtomicLong();
+
+    /**
+     * Total nanoseconds callers spent blocked on a full queue
+     */
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Ctor
+     *
+     * @param n_partition Partition the runner writes
+     * @param n_pool      Pool the runner borrows its connection from
+     * @param capacity    Capacity of the queue
+     * @param spillFile   Overflow file used when the queue is full
+     * @param n_log       Log of the writes, null to not log them
+     */
+    DelayedRunner( int n_partition, ConnectionPool n_pool, int capacity,
+                   File spillFile, WriteAheadLog n_log )
+    {
+        partition = n_partition;
+        pool = n_pool;
+        queue = new RingBuffer<>( capacity );
+        spill = new SpillFile( spillFile );
+        log = n_log;
+    }
+
+    /**
+     * Adds a write to the queue.
+     *
+     * If an update of the same row with the same SQL is still waiting, the
+     * newer write takes its place instead.  If the queue is full, what
+     * happens depends on MySQLDB's full policy.  The write is appended to the
+     * log first.
+     *
+     * @param write Write to add
+     */
+    void addStmt( PendingWrite write )
+    {
+        Entry entry = new Entry( write, append( write ) );
+        long now = System.nanoTime();
+        if( spilling && spillWrite( entry, now ) )
+        {
+            return;
+        }
+
+        PendingWrite.Key key = write.getKey();
+        Slot slot = new Slot( entry, now );
+        if( key != null )
+        {
+            while( true )
+            {
+                // Replace the waiting update of the row if there is one
+                Slot waiting = queuedRows.get( key );
+                if( waiting == null )
+                {
+                    if( queuedRows.putIfAbsent( key, slot ) == null )
+                    {
+                        break;
+                    }
+                }
+                else
+                {
+                    Entry replaced = waiting.replace( entry );
+                    if( replaced != null )
+                    {
+                        commitLogged( replaced );
+                        rowsCoalesced.incrementAndGet();
+                        return;
+                    }
+
+                    // The runner already took it, so it can't be replaced
+                    queuedRows.remove( key, waiting );
+                }
+            }
+        }
+
+        while( !queue.offer( slot ) )
+        {
+            if( handleFull( slot ) )
+            {
+                return;
+            }
+        }
+
+        // Only wake the runner early if a full drain is waiting,
+        // otherwise it wakes up on its own after the max delay
+        if( sleeping && queue.size() >= MySQLDB.getDrainSize() )
+        {
+            wake();
+        }
+    }
+
+    /**
+     * Handles a write that does not fit in the queue.
+     *
+     * @param slot Slot of the write
+     * @return True if the write was handled, false if it should be offered
+     *         again
+     */
+    private boolean handleFull( Slot slot )
+    {
+        // Only this caller can take the slot since it is not queued
+        MySQLDB.FullPolicy policy = MySQLDB.getFullPolicy();
+        if( policy == MySQLDB.FullPolicy.SHED &&
+            slot.entry.write.isSheddable() )
+        {
+            commitLogged( slot.take() );
+            unmap( slot );
+            rowsShed.incrementAndGet();
+            return true;
+        }
+        else if( policy == MySQLDB.FullPolicy.SPILL )
+        {
+            Entry spilled = slot.take();
+            unmap( slot );
+            synchronized( spill )
+            {
+                // Everything after this goes to the file as well so that
+                // nothing gets ahead of the spilled write
+                spilling = true;
+                appendSpill( spilled, slot.enqueued );
+            }
+            return true;
+        }
+
+        // Block until the runner makes room
+        long start = System.nanoTime();
+        wake();
+        LockSupport.parkNanos( 100000 );
+        long blocked = System.nanoTime() - start;
+        blockedNanos.addAndGet( blocked );
+        MySQLDB.recordIO( blocked );
+        return false;
+    }
+
+    /**
+     * Appends a write to the log.
+     *
+     * If the log fails to write, the write is still queued but would not
+     * survive a restart.
+     *
+     * @param write Write to append
+     * @return Position of its record, -1 if it was not logged
+     */
+    private long append( PendingWrite write )
+    {
+        if( log == null )
+        {
+            return -1;
+        }
+        try
+        {
+            return log.append( write );
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Logging delayed write failed." );
+            System.err.println( e.toString() );
+            return -1;
+        }
+    }
+
+    /**
+     * Marks the record of a write committed, so it is not replayed
+     *
+     * @param entry Entry of the write, may be null
+     */
+    private void commitLogged( Entry entry )
+    {
+        if( entry != null && entry.position >= 0 )
+        {
+            log.commit( entry.position );
+        }
+    }
+
+    /**
+     * Forces the log to disk.
+     *
+     * @throws IOException Thrown if the log could not be forced
+     */
+    void syncLog() throws IOException
+    {
+        if( log != null )
+        {
+            log.sync();
+        }
+    }
+
+    /**
+     * Gets the number of log segments that still hold writes not committed
+     *
+     * @return Segment count, 0 if the writes are not logged
+     */
+    int getLogSegments()
+    {
+        return log == null ? 0 : log.getSegmentCount();
+    }
+
+    /**
+     * Removes a slot from the coalescing map if it is still mapped
+     *
+     * @param slot Slot to remove
+     */
+    private void unmap( Slot slot )
+    {
+        if( slot.key != null )
+        {
+            queuedRows.remove( slot.key, slot );
+        }
+    }
+
+    /**
+     * Appends a write to the spill file if the runner is spilling.
+     *
+     * @param entry    Entry of the write to append
+     * @param enqueued Time (System.nanoTime) the write was queued
+     * @return True if the write was spilled, false if spilling has stopped
+     */
+    private boolean spillWrite( Entry entry, long enqueued )
+    {
+        synchronized( spill )
+        {
+            if( !spilling )
+            {
+                return false;
+            }
+            appendSpill( entry, enqueued );
+            return true;
+        }
+    }
+
+    /**
+     * Appends a write to the spill file.  The spill file's lock must be held.
+     *
+     * If the file fails to write, the write is counted as shed.  It is still
+     * in the log, so it is written on the next start.
+     *
+     * @param entry    Entry of the write to append
+     * @param enqueued Time (System.nanoTime) the write was queued
+     */
+    private void appendSpill( Entry entry, long enqueued )
+    {
+        try
+        {
+            spill.append( entry.write, enqueued, entry.position );
+            rowsSpilled.incrementAndGet();
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Spilling delayed write failed." );
+            System.err.println( e.toString() );
+            rowsShed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wakes up the runner.
+     */
+    void wake()
+    {
+        Thread t = thread;
+        if( t != null )
+        {
+            LockSupport.unpark( t );
+        }
+    }
+
+    /**
+     * Gets the number of writes waiting in the queue and the spill file
+     *
+     * @return Queue depth
+     */
+    long getDepth()
+    {
+        return queue.size() + spill.pending();
+    }
+
+    /**
+     * Checks if every queued write has been written
+     *
+     * @return True if nothing is queued or being written
+     */
+    boolean isIdle()
+    {
+        return !draining && getDepth() == 0;
+    }
+
+    /**
+     * Gets the age of the oldest write waiting to be committed
+     *
+     * @return Age in milliseconds, 0 if nothing is waiting
+     */
+    long getOldestAge()
+    {
+        long oldest;
+        Slot head = queue.peek();
+        if( head != null )
+        {
+            oldest = head.enqueued;
+        }
+        else if( spill.pending() > 0 )
+        {
+            oldest = spill.oldest();
+        }
+        else
+        {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - oldest );
+    }
+
+    /**
+     * Gets the number of rows written
+     *
+     * @return Rows written since startup
+     */
+    long getRowsWritten()
+    {
+        return rowsWritten;
+    }
+
+    /**
+     * Gets the number of rows not written because a newer write replaced them
+     *
+     * @return Rows coalesced since startup
+     */
+    long getRowsCoalesced()
+    {
+        return rowsCoalesced.get();
+    }
+
+    /**
+     * Gets the number of rows dropped because the queue was full
+     *
+     * @return Rows shed since startup
+     */
+    long getRowsShed()
+    {
+        return rowsShed.get();
+    }
+
+    /**
+     * Gets the number of rows sent to the spill file
+     *
+     * @return Rows spilled since startup
+     */
+    long getRowsSpilled()
+    {
+        return rowsSpilled.get();
+    }
+
+    /**
+     * Gets the time callers spent blocked on a full queue
+     *
+     * @return Blocked time in milliseconds
+     */
+    long getBlockedTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( blockedNanos.get() );
+    }
+
+    /**
+     * Waits on the queue to fill up or the max delay to pass, then writes
+     * what is waiting.  Writes what is left once the server stops.
+     */
+    @Override
+    public void run()
+    {
+        thread = Thread.currentThread();
+        Debug.log( "Started MySQL Delayed Runner Thread " + partition,
+                   "Thread" );
+        while( LADJava.running )
+        {
+            if( queue.size() < MySQLDB.getDrainSize() )
+            {
+                sleeping = true;
+                LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos(
+                        MySQLDB.getMaxDelay() ) );
+                sleeping = false;
+            }
+            emptyQueue();
+            intervalSync();
+        }
+        emptyQueue();
+        try
+        {
+            syncLog();
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Syncing the delayed write log failed." );
+            System.err.println( e.toString() );
+        }
+        MySQLDB.runnerStopped();
+        Debug.log( "Ended MySQL Delayed Runner Thread " + partition,
+                   "Thread" );
+    }
+
+    /**
+     * Forces the log if the INTERVAL sync policy is used and the interval
+     * has passed.
+     */
+    private void intervalSync()
+    {
+        if( log == null || MySQLDB.getLogSync() != MySQLDB.LogSync.INTERVAL )
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        if( now - lastSync < TimeUnit.MILLISECONDS.toNanos(
+                MySQLDB.getLogInterval() ) )
+        {
+            return;
+        }
+        lastSync = now;
+        try
+        {
+            log.sync();
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Syncing the delayed write log failed." );
+            System.err.println( e.toString() );
+        }
+    }
+
+    /**
+     * Drains the queue a transaction at a time until it is empty, then does
+     * the same with the spill file.
+     *
+     * Everything in the queue was queued before anything in the spill file,
+     * so the queue is always emptied first.  While the database can not be
+     * reached the same drain is tried again after each max delay.
+     */
+    private void emptyQueue()
+    {
+        draining = true;
+        passesStarted++;
+        try
+        {
+            drainQueue();
+        }
+        finally
+        {
+            passesFinished++;
+            draining = false;
+        }
+    }
+
+    /**
+     * Gets a barrier that is passed once every write queued so far has been
+     * committed (or dropped).
+     *
+     * A pass that is already running may have missed the writes queued
+     * during it, so the barrier is the end of the next pass.
+     *
+     * @return The barrier
+     * @see lad.db.DelayedRunner#isPassed(long)
+     */
+    long barrier()
+    {
+        return passesStarted + 1;
+    }
+
+    /**
+     * Checks if a barrier has been passed
+     *
+     * @param barrier Barrier from barrier()
+     * @return True if every write queued before it has been committed
+     */
+    boolean isPassed( long barrier )
+    {
+        return passesFinished >= barrier;
+    }
+
+    /**
+     * Drains the queue and the spill file until both are empty.
+     */
+    private void drainQueue()
+    {
+        int drainSize = MySQLDB.getDrainSize();
+        List< PendingWrite > drain = new ArrayList<>( drainSize );
+        List< Long > times = new ArrayList<>( drainSize );
+        List< Long > positions = new ArrayList<>( drainSize );
+        while( true )
+        {
+            Slot slot;
+            while( drain.size() < drainSize &&
+                   ( slot = queue.poll() ) != null )
+            {
+                Entry next = slot.take();
+                unmap( slot );
+                if( next != null )
+                {
+                    drain.add( next.write );
+                    times.add( slot.enqueued );
+                    positions.add( next.position );
+                }
+            }
+            if( drain.isEmpty() )
+            {
+                if( !readSpill( drainSize, drain, times, positions ) )
+                {
+                    return;
+                }
+            }
+            while( !writeDrain( drain, times, positions ) &&
+                   LADJava.running )
+            {
+                intervalSync();
+                LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos(
+                        MySQLDB.getMaxDelay() ) );
+            }
+            drain.clear();
+            times.clear();
+            positions.clear();
+        }
+    }
+
+    /**
+     * Reads the next writes from the spill file, and stops spilling once it
+     * is empty.
+     *
+     * @param max       Maximum number of writes to read
+     * @param drain     Filled with the writes read
+     * @param times     Filled with the time each write was queued
+     * @param positions Filled with the log position of each write
+     * @return True if any writes were read
+     */
+    private boolean readSpill( int max, List< PendingWrite > drain,
+                               List< Long > times, List< Long > positions )
+    {
+        synchronized( spill )
+        {
+            try
+            {
+                drain.addAll( spill.read( max, times, positions ) );
+            }
+            catch( IOException e )
+            {
+                System.err.println( "Reading spilled writes failed." );
+                System.err.println( e.toString() );
+            }
+            if( spill.pending() == 0 && queue.size() == 0 )
+            {
+                spilling = false;
+            }
+        }
+        return !drain.isEmpty();
+    }
+
+    /**
+     * Writes a drain of writes as a single transaction.
+     *
+     * If a statement fails, the drain is written again in pieces so that
+     * only the writes that fail on their own are dropped.  Writes that made
+     * it are removed from the lists, so trying again after a failed
+     * connection only writes the rest.
+     *
+     * @param drain     Writes in the order they were queued
+     * @param times     Time (System.nanoTime) each write was queued
+     * @param positions Log position of each write, -1 if not logged
+     * @return False if the database could not be reached and the rest of
+     *         the drain should be tried again, true if it was written
+     */
+    private boolean writeDrain( List< PendingWrite > drain, List< Long > times,
+                                List< Long > positions )
+    {
+        int status = tryWrite( drain, times, positions );
+        if( status == UNREACHABLE )
+        {
+            return false;
+        }
+        if( status == WRITTEN )
+        {
+            return true;
+        }
+
+        int piece = Math.max( 1, MySQLDB.getUpsertRows() );
+        while( !drain.isEmpty() )
+        {
+            int size = Math.min( piece, drain.size() );
+            status = tryWrite( drain.subList( 0, size ),
+                               times.subList( 0, size ),
+                               positions.subList( 0, size ) );
+            if( status == UNREACHABLE )
+            {
+                return false;
+            }
+            if( status == WRITTEN )
+            {
+                removeFirst( size, drain, times, positions );
+                continue;
+            }
+
+            // Find the writes of the piece that fail on their own
+            for( int i = 0; i < size; i++ )
+            {
+                status = tryWrite( drain.subList( 0, 1 ), times.subList( 0, 1 ),
+                                   positions.subList( 0, 1 ) );
+                if( status == UNREACHABLE )
+                {
+                    return false;
+                }
+                if( status == FAILED )
+                {
+                    System.err.println( "Dropped delayed write: " +
+                                        drain.get( 0 ).getSQL() );
+                    commitLogged( positions.subList( 0, 1 ) );
+                }
+                removeFirst( 1, drain, times, positions );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the first writes of a drain
+     *
+     * @param count     Number of writes to remove
+     * @param drain     Writes in the order they were queued
+     * @param times     Time each write was queued
+     * @param positions Log position of each write
+     */
+    private static void removeFirst( int count, List< PendingWrite > drain,
+                                     List< Long > times,
+                                     List< Long > positions )
+    {
+        drain.subList( 0, count ).clear();
+        times.subList( 0, count ).clear();
+        positions.subList( 0, count ).clear();
+    }
+
+    /**
+     * Writes some writes as a single transaction, rolling them back if any
+     * statement fails.  Only writes that were committed are marked committed
+     * in the log.
+     *
+     * @param drain     Writes in the order they were queued
+     * @param times     Time (System.nanoTime) each write was queued
+     * @param positions Log position of each write, -1 if not logged
+     * @return WRITTEN, UNREACHABLE or FAILED
+     */
+    private int tryWrite( List< PendingWrite > drain, List< Long > times,
+                          List< Long > positions )
+    {
+        // Batches, by SQL, in the order each SQL was first seen
+        Map< String, Batch > batches = new LinkedHashMap<>();
+
+        // Last batch that wrote each row
+        Map< PendingWrite.Key, Batch > rowBatches = new HashMap<>();
+
+        // Latest batch of raw statements
+        Batch rawBatch = null;
+
+        PooledConnection pc;
+        try
+        {
+            pc = pool.borrow();
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Delayed execution of SQL failed." );
+            System.err.println( e.toString() );
+            return UNREACHABLE;
+        }
+
+        try
+        {
+            for( PendingWrite write : drain )
+            {
+                String sql = write.isRaw() ? null : write.getSQL();
+                Upsert upsert = sql == null ? null : Upsert.forSQL( sql );
+                PendingWrite.Key row = write.getRowKey();
+                Batch batch = batches.get( sql );
+
+                // Run what is collected if this write would otherwise run
+                // ahead of something that was queued before it
+                if( batch != null &&
+                    ( batch.order < batches.size() - 1 &&
+                      ( write.isRaw() ||
+                        ( rawBatch != null &&
+                          rawBatch.order > batch.order ) ||
+                        ( row != null && rowBatches.containsKey( row ) &&
+                          rowBatches.get( row ).order > batch.order ) ) ) )
+                {
+                    runBatches( pc, batches.values() );
+                    batches.clear();
+                    rowBatches.clear();
+                    rawBatch = null;
+                    batch = null;
+                }
+
+                if( batch == null )
+                {
+                    if( upsert != null )
+                    {
+                        batch = new Batch( batches.size(), upsert );
+                    }
+                    else
+                    {
+                        batch = new Batch( batches.size(), write.isRaw() ?
+                                           pc.getStatement() :
+                                           pc.prepare( sql ) );
+                    }
+                    batches.put( sql, batch );
+                }
+
+                if( write.isRaw() )
+                {
+                    batch.stmt.addBatch( write.getSQL() );
+                    rawBatch = batch;
+                }
+                else if( upsert != null )
+                {
+                    batch.rows.add( write );
+                    rowBatches.put( row, batch );
+                }
+                else
+                {
+                    PreparedStatement pstmt = (PreparedStatement)batch.stmt;
+                    write.bind( pstmt );
+                    pstmt.addBatch();
+                    if( row != null )
+                    {
+                        rowBatches.put( row, batch );
+                    }
+                }
+            }
+
+            runBatches( pc, batches.values() );
+            pc.getConnection().commit();
+            commitLogged( positions );
+
+            rowsWritten += drain.size();
+            Histogram latency = MySQLDB.getCommitLatency();
+            long now = System.nanoTime();
+            for( long enqueued : times )
+            {
+                latency.record( TimeUnit.NANOSECONDS.toMicros( now -
+                                                               enqueued ) );
+            }
+            Debug.log( "Partition " + partition + " wrote " + drain.size() +
+                       " rows (" + rowsCoalesced + " coalesced, " +
+                       rowsWritten + " written)", "MySQL" );
+            return WRITTEN;
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Delayed execution of SQL failed." );
+            System.err.println( e.toString() );
+            pc.invalidate();
+            try
+            {
+                for( Batch batch : batches.values() )
+                {
+                    if( batch.stmt != null )
+                    {
+                        batch.stmt.clearBatch();
+                    }
+                }
+                pc.getConnection().rollback();
+            }
+            catch( SQLException r )
+            {
+                System.err.println( r.toString() );
+            }
+
+            return isConnectionError( e ) ? UNREACHABLE : FAILED;
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+
+    /**
+     * Marks the records of a drain committed
+     *
+     * @param positions Log position of each write, -1 if not logged
+     */
+    private void commitLogged( List< Long > positions )
+    {
+        for( long position : positions )
+        {
+            if( position >= 0 )
+            {
+                log.commit( position );
+            }
+        }
+    }
+
+    /**
+     * Checks if an error means the database could not be reached, as opposed
+     * to a problem with the statements themselves
+     *
+     * @param e The error
+     * @return True if the connection failed
+     */
+    private static boolean isConnectionError( SQLException e )
+    {
+        for( SQLException cause = e; cause != null;
+             cause = cause.getNextException() )
+        {
+            if( cause instanceof SQLTransientConnectionException ||
+                cause instanceof SQLNonTransientConnectionException ||
+                ( cause.getSQLState() != null &&
+                  cause.getSQLState().startsWith( "08" ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the collected batches in order
+     *
+     * @param pc      Connection the batches were collected on
+     * @param batches Batches to run
+     * @throws SQLException Thrown if a batch fails
+     */
+    private void runBatches( PooledConnection pc, Collection< Batch > batches )
+            throws SQLException
+    {
+        for( Batch batch : batches )
+        {
+            if( batch.upsert != null )
+            {
+                runUpserts( pc, batch.upsert, batch.rows );
+            }
+            else
+            {
+                batch.stmt.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Writes the upserts of a table, as many rows per statement as allowed.
+     *
+     * Whatever is left after the full statements is written with statements
+     * of a power of two rows, so each connection only prepares a few of them.
+     *
+     * @param pc     Connection to write on
+     * @param upsert Upsert of the table
+     * @param rows   Upserts in the order they were queued
+     * @throws SQLException Thrown if a statement fails
+     */
+    private void runUpserts( PooledConnection pc, Upsert upsert,
+                             List< PendingWrite > rows ) throws SQLException
+    {
+        int max = MySQLDB.getUpsertRows();
+        int params = upsert.getParamCount();
+        int start = 0;
+        while( start < rows.size() )
+        {
+            int count = rows.size() - start;
+            count = count >= max ? max : Integer.highestOneBit( count );
+            PreparedStatement pstmt = pc.prepare( upsert.getSQL( count ) );
+            for( int i = 0; i < count; i++ )
+            {
+                rows.get( start + i ).bind( pstmt, i * params );
+            }
+            pstmt.executeUpdate();
+            start += count;
+        }
+    }
+
+    /**
+     * A queued write and the position of its record in the log
+     */
+    private static class Entry
+    {
+        /**
+         * The write
+         */
+        private final PendingWrite write;
+
+        /**
+         * Position of its record in the log, -1 if it was not logged
+         */
+        private final long position;
+
+        /**
+         * Ctor
+         *
+         * @param n_write    The write
+         * @param n_position Position of its record in the log
+         */
+        Entry( PendingWrite n_write, long n_position )
+        {
+            write = n_write;
+            position = n_position;
+        }
+    }
+
+    /**
+     * Position of a write in the queue.
+     *
+     * A newer update of the same row takes over the position of the older one.
+     */
+    private static class Slot
+    {
+        /**
+         * Updater used to swap the entry
+         */
+        private static final AtomicReferenceFieldUpdater< Slot, Entry >
+                ENTRY = AtomicReferenceFieldUpdater.newUpdater(
+                        Slot.class, Entry.class, "entry" );
+
+        /**
+         * Entry at this position, null once it has been taken
+         */
+        private volatile Entry entry;
+
+        /**
+         * Key of the write, null if it may not be replaced
+         */
+        private final PendingWrite.Key key;
+
+        /**
+         * Time (System.nanoTime) the first write of the slot was queued
+         */
+        private final long enqueued;
+
+        /**
+         * Ctor
+         *
+         * @param n_entry    Entry at this position
+         * @param n_enqueued Time (System.nanoTime) the write was queued
+         */
+        Slot( Entry n_entry, long n_enqueued )
+        {
+            entry = n_entry;
+            key = n_entry.write.getKey();
+            enqueued = n_enqueued;
+        }
+
+        /**
+         * Replaces the entry with a newer one if it has not been taken yet
+         *
+         * @param newer The newer entry
+         * @return The entry replaced, or null if it was already taken
+         */
+        Entry replace( Entry newer )
+        {
+            while( true )
+            {
+                Entry current = entry;
+                if( current == null )
+                {
+                    return null;
+                }
+                if( ENTRY.compareAndSet( this, current, newer ) )
+                {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Takes the entry out of the slot so it can no longer be replaced
+         *
+         * @return The entry, or null if it was already taken
+         */
+        Entry take()
+        {
+            return ENTRY.getAndSet( this, null );
+        }
+    }
+
+    /**
+     * A JDBC batch being collected by the runner, or the upserts of a table
+     */
+    private static class Batch
+    {
+        /**
+         * Order the batch is run in
+         */
+        private final int order;
+
+        /**
+         * Statement the batch is collected on, null for upserts
+         */
+        private final Statement stmt;
+
+        /**
+         * Upsert of the table, null for other batches
+         */
+        private final Upsert upsert;
+
+        /**
+         * Upserts collected, in order
+         */
+        private final List< PendingWrite > rows = new ArrayList<>();
+
+        /**
+         * Ctor
+         *
+         * @param n_order Order the batch is run in
+         * @param n_stmt  Statement the batch is collected on
+         */
+        Batch( int n_order, Statement n_stmt )
+        {
+            order = n_order;
+            stmt = n_stmt;
+            upsert = null;
+        }
+
+        /**
+         * Ctor (upserts)
+         *
+         * @param n_order  Order the batch is run in
+         * @param n_upsert Upsert of the table
+         */
+        Batch( int n_order, Upsert n_upsert )
+        {
+            order = n_order;
+            stmt = null;
+            upsert = n_upsert;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package lad.db;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import lad.data.GameException;
 import lad.data.ModifierTarget;
 import lad.data.TrainerBattleStats;
@@ -12,19 +15,33 @@ import lad.data.UserExpTarget;
 /**
  * Manages all of the User EXP
  *
+ * Lookups do not lock, so views can read the EXP and statistics while the
+ * game loop changes them.  Changes to the indexes are synchronized.
+ *
  * @author msflowers
  */
 public class EXPManager extends DBManager
 {
     /**
-     * Internal list of exp
+     * EXP blocks by owner, each owner's blocks in slots by target and type
+     */
+    private final IntMap< Slots > expSlots = new IntMap<>();
+
+    /**
+     * Trainer battle statistics by the key of their row
+     */
+    private final LongMap< TrainerBattleStats > statsIndex = new LongMap<>();
+
+    /**
+     * Statistic blocks changed since the last flush
      */
-    private List< UserExp > exps = new LinkedList<>();
+    private final List< TrainerBattleStats > dirtyStats = new ArrayList<>();
 
     /**
-     * Internal list of trainer battle statistics
+     * Milliseconds between flushes of the changed statistic blocks
      */
-    private List< TrainerBattleStats > trainerBattleStats = new LinkedList<>();
+    private static volatile long statsFlushInterval =
+            Long.getLong( "lad.db.statsFlushInterval", 5000 );
 
     /**
      * List of values for the amount of experience required to grow a level
@@ -65,30 +82,65 @@ public class EXPManager extends DBManager
         };
     }
 
+    /**
+     * Gets every EXP block
+     *
+     * @return Unmodifiable copy of the list of the EXP blocks
+     */
+    public List< UserExp > getExps()
+    {
+        List< UserExp > ret = new ArrayList<>();
+        for( Slots slots : expSlots.values() )
+        {
+            ret.addAll( slots.list() );
+        }
+        return Collections.unmodifiableList( ret );
+    }
+
+    /**
+     * Removes every EXP block whose row is not in the given keys.
+     *
+     * Only drops them from the list, their rows are already gone.
+     *
+     * @param keys Keys of the EXP rows to keep
+     * @return Number of EXP blocks removed
+     */
+    public synchronized int retainExps( Set< Long > keys )
+    {
+        int removed = 0;
+        for( UserExp exp : getExps() )
+        {
+            if( !keys.contains( exp.getRowKey() ) )
+            {
+                Slots slots = expSlots.get( exp.getOwner() );
+                if( slots != null && slots.drop( exp ) )
+                {
+                    expSlots.remove( exp.getOwner() );
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
     /**
      * Gets all exp for the specified owner.
      *
-     * If no modifiers are found the list returned will simply be empty.
+     * If no modifiers are found the list returned will simply be empty.  The
+     * list is a read only view of the owner's EXP, in the order the blocks
+     * were added.
      *
      * @param owner Owner to get exp for
      * @return List of found exp
      */
     public static List< UserExp > getExpByUserID( int owner )
     {
-        List< UserExp > ret = new LinkedList<>();
-        ListIterator< UserExp > iter = getInstance().exps.listIterator();
-
-        while( iter.hasNext() )
+        Slots slots = getInstance().expSlots.get( owner );
+        if( slots == null )
         {
-            UserExp current = iter.next();
-
-            if( current.getOwner() == owner )
-            {
-                ret.add( current );
-            }
+            return Collections.emptyList();
         }
-
-        return ret;
+        return slots.list();
     }
 
     /**
@@ -102,19 +154,12 @@ public class EXPManager extends DBManager
     private static UserExp getExp( int user, UserExpTarget target,
                                   ModifierTarget type )
     {
-        ListIterator< UserExp > iter = getInstance().exps.listIterator();
-        while( iter.hasNext() )
+        Slots slots = getInstance().expSlots.get( user );
+        if( slots == null )
         {
-            UserExp current = iter.next();
-
-            if( current.getOwner() == user && current.getTarget() == target &&
-                current.getType() == type )
-            {
-                return current;
-            }
+            return null;
         }
-
-        return null;
+        return slots.get( target, type );
     }
 
     /**
@@ -129,14 +174,19 @@ public class EXPManager extends DBManager
                                      ModifierTarget type, int amount )
     {
         // Check if exp already exists and only needs to be added to
-        UserExp userExp = getExp( user, target, type );
-
-        // If it wasn't found then make a new one
-        if( userExp == null )
+        EXPManager manager = getInstance();
+        UserExp userExp;
+        synchronized( manager )
         {
-            userExp = UserExp.create( user, target.getValue(),
-                                      type.getValue() );
-            getInstance().exps.add( userExp );
+            userExp = getExp( user, target, type );
+
+            // If it wasn't found then make a new one
+            if( userExp == null )
+            {
+                userExp = UserExp.create( user, target.getValue(),
+                                          type.getValue() );
+                manager.addEXP( userExp );
+            }
         }
 
         // Increment it!
@@ -148,9 +198,15 @@ public class EXPManager extends DBManager
      *
      * @param exp EXP block to add
      */
-    public void addEXP( UserExp exp )
+    public synchronized void addEXP( UserExp exp )
     {
-        exps.add( exp );
+        Slots slots = expSlots.get( exp.getOwner() );
+        if( slots == null )
+        {
+            slots = new Slots();
+            expSlots.put( exp.getOwner(), slots );
+        }
+        slots.put( exp );
     }
 
     /**
@@ -257,19 +313,14 @@ public class EXPManager extends DBManager
      */
     public static TrainerBattleStats getBattleStats( int type, int id )
     {
-        ListIterator< TrainerBattleStats > iter =
-                getInstance().trainerBattleStats.listIterator();
-        while( iter.hasNext() )
+        TrainerBattleStats stats = getInstance().statsIndex.get(
+                TrainerBattleStats.rowKey( type, id ) );
+        if( stats == null )
         {
-            TrainerBattleStats current = iter.next();
-
-            if( current.getType() == type && current.getID() == id )
-            {
-                return current;
-            }
+            throw new GameException( 1,
+                                     "Trainer Battle Statistics not found." );
         }
-
-        throw new GameException( 1, "Trainer Battle Statistics not found." );
+        return stats;
     }
 
     /**
@@ -281,19 +332,8 @@ public class EXPManager extends DBManager
      */
     public static boolean battleStatsExist( int type, int id )
     {
-        ListIterator< TrainerBattleStats > iter =
-                getInstance().trainerBattleStats.listIterator();
-        while( iter.hasNext() )
-        {
-            TrainerBattleStats current = iter.next();
-
-            if( current.getType() == type && current.getID() == id )
-            {
-                return true;
-            }
-        }
-
-        return false;
+        return getInstance().statsIndex.get(
+                TrainerBattleStats.rowKey( type, id ) ) != null;
     }
 
     /**
@@ -311,30 +351,155 @@ public class EXPManager extends DBManager
                                        double doubles[] )
     {
         // Try to get the battle stats if they already exist
+        EXPManager manager = getInstance();
         TrainerBattleStats stats;
-        try
-        {
-            stats = getBattleStats( type, id );
-        }
-        catch( GameException ge )
+        synchronized( manager )
         {
-            // They don't exist so create them
-            stats = TrainerBattleStats.create( type, id );
-            getInstance().addBattleStats( stats );
+            stats = manager.statsIndex.get(
+                    TrainerBattleStats.rowKey( type, id ) );
+            if( stats == null )
+            {
+                // They don't exist so create them
+                stats = TrainerBattleStats.create( type, id );
+                manager.addBattleStats( stats );
+            }
         }
 
         // Add in the values
         stats.addValues( ints, doubles );
     }
 
+    /**
+     * Gets every statistic block
+     *
+     * @return Unmodifiable copy of the list of the statistic blocks
+     */
+    public List< TrainerBattleStats > getAllBattleStats()
+    {
+        return Collections.unmodifiableList( statsIndex.values() );
+    }
+
+    /**
+     * Removes every statistic block whose row is not in the given keys.
+     *
+     * Only drops them from the list, their rows are already gone.
+     *
+     * @param keys Keys of the statistic rows to keep
+     * @return Number of statistic blocks removed
+     */
+    public synchronized int retainBattleStats( Set< Long > keys )
+    {
+        int removed = 0;
+        for( TrainerBattleStats stats : statsIndex.values() )
+        {
+            if( !keys.contains( stats.getRowKey() ) )
+            {
+                statsIndex.remove( stats.getRowKey() );
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the EXP and statistics of a user and of its trainers.
+     *
+     * Only drops them from memory, used when the user is evicted from the
+     * working set.  Statistics that changed since the last flush are queued
+     * first.
+     *
+     * @param userid   ID of the user
+     * @param trainers IDs of the user's trainers
+     */
+    public synchronized void removeUser( int userid,
+                                         Collection< Integer > trainers )
+    {
+        expSlots.remove( userid );
+        removeStats( 1, userid );
+        for( int trainer : trainers )
+        {
+            removeStats( 2, trainer );
+        }
+    }
+
+    /**
+     * Removes a statistic block, queueing its values first
+     *
+     * @param type Type of the target of the statistic block
+     * @param id   ID of the target of the statistic block
+     */
+    private void removeStats( int type, int id )
+    {
+        TrainerBattleStats stats =
+                statsIndex.remove( TrainerBattleStats.rowKey( type, id ) );
+        if( stats != null )
+        {
+            stats.commit();
+        }
+    }
+
+    /**
+     * Remembers a statistic block that changed so the next flush writes it
+     *
+     * @param stats Statistic block that changed
+     */
+    public void markDirty( TrainerBattleStats stats )
+    {
+        dirtyStats.add( stats );
+    }
+
+    /**
+     * Writes every statistic block that changed since the last flush.
+     *
+     * Each block is written once with its current values no matter how
+     * often it changed.  Called by the game loop every flush interval and
+     * when the server stops, always from the game loop's thread.
+     *
+     * @return Number of blocks written
+     */
+    public static int flushBattleStats()
+    {
+        List< TrainerBattleStats > dirty = getInstance().dirtyStats;
+        int flushed = dirty.size();
+        for( TrainerBattleStats stats : dirty )
+        {
+            stats.commit();
+        }
+        dirty.clear();
+        return flushed;
+    }
+
+    /**
+     * Sets the time between flushes of the changed statistic blocks.
+     *
+     * Defaults to the lad.db.statsFlushInterval system property, or 5
+     * seconds.
+     *
+     * @param millis Milliseconds between flushes
+     */
+    public static void setStatsFlushInterval( long millis )
+    {
+        statsFlushInterval = Math.max( 0, millis );
+    }
+
+    /**
+     * Gets the time between flushes of the changed statistic blocks
+     *
+     * @return Milliseconds between flushes
+     */
+    public static long getStatsFlushInterval()
+    {
+        return statsFlushInterval;
+    }
+
     /**
      * Adds a battle statistic to the internal list.
      *
      * @param stats Battle statistics to add
      */
-    public void addBattleStats( TrainerBattleStats stats )
+    public synchronized void addBattleStats( TrainerBattleStats stats )
     {
-        trainerBattleStats.add( stats );
+        statsIndex.put( stats.getRowKey(), stats );
     }
 
     /**
@@ -351,4 +516,106 @@ public class EXPManager extends DBManager
     {
         private static final EXPManager INSTANCE = new EXPManager();
     }
+
+    /**
+     * The EXP blocks of a single owner.
+     *
+     * Every target and type pair has its own slot, so finding a block is a
+     * single array access.  The blocks are also listed in the order they
+     * were added, in a list that is replaced whole when a block is added or
+     * dropped, so views read it without locking.  Changes are made while
+     * holding the manager's lock.
+     */
+    private static final class Slots
+    {
+        /**
+         * Number of types of EXP
+         */
+        private static final int TYPES = ModifierTarget.values().length;
+
+        /**
+         * Blocks by slot
+         */
+        private final AtomicReferenceArray< UserExp > bySlot =
+                new AtomicReferenceArray<>( UserExpTarget.values().length *
+                                            TYPES );
+
+        /**
+         * Unmodifiable list of the blocks in the order they were added
+         */
+        private volatile List< UserExp > listed = Collections.emptyList();
+
+        /**
+         * Gets the slot of a target and type
+         *
+         * @param target Target of the EXP
+         * @param type   Type of the EXP
+         * @return Index into the slots
+         */
+        private static int slot( UserExpTarget target, ModifierTarget type )
+        {
+            return target.ordinal() * TYPES + type.ordinal();
+        }
+
+        /**
+         * Gets the block of a target and type
+         *
+         * @param target Target of the EXP
+         * @param type   Type of the EXP
+         * @return The block, or null if there is none
+         */
+        UserExp get( UserExpTarget target, ModifierTarget type )
+        {
+            return bySlot.get( slot( target, type ) );
+        }
+
+        /**
+         * Gets the blocks in the order they were added
+         *
+         * @return Unmodifiable list of the blocks
+         */
+        List< UserExp > list()
+        {
+            return listed;
+        }
+
+        /**
+         * Adds a block, replacing any block in its slot
+         *
+         * @param exp Block to add
+         */
+        void put( UserExp exp )
+        {
+            UserExp old = bySlot.getAndSet(
+                    slot( exp.getTarget(), exp.getType() ), exp );
+            List< UserExp > copy = new ArrayList<>( listed );
+            if( old != null )
+            {
+                copy.set( copy.indexOf( old ), exp );
+            }
+            else
+            {
+                copy.add( exp );
+            }
+            listed = Collections.unmodifiableList( copy );
+        }
+
+        /**
+         * Removes a block
+         *
+         * @param exp Block to remove
+         * @return True if the owner has no blocks left
+         */
+        boolean drop( UserExp exp )
+        {
+            if( bySlot.compareAndSet( slot( exp.getTarget(), exp.getType() ),
+                                      exp, null ) )
+            {
+                List< UserExp > copy = new ArrayList<>( listed );
+                copy.remove( exp );
+                listed = Collections.unmodifiableList( copy );
+            }
+            return listed.isEmpty();
+        }
+    }
 }
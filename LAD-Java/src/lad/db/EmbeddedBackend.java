@@ -0,0 +1,113 @@
+package lad.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+/**
+ * Backend for an embedded, file backed H2 database.
+ *
+ * Runs in the same process as the game, so the persistence path can be run
+ * and measured without a MySQL server.  H2 runs in its MySQL mode with
+ * identifiers that are not case sensitive, so the SQL of the profiles works
+ * as is.  The creation strings only lose what H2 does not take: unsigned
+ * columns and the table options.  The H2 jar has to be on the classpath.
+ *
+ * Only one process can open the database, which the ID allocator relies on.
+ *
+ * @author msflowers
+ */
+public class EmbeddedBackend implements StorageBackend
+{
+    /**
+     * Matches the unsigned attribute of a column
+     */
+    private static final Pattern UNSIGNED =
+            Pattern.compile( "\\s+unsigned", Pattern.CASE_INSENSITIVE );
+
+    /**
+     * Matches the table options after the column definitions
+     */
+    private static final Pattern TABLE_OPTIONS =
+            Pattern.compile( "\\)\\s*ENGINE\\b.*$",
+                             Pattern.CASE_INSENSITIVE | Pattern.DOTALL );
+
+    /**
+     * File of the database, without H2's extension
+     */
+    private final File file;
+
+    /**
+     * Ctor
+     *
+     * @param n_file File of the database, without H2's extension
+     */
+    public EmbeddedBackend( File n_file )
+    {
+        file = n_file;
+    }
+
+    /**
+     * Gets the name of the backend
+     *
+     * @return embedded
+     */
+    @Override
+    public String getName()
+    {
+        return "embedded";
+    }
+
+    /**
+     * Opens a new connection to the database, creating it if needed.
+     *
+     * @return The opened connection
+     * @throws SQLException Thrown if the connection fails
+     */
+    @Override
+    public Connection openConnection() throws SQLException
+    {
+        return DriverManager.getConnection( "jdbc:h2:file:" +
+                file.getAbsolutePath() + ";MODE=MySQL" +
+                ";DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE" +
+                ";LAZY_QUERY_EXECUTION=TRUE", "sa", "" );
+    }
+
+    /**
+     * Drops the unsigned attributes and the table options of a MySQL
+     * creation string
+     *
+     * @param createStr Creation string of the profile
+     * @return Creation string H2 accepts
+     */
+    @Override
+    public String createString( String createStr )
+    {
+        String ret = UNSIGNED.matcher( createStr ).replaceAll( "" );
+        return TABLE_OPTIONS.matcher( ret ).replaceFirst( ")" );
+    }
+
+    /**
+     * H2 reads lazily, so any fetch size streams the rows
+     *
+     * @return 1000
+     */
+    @Override
+    public int streamingFetchSize()
+    {
+        return 1000;
+    }
+
+    /**
+     * H2 does not take an expression in LAST_INSERT_ID
+     *
+     * @return false
+     */
+    @Override
+    public boolean supportsLastInsertId()
+    {
+        return false;
+    }
+}
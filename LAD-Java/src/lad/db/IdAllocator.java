@@ -0,0 +1,491 @@
+package lad.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import lad.data.GameException;
+import lad.game.Debug;
+
+/**
+ * Hands out IDs for the rows of a table without a round trip per row.
+ *
+ * The next free ID of each table is kept in the IDBLOCKS table.  An allocator
+ * reserves a whole block of IDs at a time by advancing that value in a single
+ * update, and hands them out from memory.  Once a block is three quarters
+ * used the next one is reserved in the background, so a caller only waits on
+ * the database if IDs are used up faster than a block can be fetched.  IDs of
+ * a block that is not used up before shutdown are skipped.  The first block
+ * of each table is only reserved after its entry is raised past every ID
+ * already in the table, so nothing touches IDBLOCKS until an ID is needed.
+ *
+ * On MySQL the new value is read back through LAST_INSERT_ID, so servers
+ * sharing the table never get the same block.  Other backends update and
+ * then select the value, which is only safe because a single process uses
+ * them and only one block of a table is reserved at a time.
+ *
+ * @author msflowers
+ */
+public class IdAllocator implements TableProfile
+{
+    /**
+     * Allocators, by table
+     */
+    private static final ConcurrentMap< String, IdAllocator > allocators =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Number of IDs reserved at a time
+     */
+    private static int blockSize = Integer.getInteger( "lad.db.idBlockSize",
+                                                       100 );
+
+    /**
+     * Thread that reserves the next blocks in the background
+     */
+    private static final ExecutorService prefetcher =
+            Executors.newSingleThreadExecutor( new ThreadFactory()
+    {
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "ID Prefetcher" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
+    /**
+     * SQL for reserving a block, the new value is returned as the generated
+     * key through LAST_INSERT_ID
+     */
+    private static final String reserveSQL = "UPDATE IDBLOCKS SET NEXTID = " +
+            "LAST_INSERT_ID( NEXTID + ? ) WHERE NAME = ?";
+
+    /**
+     * SQL for advancing the next ID without LAST_INSERT_ID
+     */
+    private static final String advanceSQL = "UPDATE IDBLOCKS SET NEXTID = " +
+            "NEXTID + ? WHERE NAME = ?";
+
+    /**
+     * SQL for reading the next ID after advancing it
+     */
+    private static final String readSQL =
+            "SELECT NEXTID FROM IDBLOCKS WHERE NAME = ?";
+
+    /**
+     * Table the IDs are for, null for the profile
+     */
+    private final String table;
+
+    /**
+     * Next ID of the current block
+     */
+    private long next = 0;
+
+    /**
+     * End (exclusive) of the current block
+     */
+    private long limit = 0;
+
+    /**
+     * Start of the block reserved ahead of time
+     */
+    private long spareNext = 0;
+
+    /**
+     * End (exclusive) of the block reserved ahead of time, 0 if there is none
+     */
+    private long spareLimit = 0;
+
+    /**
+     * True while a block is being reserved in the background
+     */
+    private boolean fetching = false;
+
+    /**
+     * True once the entry of the table was raised past its IDs
+     */
+    private volatile boolean seeded = false;
+
+    /**
+     * Number of blocks reserved
+     */
+    private final AtomicLong blocks = new AtomicLong();
+
+    /**
+     * Number of times a caller had to wait for a block
+     */
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * Ctor
+     *
+     * @param n_table Table the IDs are for
+     */
+    private IdAllocator( String n_table )
+    {
+        table = n_table;
+    }
+
+    /**
+     * Gets the allocator of a table, creating it if needed
+     *
+     * @param table Name of the table, its ID column must be called ID
+     * @return The allocator of the table
+     */
+    public static IdAllocator forTable( String table )
+    {
+        IdAllocator allocator = allocators.get( table );
+        if( allocator == null )
+        {
+            IdAllocator created = new IdAllocator( table );
+            allocator = allocators.putIfAbsent( table, created );
+            if( allocator == null )
+            {
+                allocator = created;
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * Sets the number of IDs reserved at a time.
+     *
+     * Only affects blocks reserved after the call.
+     *
+     * @param size Number of IDs in a block
+     */
+    public static void setBlockSize( int size )
+    {
+        if( size < 1 )
+        {
+            throw new IllegalArgumentException( "Block size must be " +
+                                                "positive." );
+        }
+        blockSize = size;
+    }
+
+    /**
+     * Gets the number of IDs reserved at a time
+     *
+     * @return Number of IDs in a block
+     */
+    public static int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Gets the next unused ID of the table.
+     *
+     * @return The ID
+     * @throws GameException Thrown if a block can not be reserved
+     */
+    public synchronized int next()
+    {
+        while( next == limit )
+        {
+            if( spareLimit != 0 )
+            {
+                next = spareNext;
+                limit = spareLimit;
+                spareLimit = 0;
+            }
+            else if( fetching )
+            {
+                stalls.incrementAndGet();
+                try
+                {
+                    wait();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new GameException( 3, "Interrupted while " +
+                                             "reserving IDs for " + table );
+                }
+            }
+            else
+            {
+                stalls.incrementAndGet();
+                try
+                {
+                    long[] block = reserve();
+                    next = block[ 0 ];
+                    limit = block[ 1 ];
+                }
+                catch( SQLException e )
+                {
+                    throw new GameException( 3, "Error while reserving IDs " +
+                                             "for " + table + ": " +
+                                             e.getMessage() );
+                }
+            }
+        }
+
+        int id = (int)next++;
+        if( !fetching && spareLimit == 0 &&
+            ( limit - next ) * 4 <= blockSize )
+        {
+            fetching = true;
+            prefetcher.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    prefetch();
+                }
+            } );
+        }
+        return id;
+    }
+
+    /**
+     * Reserves the next block in the background.
+     *
+     * Errors are only logged, the next caller to run out of IDs tries again.
+     */
+    private void prefetch()
+    {
+        long[] block = null;
+        try
+        {
+            block = reserve();
+        }
+        catch( SQLException e )
+        {
+            Debug.log( "Prefetching IDs for " + table + " failed: " +
+                       e.getMessage(), "MySQL" );
+        }
+        synchronized( this )
+        {
+            fetching = false;
+            if( block != null )
+            {
+                spareNext = block[ 0 ];
+                spareLimit = block[ 1 ];
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reserves a block of IDs in the database.
+     *
+     * The entry of the table is seeded first if this is the first block.
+     *
+     * @return Start and end (exclusive) of the block
+     * @throws SQLException Thrown if the block can not be reserved
+     */
+    private long[] reserve() throws SQLException
+    {
+        int size = blockSize;
+        boolean lastInsertId = MySQLDB.getBackend().supportsLastInsertId();
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            PreparedStatement reserveStmt = lastInsertId ?
+                    pc.prepareInsert( reserveSQL ) : pc.prepare( advanceSQL );
+            reserveStmt.setInt( 1, size );
+            reserveStmt.setString( 2, table );
+            if( !seeded )
+            {
+                seed( pc );
+                seeded = true;
+            }
+            if( reserveStmt.executeUpdate() == 0 )
+            {
+                throw new SQLException( "Reserving IDs failed, no entry " +
+                                        "for " + table );
+            }
+
+            PreparedStatement readStmt = null;
+            if( !lastInsertId )
+            {
+                readStmt = pc.prepare( readSQL );
+                readStmt.setString( 1, table );
+            }
+            try( ResultSet rs = lastInsertId ?
+                    reserveStmt.getGeneratedKeys() : readStmt.executeQuery() )
+            {
+                if( !rs.next() )
+                {
+                    throw new SQLException( "Reserving IDs failed, no " +
+                                            "key returned." );
+                }
+                long end = rs.getLong( 1 );
+                blocks.incrementAndGet();
+                return new long[]{ end - size, end };
+            }
+        }
+        catch( SQLException e )
+        {
+            pc.invalidate();
+            throw e;
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+
+    /**
+     * Makes sure the next ID of the table is past every ID already in it, in
+     * case rows were added without going through the allocator.
+     *
+     * @param pc Connection to write the entry on
+     * @throws SQLException Thrown if the entry can not be written
+     */
+    private void seed( PooledConnection pc ) throws SQLException
+    {
+        PreparedStatement raiseStmt = pc.prepare(
+                "UPDATE IDBLOCKS SET NEXTID = GREATEST( NEXTID, ( SELECT " +
+                "COALESCE( MAX( ID ), 0 ) + 1 FROM " + table + " ) ) " +
+                "WHERE NAME = ?" );
+        raiseStmt.setString( 1, table );
+        if( raiseStmt.executeUpdate() > 0 )
+        {
+            return;
+        }
+
+        PreparedStatement seedStmt = pc.prepare(
+                "INSERT IGNORE INTO IDBLOCKS SELECT ?, " +
+                "COALESCE( MAX( ID ), 0 ) + 1 FROM " + table );
+        seedStmt.setString( 1, table );
+        seedStmt.executeUpdate();
+    }
+
+    /**
+     * Gets the number of blocks reserved
+     *
+     * @return Number of blocks
+     */
+    public long getBlocks()
+    {
+        return blocks.get();
+    }
+
+    /**
+     * Gets the number of times a caller had to wait on the database
+     *
+     * @return Number of waits
+     */
+    public long getStalls()
+    {
+        return stalls.get();
+    }
+
+    /**
+     * Returns a dummy object for managing the IDBLOCKS table
+     *
+     * @return Dummy Object
+     */
+    public static TableProfile getProfile()
+    {
+        return new IdAllocator( null );
+    }
+
+    /**
+     * Gets the name of the table
+     *
+     * @return IDBLOCKS
+     */
+    @Override
+    public String tableName()
+    {
+        return "IDBLOCKS";
+    }
+
+    /**
+     * Gets the string used to create the table
+     *
+     * @return Creation string
+     */
+    @Override
+    public String createString()
+    {
+        return
+            "CREATE TABLE `IDBLOCKS` (" +
+            "`NAME` varchar(32) NOT NULL," +
+            "`NEXTID` bigint(20) unsigned NOT NULL," +
+            "PRIMARY KEY (`NAME`)" +
+            ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
+    }
+
+    /**
+     * Gets the headers of the SQL table
+     *
+     * @return [NAME,NEXTID]
+     */
+    @Override
+    public String[] tableHeaders()
+    {
+        return new String[] { "NAME", "NEXTID" };
+    }
+
+    /**
+     * Gets the columns of the primary key
+     *
+     * @return [NAME]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[] { "NAME" };
+    }
+
+    /**
+     * Not used, the entries are read as blocks are reserved
+     *
+     * @param rs Unused
+     */
+    @Override
+    public void loadRow( ResultSet rs )
+    {
+    }
+
+    /**
+     * Prepares the reserve statements.
+     *
+     * @throws SQLException Thrown if an error occurs while preparing
+     */
+    @Override
+    public void postinit() throws SQLException
+    {
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            if( MySQLDB.getBackend().supportsLastInsertId() )
+            {
+                pc.prepareInsert( reserveSQL );
+            }
+            else
+            {
+                pc.prepare( advanceSQL );
+                pc.prepare( readSQL );
+            }
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+
+    /**
+     * Tells the table manager not to load the table
+     *
+     * @return false
+     */
+    @Override
+    public boolean loadData()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,275 @@
+package lad.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash map from primitive longs to objects, for one writer and many
+ * readers.
+ *
+ * Works the same way as IntMap, for keys that pack two ints in one number.
+ * Keys are kept in a long array with open addressing and linear probing, so
+ * a lookup neither boxes the key nor follows a chain of entries.  A slot is
+ * empty when its value is null, which is why null values can not be stored.
+ *
+ * Readers never lock.  The values are an atomic array and a slot's key is
+ * written before its value, so a reader that sees a value also sees its key.
+ * A slot keeps its key once it is used: removing an entry leaves a tombstone
+ * behind instead of moving other entries, so a reader never misses an entry
+ * that is being moved.  When the used slots fill half the table, the live
+ * entries are copied into a new table that is published in one write.
+ * Writers have to be serialized by the caller.
+ *
+ * @param <V> Type of the values
+ * @author msflowers
+ */
+class LongMap< V >
+{
+    /**
+     * Smallest capacity of the table
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Value of a slot whose entry was removed
+     */
+    private static final Object TOMBSTONE = new Object();
+
+    /**
+     * Current table
+     */
+    private volatile Table table;
+
+    /**
+     * Number of entries
+     */
+    private volatile int size = 0;
+
+    /**
+     * Number of slots used by entries or tombstones, only used by the writer
+     */
+    private int used = 0;
+
+    /**
+     * Ctor
+     */
+    LongMap()
+    {
+        this( MIN_CAPACITY );
+    }
+
+    /**
+     * Ctor
+     *
+     * @param expected Number of entries expected, sizes the table
+     */
+    LongMap( int expected )
+    {
+        table = new Table( capacityFor( expected ) );
+    }
+
+    /**
+     * Gets the capacity that holds a number of entries
+     *
+     * @param entries Number of entries
+     * @return Power of two at least twice the entries
+     */
+    private static int capacityFor( int entries )
+    {
+        return Integer.highestOneBit(
+                Math.max( MIN_CAPACITY, entries * 2 ) - 1 ) << 1;
+    }
+
+    /**
+     * Gets the value of a key
+     *
+     * @param key Key to look up
+     * @return Value, or null if the key is not in the map
+     */
+    @SuppressWarnings( "unchecked" )
+    V get( long key )
+    {
+        Table current = table;
+        int mask = current.mask;
+        for( int i = current.slot( key ); ; i = ( i + 1 ) & mask )
+        {
+            Object value = current.values.get( i );
+            if( value == null )
+            {
+                return null;
+            }
+            if( value != TOMBSTONE && current.keys[ i ] == key )
+            {
+                return (V)value;
+            }
+        }
+    }
+
+    /**
+     * Sets the value of a key
+     *
+     * @param key   Key to set
+     * @param value Value to set, may not be null
+     * @return Previous value, or null if the key was not in the map
+     */
+    @SuppressWarnings( "unchecked" )
+    V put( long key, V value )
+    {
+        if( value == null )
+        {
+            throw new IllegalArgumentException( "Null value for " + key );
+        }
+        Table current = table;
+        int mask = current.mask;
+        int i = current.slot( key );
+        for( Object old; ( old = current.values.get( i ) ) != null;
+             i = ( i + 1 ) & mask )
+        {
+            if( old != TOMBSTONE && current.keys[ i ] == key )
+            {
+                current.values.set( i, value );
+                return (V)old;
+            }
+        }
+        current.keys[ i ] = key;
+        current.values.set( i, value );
+        size++;
+        used++;
+        if( used * 2 > current.values.length() )
+        {
+            rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param key Key to remove
+     * @return Value removed, or null if the key was not in the map
+     */
+    @SuppressWarnings( "unchecked" )
+    V remove( long key )
+    {
+        Table current = table;
+        int mask = current.mask;
+        for( int i = current.slot( key ); ; i = ( i + 1 ) & mask )
+        {
+            Object value = current.values.get( i );
+            if( value == null )
+            {
+                return null;
+            }
+            if( value != TOMBSTONE && current.keys[ i ] == key )
+            {
+                current.values.set( i, TOMBSTONE );
+                size--;
+                return (V)value;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries
+     *
+     * @return Size
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Copies the values
+     *
+     * @return New list of the values, in no particular order
+     */
+    @SuppressWarnings( "unchecked" )
+    List< V > values()
+    {
+        Table current = table;
+        List< V > ret = new ArrayList<>( size );
+        for( int i = 0; i < current.values.length(); i++ )
+        {
+            Object value = current.values.get( i );
+            if( value != null && value != TOMBSTONE )
+            {
+                ret.add( (V)value );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Copies the live entries into a new table sized for them and publishes
+     * it
+     */
+    private void rebuild()
+    {
+        Table old = table;
+        Table next = new Table( capacityFor( size * 2 ) );
+        for( int i = 0; i < old.values.length(); i++ )
+        {
+            Object value = old.values.get( i );
+            if( value != null && value != TOMBSTONE )
+            {
+                int j = next.slot( old.keys[ i ] );
+                while( next.values.get( j ) != null )
+                {
+                    j = ( j + 1 ) & next.mask;
+                }
+                next.keys[ j ] = old.keys[ i ];
+                next.values.set( j, value );
+            }
+        }
+        used = size;
+        table = next;
+    }
+
+    /**
+     * Keys and values of a single capacity
+     */
+    private static final class Table
+    {
+        /**
+         * Keys of the slots
+         */
+        final long[] keys;
+
+        /**
+         * Values of the slots, null for empty slots
+         */
+        final AtomicReferenceArray< Object > values;
+
+        /**
+         * Mask used to turn a hash into a slot
+         */
+        final int mask;
+
+        /**
+         * Ctor
+         *
+         * @param capacity Number of slots, a power of two
+         */
+        Table( int capacity )
+        {
+            keys = new long[ capacity ];
+            values = new AtomicReferenceArray<>( capacity );
+            mask = capacity - 1;
+        }
+
+        /**
+         * Gets the slot a key hashes to
+         *
+         * @param key Key to hash
+         * @return First slot to probe
+         */
+        int slot( long key )
+        {
+            // Spread sequential IDs over the whole table
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int)( hash ^ ( hash >>> 32 ) ) & mask;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package lad.db;
+
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Cold storage for modifiers that have no battles left.
+ *
+ * Exhausted modifiers are dropped from memory by the compaction of the
+ * modifier manager, and their rows are moved from the modifiers table into
+ * this one by the delayed runner.  The table is never loaded.
+ *
+ * @see lad.db.ModifierManager#compactExhausted()
+ * @author msflowers
+ */
+final class ModifierArchive implements TableProfile
+{
+    /**
+     * Copies an exhausted modifier if it is not archived yet
+     */
+    private static final String archiveSQL =
+            "INSERT INTO MODIFIERARCHIVE ( ID, owner, target, rarity, " +
+            "multiplier ) SELECT ID, owner, target, rarity, multiplier " +
+            "FROM MODIFIERS WHERE ID = ? AND ID NOT IN " +
+            "( SELECT ID FROM MODIFIERARCHIVE )";
+
+    /**
+     * Deletes an exhausted modifier
+     */
+    private static final String purgeSQL =
+            "DELETE FROM MODIFIERS WHERE ID = ?";
+
+    /**
+     * Private ctor
+     */
+    private ModifierArchive()
+    {
+    }
+
+    /**
+     * Queues the move of compacted modifier rows into the archive.
+     *
+     * Both statements are writes of the modifier's row, so they go to the
+     * row's partition and run after every write queued for the row before
+     * them, such as its last battles.  Only the given rows are touched.
+     *
+     * @param ids IDs of the compacted modifiers
+     */
+    static void queueArchive( List< Integer > ids )
+    {
+        for( Integer id : ids )
+        {
+            MySQLDB.delaySQL( PendingWrite.execute( "MODIFIERS", id,
+                                                    archiveSQL, id ) );
+            MySQLDB.delaySQL( PendingWrite.execute( "MODIFIERS", id,
+                                                    purgeSQL, id ) );
+        }
+    }
+
+    /**
+     * Returns a dummy object for pulling table profile information
+     *
+     * @return Dummy object
+     */
+    static TableProfile getProfile()
+    {
+        return new ModifierArchive();
+    }
+
+    /**
+     * Returns the name of the SQL table
+     *
+     * @return MODIFIERARCHIVE
+     */
+    @Override
+    public String tableName()
+    {
+        return "MODIFIERARCHIVE";
+    }
+
+    /**
+     * Returns the string used to create the SQL table
+     *
+     * @return Creation string
+     */
+    @Override
+    public String createString()
+    {
+        return
+            "CREATE TABLE `MODIFIERARCHIVE` (" +
+            "`ID` int(10) unsigned NOT NULL," +
+            "`owner` int(10) unsigned NOT NULL," +
+            "`target` int(10) unsigned NOT NULL," +
+            "`rarity` int(10) unsigned NOT NULL," +
+            "`multiplier` int(10) unsigned NOT NULL," +
+            "`archived` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP," +
+            "PRIMARY KEY (`ID`)" +
+            ") ENGINE = MyISAM DEFAULT CHARSET=latin1";
+    }
+
+    /**
+     * Returns an array containing the SQL table headers
+     *
+     * @return [ID,owner,target,rarity,multiplier,archived]
+     */
+    @Override
+    public String[] tableHeaders()
+    {
+        return new String[]{ "ID", "owner", "target", "rarity",
+                             "multiplier", "archived" };
+    }
+
+    /**
+     * Returns the columns of the primary key
+     *
+     * @return [ID]
+     */
+    @Override
+    public String[] keyColumns()
+    {
+        return new String[]{ "ID" };
+    }
+
+    /**
+     * Not used, the table is not loaded
+     *
+     * @param rs Unused
+     */
+    @Override
+    public void loadRow( ResultSet rs )
+    {
+    }
+
+    /**
+     * Not used
+     */
+    @Override
+    public void postinit()
+    {
+    }
+
+    /**
+     * Tells the table manager not to load the table
+     *
+     * @return false
+     */
+    @Override
+    public boolean loadData()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,303 @@
+package lad.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import lad.data.Modifier;
+import lad.data.ModifierTarget;
+
+/**
+ * The modifiers of a single owner, bucketed by target.
+ *
+ * Each bucket keeps its available modifiers, the ones that are not equipped
+ * and have battles left, packed at its front.  Picking a random available
+ * modifier of a target is then a single random index, and picking a set of
+ * modifiers with distinct targets never looks at the unavailable ones.
+ * The manager has to tell the inventory whenever a modifier's availability
+ * changes.  Every method locks the inventory, so only calls for the same
+ * owner wait on each other.
+ *
+ * @author msflowers
+ */
+final class ModifierInventory
+{
+    /**
+     * Buckets by the ordinal of their target
+     */
+    private final Bucket[] buckets =
+            new Bucket[ ModifierTarget.values().length ];
+
+    /**
+     * Number of modifiers
+     */
+    private int count = 0;
+
+    /**
+     * Tests if a modifier can be equipped
+     *
+     * @param modifier Modifier to test
+     * @return True if it is not equipped and has battles left
+     */
+    private static boolean isAvailable( Modifier modifier )
+    {
+        return modifier.getEquipped() == null && modifier.getBattles() > 0;
+    }
+
+    /**
+     * Adds a modifier
+     *
+     * @param modifier Modifier to add
+     */
+    synchronized void add( Modifier modifier )
+    {
+        int target = modifier.getTarget().ordinal();
+        if( buckets[ target ] == null )
+        {
+            buckets[ target ] = new Bucket();
+        }
+        buckets[ target ].add( modifier );
+        count++;
+    }
+
+    /**
+     * Removes a modifier
+     *
+     * @param modifier Modifier to remove
+     * @param target   Target the modifier was added with
+     * @return True if removed, false if it was not in the inventory
+     */
+    synchronized boolean remove( Modifier modifier, ModifierTarget target )
+    {
+        Bucket bucket = buckets[ target.ordinal() ];
+        if( bucket == null || !bucket.remove( modifier ) )
+        {
+            return false;
+        }
+        count--;
+        return true;
+    }
+
+    /**
+     * Moves a modifier to the right part of its bucket after its
+     * availability changed
+     *
+     * @param modifier Modifier that changed
+     */
+    synchronized void refresh( Modifier modifier )
+    {
+        Bucket bucket = buckets[ modifier.getTarget().ordinal() ];
+        if( bucket != null )
+        {
+            bucket.refresh( modifier );
+        }
+    }
+
+    /**
+     * Gets the number of modifiers
+     *
+     * @return Size
+     */
+    synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Gets every modifier, ordered by target
+     *
+     * @return New list of the modifiers
+     */
+    synchronized List< Modifier > all()
+    {
+        List< Modifier > ret = new ArrayList<>( count );
+        for( Bucket bucket : buckets )
+        {
+            if( bucket != null )
+            {
+                ret.addAll( Arrays.asList( bucket.items ).subList(
+                        0, bucket.size ) );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets every available modifier, ordered by target
+     *
+     * @return New list of the available modifiers
+     */
+    synchronized List< Modifier > available()
+    {
+        List< Modifier > ret = new ArrayList<>();
+        for( Bucket bucket : buckets )
+        {
+            if( bucket != null )
+            {
+                ret.addAll( Arrays.asList( bucket.items ).subList(
+                        0, bucket.available ) );
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Picks random available modifiers, no two with the same target.
+     *
+     * Targets are drawn without replacement from the ones with an available
+     * modifier, then a random available modifier of each target is taken.
+     *
+     * @param max    Maximum number of modifiers, 0 for one of every target
+     * @param random Source of randomness
+     * @return New list of the picked modifiers
+     */
+    synchronized List< Modifier > availableSet( int max, Random random )
+    {
+        int[] targets = new int[ buckets.length ];
+        int open = 0;
+        for( int i = 0; i < buckets.length; i++ )
+        {
+            if( buckets[ i ] != null && buckets[ i ].available > 0 )
+            {
+                targets[ open++ ] = i;
+            }
+        }
+
+        int picks = max > 0 ? Math.min( max, open ) : open;
+        List< Modifier > ret = new ArrayList<>( picks );
+        for( int i = 0; i < picks; i++ )
+        {
+            int swap = i + random.nextInt( open - i );
+            int target = targets[ swap ];
+            targets[ swap ] = targets[ i ];
+
+            Bucket bucket = buckets[ target ];
+            ret.add( bucket.items[ random.nextInt( bucket.available ) ] );
+        }
+        return ret;
+    }
+
+    /**
+     * The modifiers of a single target.
+     *
+     * The first available items are the available modifiers.
+     */
+    private static final class Bucket
+    {
+        /**
+         * Modifiers of the bucket
+         */
+        private Modifier[] items = new Modifier[ 4 ];
+
+        /**
+         * Number of modifiers
+         */
+        private int size = 0;
+
+        /**
+         * Number of available modifiers at the front
+         */
+        private int available = 0;
+
+        /**
+         * Adds a modifier
+         *
+         * @param modifier Modifier to add
+         */
+        void add( Modifier modifier )
+        {
+            if( size == items.length )
+            {
+                items = Arrays.copyOf( items, size * 2 );
+            }
+            items[ size ] = modifier;
+            if( isAvailable( modifier ) )
+            {
+                swap( size, available );
+                available++;
+            }
+            size++;
+        }
+
+        /**
+         * Removes a modifier
+         *
+         * @param modifier Modifier to remove
+         * @return True if removed, false if not in the bucket
+         */
+        boolean remove( Modifier modifier )
+        {
+            int index = indexOf( modifier );
+            if( index < 0 )
+            {
+                return false;
+            }
+            if( index < available )
+            {
+                available--;
+                swap( index, available );
+                index = available;
+            }
+            size--;
+            items[ index ] = items[ size ];
+            items[ size ] = null;
+            return true;
+        }
+
+        /**
+         * Moves a modifier in or out of the available part
+         *
+         * @param modifier Modifier that changed
+         */
+        void refresh( Modifier modifier )
+        {
+            int index = indexOf( modifier );
+            if( index < 0 )
+            {
+                return;
+            }
+            boolean now = isAvailable( modifier );
+            if( now && index >= available )
+            {
+                swap( index, available );
+                available++;
+            }
+            else if( !now && index < available )
+            {
+                available--;
+                swap( index, available );
+            }
+        }
+
+        /**
+         * Finds a modifier
+         *
+         * @param modifier Modifier to find
+         * @return Index of the modifier, or -1 if not in the bucket
+         */
+        private int indexOf( Modifier modifier )
+        {
+            for( int i = 0; i < size; i++ )
+            {
+                if( items[ i ] == modifier )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Swaps two modifiers
+         *
+         * @param a Index of the first modifier
+         * @param b Index of the second modifier
+         */
+        private void swap( int a, int b )
+        {
+            Modifier temp = items[ a ];
+            items[ a ] = items[ b ];
+            items[ b ] = temp;
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package lad.db;
 
 import static java.util.Collections.shuffle;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Random;
+import java.util.Set;
 import lad.data.GameException;
 import lad.data.Modifier;
 import lad.data.ModifierTarget;
+import lad.game.Debug;
 
 /**
  * Manages all of the modifiers
@@ -16,9 +20,30 @@ import lad.data.ModifierTarget;
 public class ModifierManager extends DBManager
 {
     /**
-     * Internal list of modifiers
+     * Modifiers by ID
      */
-    private List< Modifier > modifiers = new LinkedList<>();
+    private final IntMap< Modifier > byID = new IntMap<>();
+
+    /**
+     * Inventories of the modifiers by owner
+     */
+    private final IntMap< ModifierInventory > inventories = new IntMap<>();
+
+    /**
+     * Picks the modifiers to equip
+     */
+    private final Random random = new Random();
+
+    /**
+     * Modifiers that ran out of battles since the last compaction
+     */
+    private final List< Modifier > exhausted = new ArrayList<>();
+
+    /**
+     * Milliseconds between compactions of the exhausted modifiers
+     */
+    private static volatile long compactInterval =
+            Long.getLong( "lad.db.compactInterval", 60000 );
 
     /**
      * Private ctor
@@ -36,10 +61,68 @@ public class ModifierManager extends DBManager
     public TableProfile[] profiles()
     {
         return new TableProfile[]{
-            Modifier.getProfile()
+            Modifier.getProfile(),
+            ModifierArchive.getProfile()
         };
     }
 
+    /**
+     * Gets every modifier
+     *
+     * @return Unmodifiable copy of the list of the modifiers
+     */
+    public List< Modifier > getModifiers()
+    {
+        return Collections.unmodifiableList( byID.values() );
+    }
+
+    /**
+     * Removes every modifier whose row is not in the given keys.
+     *
+     * Only drops them from the list, their rows are already gone.
+     *
+     * @param keys Keys of the modifier rows to keep
+     * @return Number of modifiers removed
+     */
+    public synchronized int retainModifiers( Set< Long > keys )
+    {
+        int removed = 0;
+        for( Modifier modifier : byID.values() )
+        {
+            if( !keys.contains( modifier.getRowKey() ) )
+            {
+                unindex( modifier, modifier.getOwner(),
+                         modifier.getTarget() );
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every modifier of a user.
+     *
+     * Only drops them from memory, used when the user is evicted from the
+     * working set.
+     *
+     * @param userid ID of the user
+     * @return Number of modifiers removed
+     */
+    public synchronized int removeUser( int userid )
+    {
+        ModifierInventory inventory = inventories.remove( userid );
+        if( inventory == null )
+        {
+            return 0;
+        }
+        List< Modifier > owned = inventory.all();
+        for( Modifier modifier : owned )
+        {
+            byID.remove( modifier.getID() );
+        }
+        return owned.size();
+    }
+
     /**
      * Gets all modifiers for the specified owner.
      *
@@ -50,20 +133,12 @@ public class ModifierManager extends DBManager
      */
     public List< Modifier > getByUserID( int userid )
     {
-        List< Modifier > ret = new LinkedList<>();
-        ListIterator< Modifier > iter = modifiers.listIterator();
-
-        while( iter.hasNext() )
+        ModifierInventory inventory = inventories.get( userid );
+        if( inventory == null )
         {
-            Modifier current = iter.next();
-
-            if( current.getOwner() == userid )
-            {
-                ret.add( current );
-            }
+            return new LinkedList<>();
         }
-
-        return ret;
+        return inventory.all();
     }
 
     /**
@@ -77,20 +152,13 @@ public class ModifierManager extends DBManager
      */
     public List< Modifier > getAvailableByUserID( int userid )
     {
-        List< Modifier > ret = new LinkedList<>();
-        ListIterator< Modifier > iter = modifiers.listIterator();
-
-        while( iter.hasNext() )
+        ModifierInventory inventory = inventories.get( userid );
+        if( inventory == null )
         {
-            Modifier current = iter.next();
-
-            if( current.getOwner() == userid && current.getEquipped() == null )
-            {
-                ret.add( current );
-            }
+            return new LinkedList<>();
         }
-
-        shuffle( ret );
+        List< Modifier > ret = inventory.available();
+        shuffle( ret, random );
         return ret;
     }
 
@@ -112,10 +180,13 @@ public class ModifierManager extends DBManager
     /**
      * Gets a set of available modifiers for the specified owner.
      *
-     * Only returns modifiers that do not have a trainer set.  Guaranteed to
-     * only return one modifier of each type.  Will not return more than the
-     * specified amount of modifiers.  If no modifiers are found the list
-     * returned will simply be empty.
+     * Only returns modifiers that do not have a trainer set and have battles
+     * left.  Guaranteed to only return one modifier of each type.  Will not
+     * return more than the specified amount of modifiers.  If no modifiers
+     * are found the list returned will simply be empty.
+     *
+     * The types and the modifier of each type are picked at random, and only
+     * the picked modifiers are looked at.
      *
      * @param userid User ID to get modifiers for
      * @param max    Maximum number of modifiers to get, 0 to ignore
@@ -123,33 +194,12 @@ public class ModifierManager extends DBManager
      */
     public List< Modifier > getAvailableSetByUserID( int userid, int max )
     {
-        List< Modifier > ret = new LinkedList<>();
-        List< ModifierTarget > found = new LinkedList<>();
-        ListIterator< Modifier > iter = modifiers.listIterator();
-
-        while( iter.hasNext() )
+        ModifierInventory inventory = inventories.get( userid );
+        if( inventory == null )
         {
-            Modifier current = iter.next();
-            ModifierTarget target = current.getTarget();
-
-            if( current.getOwner() == userid && current.getEquipped() == null &&
-                !found.contains( target ) && current.getBattles() > 0 )
-            {
-                ret.add( current );
-                found.add( target );
-            }
+            return new LinkedList<>();
         }
-
-        if( max > 0 && ret.size() > max )
-        {
-            shuffle( ret );
-            while( ret.size() > max )
-            {
-                ret.remove( 0 );
-            }
-        }
-
-        return ret;
+        return inventory.availableSet( max, random );
     }
 
     /**
@@ -161,19 +211,12 @@ public class ModifierManager extends DBManager
      */
     public Modifier getByID( int id )
     {
-        ListIterator< Modifier > iter = modifiers.listIterator();
-
-        while( iter.hasNext() )
+        Modifier modifier = byID.get( id );
+        if( modifier == null )
         {
-            Modifier current = iter.next();
-
-            if( current.getID() == id )
-            {
-                return current;
-            }
+            throw new GameException( 1, "Modifier not found: " + id );
         }
-
-        throw new GameException( 1, "Modifier not found: " + id );
+        return modifier;
     }
 
     /**
@@ -205,13 +248,175 @@ public class ModifierManager extends DBManager
     }
 
     /**
-     * Adds a modifier to the internal list of modifiers.
+     * Adds a modifier to the indexes of modifiers.
+     *
+     * @param modifier Modifier to add
+     */
+    public synchronized void addModifier( Modifier modifier )
+    {
+        index( modifier );
+        noteExhausted( modifier );
+    }
+
+    /**
+     * Updates the inventories after a modifier changed.
+     *
+     * Has to be called whenever a modifier is equipped or unequipped, or its
+     * battles, owner or target change.  Modifiers that are not tracked are
+     * ignored.
+     *
+     * @param modifier  Modifier that changed
+     * @param oldOwner  Owner of the modifier before the change
+     * @param oldTarget Target of the modifier before the change
+     */
+    public synchronized void modifierChanged( Modifier modifier,
+                                              int oldOwner,
+                                              ModifierTarget oldTarget )
+    {
+        if( oldOwner == modifier.getOwner() &&
+            oldTarget == modifier.getTarget() )
+        {
+            ModifierInventory inventory = inventories.get( oldOwner );
+            if( inventory != null )
+            {
+                inventory.refresh( modifier );
+                noteExhausted( modifier );
+            }
+        }
+        else if( unindex( modifier, oldOwner, oldTarget ) )
+        {
+            index( modifier );
+        }
+    }
+
+    /**
+     * Tests if a modifier can be compacted
+     *
+     * @param modifier Modifier to test
+     * @return True if it has no battles left and is not equipped
+     */
+    private static boolean isExhausted( Modifier modifier )
+    {
+        return modifier.getBattles() == 0 && modifier.getEquipped() == null;
+    }
+
+    /**
+     * Remembers a modifier for the next compaction if it ran out of battles.
+     *
+     * Nothing is remembered while compaction is turned off.
+     *
+     * @param modifier Modifier that was added or changed
+     */
+    private void noteExhausted( Modifier modifier )
+    {
+        if( compactInterval > 0 && isExhausted( modifier ) )
+        {
+            exhausted.add( modifier );
+        }
+    }
+
+    /**
+     * Drops the modifiers that ran out of battles from memory and queues the
+     * move of their rows into the archive table.
+     *
+     * Only the modifiers that ran out since the last compaction are looked
+     * at, and only their rows are archived by the delayed runner.  Called by
+     * the game loop every compaction interval on the game loop's thread.
+     *
+     * @return Number of modifiers dropped
+     */
+    public static int compactExhausted()
+    {
+        ModifierManager manager = getInstance();
+        List< Integer > dropped = new ArrayList<>();
+        synchronized( manager )
+        {
+            for( Modifier modifier : manager.exhausted )
+            {
+                if( isExhausted( modifier ) &&
+                    manager.unindex( modifier, modifier.getOwner(),
+                                     modifier.getTarget() ) )
+                {
+                    dropped.add( modifier.getID() );
+                }
+            }
+            manager.exhausted.clear();
+        }
+
+        if( !dropped.isEmpty() )
+        {
+            Debug.log( "Archived " + dropped.size() + " exhausted modifiers",
+                       "MySQL" );
+            ModifierArchive.queueArchive( dropped );
+        }
+        return dropped.size();
+    }
+
+    /**
+     * Sets the time between compactions of the exhausted modifiers.
+     *
+     * Defaults to the lad.db.compactInterval system property, or a minute.
+     * 0 turns compaction off, exhausted modifiers then stay until deleted.
+     *
+     * @param millis Milliseconds between compactions
+     */
+    public static void setCompactInterval( long millis )
+    {
+        compactInterval = Math.max( 0, millis );
+    }
+
+    /**
+     * Gets the time between compactions of the exhausted modifiers
+     *
+     * @return Milliseconds between compactions, 0 if turned off
+     */
+    public static long getCompactInterval()
+    {
+        return compactInterval;
+    }
+
+    /**
+     * Adds a modifier to the indexes
      *
      * @param modifier Modifier to add
      */
-    public void addModifier( Modifier modifier )
+    private void index( Modifier modifier )
+    {
+        byID.put( modifier.getID(), modifier );
+        ModifierInventory inventory = inventories.get( modifier.getOwner() );
+        if( inventory == null )
+        {
+            inventory = new ModifierInventory();
+            inventories.put( modifier.getOwner(), inventory );
+        }
+        inventory.add( modifier );
+    }
+
+    /**
+     * Removes a modifier from the indexes
+     *
+     * @param modifier Modifier to remove
+     * @param owner    Owner the modifier was added with
+     * @param target   Target the modifier was added with
+     * @return True if removed, false if the modifier was not tracked
+     */
+    private boolean unindex( Modifier modifier, int owner,
+                             ModifierTarget target )
     {
-        modifiers.add( modifier );
+        ModifierInventory inventory = inventories.get( owner );
+        if( inventory == null || !inventory.remove( modifier, target ) )
+        {
+            return false;
+        }
+        if( inventory.size() == 0 )
+        {
+            inventories.remove( owner );
+        }
+        if( byID.get( modifier.getID() ) == modifier )
+        {
+            byID.remove( modifier.getID() );
+        }
+        return true;
     }
 
     /**
@@ -219,9 +424,9 @@ public class ModifierManager extends DBManager
      *
      * @param modifier Modifier to delete
      */
-    public void deleteModifier( Modifier modifier )
+    public synchronized void deleteModifier( Modifier modifier )
     {
-        if( !modifiers.remove( modifier ) )
+        if( !unindex( modifier, modifier.getOwner(), modifier.getTarget() ) )
         {
             throw new GameException( 3, "Could not delete modifier because " +
                                      "it was not being tracked." );
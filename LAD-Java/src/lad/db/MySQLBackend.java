@@ -0,0 +1,95 @@
+package lad.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Backend for the MySQL server the game runs against.
+ *
+ * @author msflowers
+ */
+public class MySQLBackend implements StorageBackend
+{
+    /**
+     * Gets the name of the backend
+     *
+     * @return mysql
+     */
+    @Override
+    public String getName()
+    {
+        return "mysql";
+    }
+
+    /**
+     * Opens a new connection to the MySQL DB and selects the database.
+     *
+     * The driver's autoReconnect is not used, the pools check their
+     * connections and reopen them instead.  Batched statements are rewritten
+     * into multi-row statements by the driver.
+     *
+     * @return The opened connection
+     * @throws SQLException Thrown if the connection fails
+     */
+    @Override
+    public Connection openConnection() throws SQLException
+    {
+        Properties connectionProps = new Properties();
+        connectionProps.put( "user", "admin_lad" );
+        connectionProps.put( "password", "password" );
+        connectionProps.put( "rewriteBatchedStatements", "true" );
+        Connection ret = DriverManager.getConnection( "jdbc:mysql://localhost/",
+                                                      connectionProps );
+
+        try
+        {
+            ret.setCatalog( "admin_lad" );
+        }
+        catch( SQLException e )
+        {
+            System.err.println( "Error while selecting database." +
+                                e.toString() );
+            System.exit( -1 );
+        }
+
+        return ret;
+    }
+
+    /**
+     * The creation strings are already written for MySQL
+     *
+     * @param createStr Creation string of the profile
+     * @return createStr
+     */
+    @Override
+    public String createString( String createStr )
+    {
+        return createStr;
+    }
+
+    /**
+     * The MySQL driver only streams a result with a fetch size of
+     * Integer.MIN_VALUE
+     *
+     * @return Integer.MIN_VALUE
+     */
+    @Override
+    public int streamingFetchSize()
+    {
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * MySQL returns the value given to LAST_INSERT_ID( expr ) as the
+     * generated key of the statement
+     *
+     * @return true
+     */
+    @Override
+    public boolean supportsLastInsertId()
+    {
+        return true;
+    }
+}
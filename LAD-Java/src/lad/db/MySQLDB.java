@@ -1,45 +1,234 @@
 package lad.db;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import lad.data.GameException;
 import lad.game.Debug;
+import lad.game.Histogram;
 import lad.game.LADJava;
 
 /**
  * Manages the connection to the MySQL DB.
  *
- * MySQL calls need a Connection to be able to process.  Primary entry point to
- * this class is the getConn method.
+ * MySQL calls need a Connection to be able to process.  Startup and table
+ * maintenance use the connection from the getConn method.  Everything that
+ * runs while the game is up borrows a connection from the pool of one of the
+ * lanes instead, so a slow delayed write never holds up a request thread.
+ *
+ * The connections come from a StorageBackend, picked by the lad.db.backend
+ * system property: mysql (the default) for the MySQL server, or embedded for
+ * a file backed H2 database named by lad.db.embeddedFile (default lad-db).
+ * Tables and columns are looked up through the JDBC metadata so both work
+ * the same.
  *
  * @author msflowers
  */
 public class MySQLDB
 {
+    /**
+     * Lanes of pooled connections
+     */
+    public enum Lane
+    {
+        /**
+         * Latency sensitive work done on request threads (inserts needing a
+         * generated key, deletes, queries)
+         */
+        SYNC,
+
+        /**
+         * Batched writes done by the delayed runner
+         */
+        DELAYED
+    }
+
+    /**
+     * What happens to a delayed write when its partition's queue is full
+     */
+    public enum FullPolicy
+    {
+        /**
+         * The caller waits until the runner makes room
+         */
+        BLOCK,
+
+        /**
+         * The write goes to a spill file on disk, which is written once the
+         * queue has been emptied
+         */
+        SPILL,
+
+        /**
+         * Low priority writes (statistics) are dropped, anything else blocks
+         */
+        SHED
+    }
+
+    /**
+     * How often the log of the delayed writes is forced to disk
+     */
+    public enum LogSync
+    {
+        /**
+         * After every write, before it is queued
+         */
+        EVERY,
+
+        /**
+         * Before a write is queued, but writers waiting at the same time
+         * share a single force
+         */
+        GROUP,
+
+        /**
+         * By the runners on an interval, a write is queued without waiting
+         */
+        INTERVAL
+    }
+
     /**
      * Holds the actual connection to the database.
      */
     private Connection conn = null;
 
     /**
-     * Holds the runner that performs a delayed (not really) execution of MySQL
-     * statements
+     * Pool of the connections for the synchronous lane
+     */
+    private ConnectionPool syncPool = null;
+
+    /**
+     * Pool of the connections for the delayed lane
      */
-    private DelayedRunner runner = null;
+    private ConnectionPool delayedPool = null;
+
+    /**
+     * Holds the runners that perform a delayed, batched execution of MySQL
+     * statements, one for each partition
+     */
+    private DelayedRunner[] runners = null;
+
+    /**
+     * True once the pools and runners are created, so borrowing does not
+     * have to take the lock
+     */
+    private volatile boolean initialized = false;
+
+    /**
+     * Number of runners that have not stopped yet
+     */
+    private int runnersLeft = 0;
 
     /**
      * A list of all the tables currently loaded into the database.
      */
     private List< String > loadedTables = new LinkedList<>();
 
+    /**
+     * Maximum number of statements a delayed runner writes per transaction
+     */
+    private static volatile int drainSize =
+            Integer.getInteger( "lad.db.drainSize", 500 );
+
+    /**
+     * Maximum number of rows a delayed runner combines into one upsert
+     */
+    private static volatile int upsertRows =
+            Integer.getInteger( "lad.db.upsertRows", 100 );
+
+    /**
+     * Maximum number of milliseconds a statement waits to be written
+     */
+    private static volatile long maxDelay =
+            Long.getLong( "lad.db.maxDelay", 100 );
+
+    /**
+     * Number of partitions (and runner threads) of the delayed writes
+     */
+    private static int partitions =
+            Integer.getInteger( "lad.db.partitions", 2 );
+
+    /**
+     * Number of writes each partition's queue can hold
+     */
+    private static int queueCapacity =
+            Integer.getInteger( "lad.db.queueCapacity", 8192 );
+
+    /**
+     * What happens to a delayed write when its queue is full
+     */
+    private static volatile FullPolicy fullPolicy = FullPolicy.valueOf(
+            System.getProperty( "lad.db.fullPolicy", "BLOCK" ).toUpperCase() );
+
+    /**
+     * Directory the spill files are written to
+     */
+    private static File spillDir = new File( System.getProperty(
+            "lad.db.spillDir", System.getProperty( "java.io.tmpdir" ) ) );
+
+    /**
+     * Directory the logs of the delayed writes are kept in, null if the
+     * writes are not logged
+     */
+    private static File logDir = Boolean.parseBoolean( System.getProperty(
+            "lad.db.log", "true" ) ) ? new File( System.getProperty(
+            "lad.db.logDir", "wal" ) ) : null;
+
+    /**
+     * Size of each segment of the logs in bytes
+     */
+    private static int logSegmentSize =
+            Integer.getInteger( "lad.db.logSegmentSize", 16 << 20 );
+
+    /**
+     * How often the logs are forced to disk, by the runners by default so
+     * that the game loop never waits on the disk
+     */
+    private static volatile LogSync logSync = LogSync.valueOf(
+            System.getProperty( "lad.db.logSync", "INTERVAL" ).toUpperCase() );
+
+    /**
+     * Milliseconds between forcing the logs with the INTERVAL policy
+     */
+    private static volatile long logInterval =
+            Long.getLong( "lad.db.logInterval", 100 );
+
+    /**
+     * Database the connections are opened to
+     */
+    private static StorageBackend backend = backendNamed(
+            System.getProperty( "lad.db.backend", "mysql" ) );
+
+    /**
+     * Microseconds between queueing a delayed write and committing it
+     */
+    private static final Histogram commitLatency = new Histogram();
+
+    /**
+     * Thread running the game ticks, null until the game loop starts
+     */
+    private static volatile Thread tickThread = null;
+
+    /**
+     * Total nanoseconds the tick thread spent waiting on the database
+     */
+    private static final AtomicLong tickIONanos = new AtomicLong();
+
+    /**
+     * Number of times the tick thread waited on the database
+     */
+    private static final AtomicLong tickIOCount = new AtomicLong();
+
     /**
      * Private ctor.
      */
@@ -51,42 +240,169 @@ public class MySQLDB
      * Performs actual connection to the MySQL DB.
      *
      * Connects to the DB using specified username/password. Called if the
-     * connection is not valid in @see getConn
+     * connection is not valid in @see getConn.  The pools of the lanes are
+     * created as well, their sizes come from the lad.db.syncPoolSize
+     * (default 4) and lad.db.delayedPoolSize (default the number of
+     * partitions) system properties.  The delayed lane does not auto commit
+     * since the runners commit each drain as a single transaction.  Finally
+     * a runner thread is started for each partition of the delayed writes,
+     * and any writes left in the logs by the last run are queued again.
      * 
      * @throws SQLException
      */
     public void initialize() throws SQLException
     {
-        Properties connectionProps = new Properties();
-        connectionProps.put( "user", "admin_lad" );
-        connectionProps.put( "password", "password" );
-        connectionProps.put( "autoReconnect", "true" );
-        conn = DriverManager.getConnection( "jdbc:mysql://localhost/",
-                                            connectionProps );
+        conn = openConnection();
 
-        try
+        File[] oldSegments = new File[ 0 ];
+        int firstSequence = 0;
+        if( logDir != null )
         {
-            Statement stmt = conn.createStatement();
-            stmt.executeQuery( "USE admin_lad" );
+            if( !logDir.isDirectory() && !logDir.mkdirs() )
+            {
+                System.err.println( "Can't create log directory " + logDir );
+                System.exit( -1 );
+            }
+            oldSegments = WriteAheadLog.existing( logDir );
+            firstSequence = WriteAheadLog.nextSequence( oldSegments );
         }
-        catch( SQLException e )
+
+        syncPool = new ConnectionPool( "Sync", this,
+                Integer.getInteger( "lad.db.syncPoolSize", 4 ), true );
+        delayedPool = new ConnectionPool( "Delayed", this,
+                Integer.getInteger( "lad.db.delayedPoolSize", partitions ),
+                false );
+
+        // Start the Delayed runner threads
+        runners = new DelayedRunner[ partitions ];
+        runnersLeft = partitions;
+        for( int i = 0; i < partitions; i++ )
         {
-            System.err.println( "Error while selecting database." +
-                                e.toString() );
-            System.exit( -1 );
+            File spill = new File( spillDir, "lad-spill-" + i + ".dat" );
+            WriteAheadLog log = logDir == null ? null : new WriteAheadLog(
+                    logDir, i, firstSequence, logSegmentSize );
+            runners[ i ] = new DelayedRunner( i, delayedPool, queueCapacity,
+                                              spill, log );
+            new Thread( runners[ i ] ).start();
         }
-        
-        // Start the Delayed runner thread
-        runner = new DelayedRunner( conn.createStatement() );
-        new Thread( runner ).start();
+        initialized = true;
+        replay( oldSegments );
 
         // Populate the table list
         populateTableList();
     }
 
+    /**
+     * Queues the writes that were not committed in the log segments of the
+     * last run, then deletes the segments.
+     *
+     * The writes are logged again as they are queued, and the new logs are
+     * forced before the old segments are deleted.  Errors are fatal.
+     *
+     * @param segments Segment files left by the last run, oldest first
+     */
+    private void replay( File[] segments )
+    {
+        if( segments.length == 0 )
+        {
+            return;
+        }
+
+        long replayed = 0;
+        try
+        {
+            for( File segment : segments )
+            {
+                for( PendingWrite write : WriteAheadLog.read( segment ) )
+                {
+                    delaySQL( write );
+                    replayed++;
+                }
+            }
+            for( DelayedRunner runner : runners )
+            {
+                runner.syncLog();
+            }
+        }
+        catch( IOException e )
+        {
+            System.err.println( "Error while replaying the delayed write " +
+                                "log." + e.toString() );
+            System.exit( -1 );
+        }
+
+        for( File segment : segments )
+        {
+            if( !segment.delete() )
+            {
+                System.err.println( "Can't delete log segment " + segment );
+            }
+        }
+        Debug.log( "Replayed " + replayed + " delayed writes from " +
+                   segments.length + " log segments", "Startup" );
+    }
+
+    /**
+     * Opens a new connection to the database through the backend.
+     *
+     * @return The opened connection
+     * @throws SQLException Thrown if the connection fails
+     */
+    Connection openConnection() throws SQLException
+    {
+        return backend.openConnection();
+    }
+
+    /**
+     * Gets a backend by name
+     *
+     * @param name mysql or embedded
+     * @return The backend
+     * @throws IllegalArgumentException Thrown if there is no such backend
+     */
+    private static StorageBackend backendNamed( String name )
+    {
+        switch( name.toLowerCase() )
+        {
+            case "mysql":
+                return new MySQLBackend();
+            case "embedded":
+                return new EmbeddedBackend( new File( System.getProperty(
+                        "lad.db.embeddedFile", "lad-db" ) ) );
+        }
+        throw new IllegalArgumentException( "Unknown storage backend: " +
+                                            name );
+    }
+
+    /**
+     * Sets the database the connections are opened to.
+     *
+     * Only takes effect if called before the database is initialized.
+     *
+     * @param n_backend Backend to use
+     */
+    public static void setBackend( StorageBackend n_backend )
+    {
+        backend = n_backend;
+    }
+
+    /**
+     * Gets the database the connections are opened to
+     *
+     * @return The backend
+     */
+    public static StorageBackend getBackend()
+    {
+        return backend;
+    }
+
     /**
      * Static function to get the MySQL connection.
      *
+     * Meant for startup and table maintenance, anything running while the
+     * game is up should borrow a pooled connection instead.
+     *
+     * @see lad.db.MySQLDB#borrow(lad.db.MySQLDB.Lane)
      * @return A valid Connection to the MySQL Database
      */
     public static Connection getConn()
@@ -95,44 +411,564 @@ public class MySQLDB
     }
 
     /**
-     * Simply notifies the delayed runner thread to wake up.
+     * Borrows a connection from the pool of a lane.
+     *
+     * Waits if every connection of the lane is in use.  The connection has to
+     * be released when the caller is done with it.
+     *
+     * @param lane Lane to borrow from
+     * @return A checked connection
+     * @throws SQLException Thrown if a connection fails to open
+     */
+    public static PooledConnection borrow( Lane lane ) throws SQLException
+    {
+        return getPool( lane ).borrow();
+    }
+
+    /**
+     * Gets the pool of a lane, mainly for its metrics.
+     *
+     * Only connects the first time.  The connections handed out are checked
+     * by the pool, so this never waits on the database once it is up.
+     *
+     * @param lane Lane of the pool
+     * @return The lane's pool
+     */
+    public static ConnectionPool getPool( Lane lane )
+    {
+        MySQLDB db = getInstance();
+        if( !db.initialized )
+        {
+            db.getConnection();
+        }
+        return lane == Lane.SYNC ? db.syncPool : db.delayedPool;
+    }
+
+    /**
+     * Simply notifies the delayed runner threads to wake up.
      *
      * Used if the message pump needs to be refreshed or if the system is
      * exiting.
      */
     public static void notifyRunner()
     {
-        Object notifier = getInstance().runner.notifier;
-        synchronized( notifier )
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            runner.wake();
+        }
+    }
+
+    /**
+     * Waits until every delayed write queued so far has been written.
+     *
+     * Used on startup so writes replayed from the log are in the tables
+     * before they are read.  Returns early if the server stops.
+     */
+    public static void flush()
+    {
+        DelayedRunner[] runners = getInstance().runners;
+        for( DelayedRunner runner : runners )
+        {
+            while( !runner.isIdle() && LADJava.running )
+            {
+                runner.wake();
+                LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos( 10 ) );
+            }
+        }
+    }
+
+    /**
+     * Called by each runner once it has written its last statements.
+     *
+     * Logs the pool metrics once every runner has stopped.
+     */
+    static void runnerStopped()
+    {
+        MySQLDB db = getInstance();
+        synchronized( db )
+        {
+            db.runnersLeft--;
+            if( db.runnersLeft > 0 )
+            {
+                return;
+            }
+        }
+        Debug.log( db.syncPool.toString(), "MySQL" );
+        Debug.log( db.delayedPool.toString(), "MySQL" );
+        Debug.log( "Commit latency (us): " + commitLatency, "MySQL" );
+    }
+
+    /**
+     * Sets the number of partitions of the delayed writes.
+     *
+     * Each partition has its own queue and runner thread, and every write of
+     * a row goes to the same partition.  Only takes effect if called before
+     * the database is initialized.  Defaults to the lad.db.partitions system
+     * property, or 2.
+     *
+     * @param count Number of partitions (at least 1)
+     */
+    public static void setPartitionCount( int count )
+    {
+        partitions = Math.max( 1, count );
+    }
+
+    /**
+     * Gets the number of partitions of the delayed writes
+     *
+     * @return Partition count
+     */
+    public static int getPartitionCount()
+    {
+        return getInstance().runners.length;
+    }
+
+    /**
+     * Gets the number of writes waiting in each partition's queue (including
+     * its spill file)
+     *
+     * @return Queue depth of each partition
+     */
+    public static long[] getPartitionDepths()
+    {
+        DelayedRunner[] runners = getInstance().runners;
+        long[] depths = new long[ runners.length ];
+        for( int i = 0; i < runners.length; i++ )
+        {
+            depths[ i ] = runners[ i ].getDepth();
+        }
+        return depths;
+    }
+
+    /**
+     * Gets the number of delayed writes waiting over all partitions
+     *
+     * @return Total queue depth
+     */
+    public static long getQueueDepth()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getDepth();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the age of the oldest delayed write that has not been committed
+     *
+     * @return Age in milliseconds, 0 if nothing is waiting
+     */
+    public static long getOldestPendingAge()
+    {
+        long oldest = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            oldest = Math.max( oldest, runner.getOldestAge() );
+        }
+        return oldest;
+    }
+
+    /**
+     * Gets the histogram of the time between queueing a delayed write and
+     * committing it.
+     *
+     * Use getPercentile on it for the latency percentiles.  A coalesced row
+     * counts from the time its first write was queued.
+     *
+     * @return Latency histogram in microseconds
+     */
+    public static Histogram getCommitLatency()
+    {
+        return commitLatency;
+    }
+
+    /**
+     * Sets the number of writes each partition's queue can hold.
+     *
+     * Only takes effect if called before the database is initialized.
+     * Defaults to the lad.db.queueCapacity system property, or 8192.  The
+     * capacity is rounded up to a power of two.
+     *
+     * @param capacity Capacity of each queue (at least 2)
+     */
+    public static void setQueueCapacity( int capacity )
+    {
+        queueCapacity = Math.max( 2, capacity );
+    }
+
+    /**
+     * Sets what happens to a delayed write when its queue is full.
+     *
+     * Defaults to the lad.db.fullPolicy system property, or BLOCK.  Spill
+     * files go to the lad.db.spillDir system property, or the temp directory.
+     *
+     * @param policy Policy for full queues
+     */
+    public static void setFullPolicy( FullPolicy policy )
+    {
+        fullPolicy = policy;
+    }
+
+    /**
+     * Gets what happens to a delayed write when its queue is full
+     *
+     * @return Policy for full queues
+     */
+    public static FullPolicy getFullPolicy()
+    {
+        return fullPolicy;
+    }
+
+    /**
+     * Sets the directory the logs of the delayed writes are kept in.
+     *
+     * Only takes effect if called before the database is initialized.
+     * Defaults to the lad.db.logDir system property, or "wal".
+     *
+     * @param dir Directory of the logs, null to not log the writes
+     */
+    public static void setLogDir( File dir )
+    {
+        logDir = dir;
+    }
+
+    /**
+     * Sets how often the logs of the delayed writes are forced to disk.
+     *
+     * Defaults to the lad.db.logSync system property, or INTERVAL.  EVERY and
+     * GROUP make the thread queueing a write, the game loop's included, wait
+     * for the disk.  The logs are kept in the lad.db.logDir system property,
+     * or "wal", and are not used at all if lad.db.log is false.
+     *
+     * @param sync Sync policy of the logs
+     */
+    public static void setLogSync( LogSync sync )
+    {
+        logSync = sync;
+    }
+
+    /**
+     * Gets how often the logs of the delayed writes are forced to disk
+     *
+     * @return Sync policy of the logs
+     */
+    public static LogSync getLogSync()
+    {
+        return logSync;
+    }
+
+    /**
+     * Sets the time between forcing the logs with the INTERVAL policy.
+     *
+     * The runners force the logs as they wake up, so the interval is never
+     * shorter than the max delay.  Defaults to the lad.db.logInterval system
+     * property, or 100.
+     *
+     * @param millis Milliseconds between forcing the logs
+     */
+    public static void setLogInterval( long millis )
+    {
+        logInterval = Math.max( 0, millis );
+    }
+
+    /**
+     * Gets the time between forcing the logs with the INTERVAL policy
+     *
+     * @return Milliseconds between forcing the logs
+     */
+    public static long getLogInterval()
+    {
+        return logInterval;
+    }
+
+    /**
+     * Gets the number of log segments that still hold writes not committed
+     *
+     * @return Segment count over all partitions
+     */
+    public static long getLogSegments()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getLogSegments();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of delayed writes dropped because their queue was full
+     *
+     * @return Rows shed since startup
+     */
+    public static long getRowsShed()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getRowsShed();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of delayed writes sent to a spill file
+     *
+     * @return Rows spilled since startup
+     */
+    public static long getRowsSpilled()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getRowsSpilled();
+        }
+        return total;
+    }
+
+    /**
+     * Gets a barrier on the delayed writes queued so far.
+     *
+     * Does not wait, use isWritten to check on it later.
+     *
+     * @return The barrier
+     */
+    public static long[] writeBarrier()
+    {
+        DelayedRunner[] runners = getInstance().runners;
+        long[] barrier = new long[ runners.length ];
+        for( int i = 0; i < runners.length; i++ )
+        {
+            barrier[ i ] = runners[ i ].barrier();
+        }
+        return barrier;
+    }
+
+    /**
+     * Checks if every delayed write queued before a barrier has been
+     * committed (or dropped).
+     *
+     * @param barrier Barrier from writeBarrier
+     * @return True if the writes are done
+     */
+    public static boolean isWritten( long[] barrier )
+    {
+        DelayedRunner[] runners = getInstance().runners;
+        for( int i = 0; i < runners.length; i++ )
+        {
+            if( !runners[ i ].isPassed( barrier[ i ] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the thread running the game ticks.
+     *
+     * From then on, every connection it borrows and every wait on a full
+     * delayed write queue counts as database I/O of the tick.
+     *
+     * @param thread Thread running the ticks
+     */
+    public static void setTickThread( Thread thread )
+    {
+        tickThread = thread;
+    }
+
+    /**
+     * Counts time spent on the database if the current thread runs the ticks
+     *
+     * @param nanos Nanoseconds spent
+     */
+    static void recordIO( long nanos )
+    {
+        if( Thread.currentThread() == tickThread )
+        {
+            tickIONanos.addAndGet( nanos );
+            tickIOCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the time the game ticks spent on database I/O.
+     *
+     * Counts from borrowing a connection (including waiting for one) to
+     * releasing it, plus any time blocked on a full delayed write queue or
+     * waiting for the log of the delayed writes to be forced.
+     * Nothing on the tick should wait on the database, so this should stay
+     * at zero.
+     *
+     * @return Time in microseconds since the game loop started
+     */
+    public static long getTickIOTime()
+    {
+        return TimeUnit.NANOSECONDS.toMicros( tickIONanos.get() );
+    }
+
+    /**
+     * Gets the number of times the game ticks waited on the database
+     *
+     * @return Count since the game loop started
+     */
+    public static long getTickIOCount()
+    {
+        return tickIOCount.get();
+    }
+
+    /**
+     * Gets the time callers spent blocked on a full queue
+     *
+     * @return Blocked time in milliseconds since startup
+     */
+    public static long getBlockedTime()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getBlockedTime();
+        }
+        return total;
+    }
+
+    /**
+     * Sets the maximum number of statements a delayed runner writes in a
+     * single transaction.
+     *
+     * A runner is also woken up as soon as this many statements are
+     * waiting in its partition.  Defaults to the lad.db.drainSize system
+     * property, or 500.
+     *
+     * @param size Maximum statements per drain (at least 1)
+     */
+    public static void setDrainSize( int size )
+    {
+        drainSize = Math.max( 1, size );
+    }
+
+    /**
+     * Gets the maximum number of statements a runner writes in a single
+     * transaction.
+     *
+     * @return Maximum statements per drain
+     */
+    public static int getDrainSize()
+    {
+        return drainSize;
+    }
+
+    /**
+     * Sets the maximum number of rows a delayed runner writes with a single
+     * upsert statement.
+     *
+     * The upserts of a table in a drain are combined into statements of this
+     * many rows.  Defaults to the lad.db.upsertRows system property, or 100.
+     *
+     * @param rows Maximum rows per upsert statement (at least 1)
+     */
+    public static void setUpsertRows( int rows )
+    {
+        upsertRows = Math.max( 1, rows );
+    }
+
+    /**
+     * Gets the maximum number of rows a runner writes with a single upsert
+     * statement.
+     *
+     * @return Maximum rows per upsert statement
+     */
+    public static int getUpsertRows()
+    {
+        return upsertRows;
+    }
+
+    /**
+     * Sets the maximum time a statement waits before a delayed runner wakes
+     * up to write it.
+     *
+     * Defaults to the lad.db.maxDelay system property, or 100.
+     *
+     * @param millis Maximum delay in milliseconds (at least 1)
+     */
+    public static void setMaxDelay( long millis )
+    {
+        maxDelay = Math.max( 1, millis );
+    }
+
+    /**
+     * Gets the maximum time a statement waits before a runner wakes up to
+     * write it.
+     *
+     * @return Maximum delay in milliseconds
+     */
+    public static long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    /**
+     * Gets the number of rows the delayed runners have written.
+     *
+     * @return Rows written since startup
+     */
+    public static long getRowsWritten()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
         {
-            notifier.notify();
+            total += runner.getRowsWritten();
         }
+        return total;
+    }
+
+    /**
+     * Gets the number of rows that were not written because a newer version
+     * of the same row was queued before the runner reached it.
+     *
+     * @return Rows coalesced since startup
+     */
+    public static long getRowsCoalesced()
+    {
+        long total = 0;
+        for( DelayedRunner runner : getInstance().runners )
+        {
+            total += runner.getRowsCoalesced();
+        }
+        return total;
     }
 
     /**
      * Gets the connection to the MySQL DB.
      *
      * The initialization should be called first.  The internal handler for
-     * initializing within this function is to exit on failure.
+     * initializing within this function is to exit on failure.  If the
+     * connection is no longer valid it is reopened.
      *
      * @see lad.db.MySQLDB#initialize()
      * @return A valid connection
      */
-    private Connection getConnection()
+    private synchronized Connection getConnection()
     {
-        if( conn == null )
+        try
         {
-            try
+            if( conn == null )
             {
                 initialize();
             }
-            catch( SQLException e )
+            else if( !conn.isValid( 2 ) )
             {
-                System.err.println( "Failed to connect to MySQL DB." );
-                System.err.println( e.toString() );
-                System.exit( -1 );
+                conn = openConnection();
             }
         }
+        catch( SQLException e )
+        {
+            System.err.println( "Failed to connect to MySQL DB." );
+            System.err.println( e.toString() );
+            System.exit( -1 );
+        }
         return conn;
     }
 
@@ -148,11 +984,14 @@ public class MySQLDB
     {
         try
         {
-            Statement stmt = conn.createStatement();
-            ResultSet result = stmt.executeQuery( "SHOW TABLES" );
-            while( result.next() )
+            DatabaseMetaData meta = conn.getMetaData();
+            try( ResultSet result = meta.getTables( conn.getCatalog(), null,
+                    "%", new String[]{ "TABLE" } ) )
             {
-                loadedTables.add( result.getString( 1 ) );
+                while( result.next() )
+                {
+                    loadedTables.add( result.getString( "TABLE_NAME" ) );
+                }
             }
         }
         catch( SQLException e )
@@ -183,6 +1022,55 @@ public class MySQLDB
     {
         Statement stmt = getConnection().createStatement();
         stmt.executeUpdate( "DROP TABLE " + table );
+        loadedTables.remove( storedName( table ) );
+    }
+
+    /**
+     * Creates an index on a column unless an index already starts with it
+     *
+     * @param table  Name of the table
+     * @param column Column to index
+     * @return True if the index was created, false if there already was one
+     * @throws SQLException Thrown if an error occurs with the query
+     */
+    public boolean ensureIndex( String table, String column )
+            throws SQLException
+    {
+        Connection connection = getConnection();
+        DatabaseMetaData meta = connection.getMetaData();
+        try( ResultSet result = meta.getIndexInfo( connection.getCatalog(),
+                null, storedName( table ), false, true ) )
+        {
+            while( result.next() )
+            {
+                if( result.getShort( "ORDINAL_POSITION" ) == 1 &&
+                    column.equalsIgnoreCase(
+                            result.getString( "COLUMN_NAME" ) ) )
+                {
+                    return false;
+                }
+            }
+        }
+        try( Statement stmt = connection.createStatement() )
+        {
+            stmt.executeUpdate( "CREATE INDEX " + table + "_" + column +
+                                " ON " + table + " ( " + column + " )" );
+        }
+        return true;
+    }
+
+    /**
+     * Changes the structure of a MySQL table
+     *
+     * @param table      Name of the table
+     * @param alteration What to change, as given to ALTER TABLE
+     * @throws SQLException Thrown if an error occurs with the query
+     */
+    public void alterTable( String table, String alteration )
+            throws SQLException
+    {
+        Statement stmt = getConnection().createStatement();
+        stmt.executeUpdate( "ALTER TABLE " + table + " " + alteration );
     }
 
     /**
@@ -197,18 +1085,23 @@ public class MySQLDB
     public void validateStructure( String[] fields, String tblName )
                 throws SQLException, GameException
     {
-        Statement stmt = getConnection().createStatement();
-        ResultSet result = stmt.executeQuery( "SHOW COLUMNS FROM " + tblName );
+        Connection connection = getConnection();
+        DatabaseMetaData meta = connection.getMetaData();
         int i = 0;
 
         // Iterate over each column and make sure it matches
-        while( result.next() )
+        try( ResultSet result = meta.getColumns( connection.getCatalog(),
+                null, storedName( tblName ), "%" ) )
         {
-            if( fields[ i ].compareToIgnoreCase( result.getString( 1 ) ) != 0 )
+            while( result.next() )
             {
-                throw new GameException( 3, "Table header error." );
+                if( i == fields.length || fields[ i ].compareToIgnoreCase(
+                        result.getString( "COLUMN_NAME" ) ) != 0 )
+                {
+                    throw new GameException( 3, "Table header error." );
+                }
+                i++;
             }
-            i++;
         }
 
         // Just in case a column is missing off the end
@@ -218,6 +1111,24 @@ public class MySQLDB
         }
     }
 
+    /**
+     * Gets the name of a table as the database stores it
+     *
+     * @param tblName Name of the table in any case
+     * @return Name in the table list, or tblName if it is not in it
+     */
+    private String storedName( String tblName )
+    {
+        for( String tbl : loadedTables )
+        {
+            if( tbl.equalsIgnoreCase( tblName ) )
+            {
+                return tbl;
+            }
+        }
+        return tblName;
+    }
+
     /**
      * Validates that a MySQL Table exists.
      *
@@ -242,10 +1153,12 @@ public class MySQLDB
 
         // Table doesn't exist, so load it
         Statement stmt = getConnection().createStatement();
-        stmt.executeUpdate( creationStr );
+        stmt.executeUpdate( backend.createString( creationStr ) );
 
-        // Table was successfully added, so add it to the list
-        loadedTables.add( tblName );
+        // Table was successfully added, so read the list again to get the
+        // name in the case the database stores it in
+        loadedTables.clear();
+        populateTableList();
     }
 
     /**
@@ -253,37 +1166,33 @@ public class MySQLDB
      *
      * The statement is added to a queue that is continuously emptied in a
      * separate thread.  That threads sole responsibility is to make sure the
-     * queue remains empty so it will be relatively small.
+     * queue remains empty so it will be relatively small.  Raw statements
+     * have no row, so they all go to the first partition and are only run in
+     * order with the writes of that partition.
      *
      * @param stmt The string to be delay-executed
      */
     public static void delaySQL( String stmt )
     {
-        DelayedRunner r = getInstance().runner;
-        r.addStmt( stmt );
-        synchronized( r.notifier )
-        {
-            r.notifier.notify();
-        }
+        delaySQL( PendingWrite.raw( stmt ) );
     }
 
     /**
-     * Adds a statement to be delay-executed.
+     * Adds a write to be delay-executed.
      *
-     * The statement is added to a queue that is continuously emptied in a
-     * separate thread.  That threads sole responsibility is to make sure the
-     * queue remains empty so it will be relatively small.
+     * The write is added to the queue of its row's partition, so the writes
+     * of a row are run in the order they were queued.  Writes of different
+     * partitions are run concurrently.  If an update of the same row
+     * with the same SQL is still waiting in the queue, it is replaced by this
+     * one instead.  The write holds a copy of its parameters, so this may be
+     * called from any thread without holding the game loop lock.
      *
-     * @param stmt The prepared statement to be delay-executed
+     * @param write The write to be delay-executed
      */
-    public static void delaySQL( PreparedStatement stmt )
+    public static void delaySQL( PendingWrite write )
     {
-        DelayedRunner r = getInstance().runner;
-        r.addStmt( stmt );
-        synchronized( r.notifier )
-        {
-            r.notifier.notify();
-        }
+        DelayedRunner[] runners = getInstance().runners;
+        runners[ write.getPartition( runners.length ) ].addStmt( write );
     }
 
     /**
@@ -300,111 +1209,4 @@ public class MySQLDB
     {
         private static final MySQLDB INSTANCE = new MySQLDB();
     }
-
-    private class DelayedRunner implements Runnable
-    {
-        private final Object notifier = new Object();
-        private final LinkedList< String > stmts;
-        private final LinkedList< PreparedStatement > pstmts;
-        private final Statement stmt;
-
-        DelayedRunner( Statement n_stmt )
-        {
-            // Set internal variables
-            stmts = new LinkedList<>();
-            pstmts = new LinkedList<>();
-            stmt = n_stmt;
-        }
-
-        void addStmt( String str )
-        {
-            // Add statement (string)
-            synchronized( stmts )
-            {
-                stmts.add( str );
-            }
-        }
-
-        void addStmt( PreparedStatement pstmt )
-        {
-            // Add statement (prepared)
-            synchronized( pstmts )
-            {
-                pstmts.add( pstmt );
-            }
-        }
-
-        @Override
-        public void run()
-        {
-            // Waits on notifier to wake up
-            Debug.log( "Started MySQL Delayed Runner Thread", "Thread" );
-            try
-            {
-                while( LADJava.running )
-                {
-                    synchronized( notifier )
-                    {
-                        notifier.wait();
-                        emptyQueue();
-                    }
-                }
-            }
-            catch( InterruptedException e )
-            {
-            }
-            emptyQueue();
-            Debug.log( "Ended MySQL Delayed Runner Thread", "Thread" );
-        }
-
-        private void emptyQueue()
-        {
-            // Empties both the string and the prepared queues by
-            // executing all of the functions in the arrays
-            try
-            {
-                synchronized( stmts )
-                {
-                    while( stmts.size() > 0 )
-                    {
-                        String stmtString = stmts.poll();
-                        if( stmt != null )
-                        {
-                            stmt.execute( stmtString );
-                        }
-                        else
-                        {
-                            Debug.log( "Not running a stmt because it was " +
-                                       "null", "MySQL" );
-                        }
-
-                        Debug.log( "Delay ran a SQL stmt.", "MySQL" );
-                    }
-                }
-                synchronized( pstmts )
-                {
-                    while( pstmts.size() > 0 )
-                    {
-                        PreparedStatement pstmt = pstmts.poll();
-                        if( pstmt != null )
-                        {
-                            pstmt.executeUpdate( );
-                        }
-                        else
-                        {
-                            Debug.log( "Not running a pstmt because it was " +
-                                       "null", "MySQL" );
-                        }
-
-                        Debug.log( "Delay ran a SQL pstmt.", "MySQL" );
-                    }
-                }
-            }
-            catch( SQLException e )
-            {
-                System.err.println( "Delayed execution of SQL failed." );
-                System.err.println( e.toString() );
-            }
-        }
-    }
 }
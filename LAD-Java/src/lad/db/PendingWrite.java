@@ -0,0 +1,529 @@
+package lad.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import lad.data.GameException;
+
+/**
+ * A single write waiting for the delayed runner.
+ *
+ * The parameters are copied when the write is created so that the caller can
+ * keep changing its own data (or queue another write) before the runner gets
+ * to it.  Only immutable parameter types (Integer, Long, Double, String and
+ * null) are accepted so the copy can not be changed afterwards either.
+ *
+ * Every write that belongs to a row carries the table and a key for the row.
+ * The key is the ID for tables that have one, or the primary key columns
+ * packed into a long for tables that do not.  The runner uses them to keep the
+ * writes for a row in order.
+ *
+ * Upserts of a table are combined by the runner into statements of many rows.
+ *
+ * @see lad.db.MySQLDB#delaySQL(lad.db.PendingWrite)
+ * @author msflowers
+ */
+public final class PendingWrite
+{
+    /**
+     * Table the write belongs to, null for raw statements
+     */
+    private final String table;
+
+    /**
+     * Key of the row in the table
+     */
+    private final long row;
+
+    /**
+     * SQL of the write
+     */
+    private final String sql;
+
+    /**
+     * Copy of the parameters, null for raw statements
+     */
+    private final Object[] params;
+
+    /**
+     * Key used to find an older write of the same row and SQL, null if the
+     * write may not be replaced by a newer one
+     */
+    private final Key key;
+
+    /**
+     * True if the write may be dropped when the queue is full
+     */
+    private final boolean sheddable;
+
+    /**
+     * Ctor
+     *
+     * @param table     Table the write belongs to
+     * @param row       Key of the row in the table
+     * @param sql       SQL of the write
+     * @param params    Parameters of the write (copied)
+     * @param coalesce  True if a newer write of the row may replace this one
+     * @param sheddable True if the write may be dropped when the queue is full
+     * @throws GameException Thrown if a parameter is not immutable
+     */
+    private PendingWrite( String table, long row, String sql, Object[] params,
+                          boolean coalesce, boolean sheddable )
+    {
+        this.table = table;
+        this.row = row;
+        this.sql = sql;
+        this.params = params == null ? null : params.clone();
+        this.key = coalesce ? new Key( table, row, sql ) : null;
+        this.sheddable = sheddable;
+
+        if( this.params != null )
+        {
+            for( Object param : this.params )
+            {
+                if( param != null && !( param instanceof Integer ) &&
+                    !( param instanceof Long ) &&
+                    !( param instanceof Double ) &&
+                    !( param instanceof String ) )
+                {
+                    throw new GameException( 4, "Invalid delayed parameter: " +
+                                             param.getClass().getName() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a write that sets the whole row.
+     *
+     * If the row is still waiting with the same SQL when this is queued, the
+     * older write is replaced since this one has the newer values.
+     *
+     * @param table  Table of the row
+     * @param row    Key of the row
+     * @param sql    SQL of the write
+     * @param params Parameters of the write
+     * @return Created write
+     */
+    public static PendingWrite update( String table, long row, String sql,
+                                       Object... params )
+    {
+        return new PendingWrite( table, row, sql, params, true, false );
+    }
+
+    /**
+     * Creates a write that inserts the whole row, or updates it if it exists.
+     *
+     * The values are every column of the table, in the order of its headers,
+     * except the updated column.  Works like an update, so an upsert of the
+     * row still waiting is replaced by this one, and the runner combines it
+     * with the other upserts of the table.
+     *
+     * @param profile Profile of the table
+     * @param row     Key of the row
+     * @param values  Values of the row
+     * @return Created write
+     * @throws GameException Thrown if the number of values is wrong
+     */
+    public static PendingWrite upsert( TableProfile profile, long row,
+                                       Object... values )
+    {
+        return newUpsert( profile, row, values, false );
+    }
+
+    /**
+     * Creates an upsert of a statistic.
+     *
+     * Works like an upsert, but the write is low priority and may be dropped
+     * if the queue is full and set to shed.  The next upsert of the row
+     * writes the dropped values again since it sets the whole row.
+     *
+     * @param profile Profile of the table
+     * @param row     Key of the row
+     * @param values  Values of the row
+     * @return Created write
+     * @throws GameException Thrown if the number of values is wrong
+     */
+    public static PendingWrite statistic( TableProfile profile, long row,
+                                          Object... values )
+    {
+        return newUpsert( profile, row, values, true );
+    }
+
+    /**
+     * Creates an upsert
+     *
+     * @param profile   Profile of the table
+     * @param row       Key of the row
+     * @param values    Values of the row
+     * @param sheddable True if the write may be dropped when the queue is full
+     * @return Created write
+     * @throws GameException Thrown if the number of values is wrong
+     */
+    private static PendingWrite newUpsert( TableProfile profile, long row,
+                                           Object[] values,
+                                           boolean sheddable )
+    {
+        Upsert upsert = Upsert.of( profile );
+        if( values.length != upsert.getParamCount() )
+        {
+            throw new GameException( 4, "Wrong number of values for " +
+                                     profile.tableName() + ": " +
+                                     values.length );
+        }
+        return new PendingWrite( profile.tableName(), row, upsert.getSQL(),
+                                 values, true, sheddable );
+    }
+
+    /**
+     * Creates a write that sets the whole row of a statistic.
+     *
+     * Works like an update, but the write is low priority and may be dropped
+     * if the queue is full and set to shed.  The next update of the row
+     * writes the dropped values again since it sets the whole row.
+     *
+     * @param table  Table of the row
+     * @param row    Key of the row
+     * @param sql    SQL of the write
+     * @param params Parameters of the write
+     * @return Created write
+     */
+    public static PendingWrite statistic( String table, long row, String sql,
+                                          Object... params )
+    {
+        return new PendingWrite( table, row, sql, params, true, true );
+    }
+
+    /**
+     * Creates a write that is always run, in order with the other writes of
+     * the row (inserts and deletes).
+     *
+     * @param table  Table of the row
+     * @param row    Key of the row
+     * @param sql    SQL of the write
+     * @param params Parameters of the write
+     * @return Created write
+     */
+    public static PendingWrite execute( String table, long row, String sql,
+                                        Object... params )
+    {
+        return new PendingWrite( table, row, sql, params, false, false );
+    }
+
+    /**
+     * Creates a write from a complete SQL string.
+     *
+     * Raw statements do not belong to a row so every write queued before one
+     * is run before it and every write queued after it is run after it.
+     *
+     * @param sql SQL to run
+     * @return Created write
+     */
+    public static PendingWrite raw( String sql )
+    {
+        return new PendingWrite( null, 0, sql, null, false, false );
+    }
+
+    /**
+     * Gets the table this write belongs to
+     *
+     * @return Table name, null if this is a raw statement
+     */
+    public String getTable()
+    {
+        return table;
+    }
+
+    /**
+     * Gets the key of the row this write belongs to
+     *
+     * @return Key of the row
+     */
+    public long getRow()
+    {
+        return row;
+    }
+
+    /**
+     * Gets the SQL of this write
+     *
+     * @return SQL
+     */
+    public String getSQL()
+    {
+        return sql;
+    }
+
+    /**
+     * Gets whether this write is a raw statement without parameters
+     *
+     * @return True if raw, false otherwise
+     */
+    public boolean isRaw()
+    {
+        return params == null;
+    }
+
+    /**
+     * Gets whether this write may be dropped when the queue is full
+     *
+     * @return True if low priority, false otherwise
+     */
+    public boolean isSheddable()
+    {
+        return sheddable;
+    }
+
+    /**
+     * Gets the partition this write belongs to.
+     *
+     * The partition only depends on the table and row, so every write of a
+     * row ends up in the same partition.  Raw statements belong to the first
+     * partition.
+     *
+     * @param count Number of partitions
+     * @return Partition between 0 and count - 1
+     */
+    int getPartition( int count )
+    {
+        if( table == null )
+        {
+            return 0;
+        }
+        long hash = table.hashCode() * 31L + row;
+        hash ^= hash >>> 32;
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int)( ( hash >>> 33 ) % count );
+    }
+
+    /**
+     * Gets the key used to replace older writes of the same row.
+     *
+     * @return Key, or null if this write is never replaced
+     */
+    Key getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Gets the key of the row without the SQL.
+     *
+     * @return Key of the row, or null for raw statements
+     */
+    Key getRowKey()
+    {
+        return table == null ? null : new Key( table, row, null );
+    }
+
+    /**
+     * Sets the parameters of a statement prepared from getSQL.
+     *
+     * @param stmt Statement to set the parameters on
+     * @throws SQLException Thrown if a parameter fails to set
+     */
+    public void bind( PreparedStatement stmt ) throws SQLException
+    {
+        bind( stmt, 0 );
+    }
+
+    /**
+     * Sets the parameters of a statement, starting after the parameters of
+     * the rows before this one.
+     *
+     * @param stmt   Statement to set the parameters on
+     * @param offset Number of parameters before the first one of this write
+     * @throws SQLException Thrown if a parameter fails to set
+     */
+    void bind( PreparedStatement stmt, int offset ) throws SQLException
+    {
+        for( int i = 0; i < params.length; i++ )
+        {
+            Object param = params[ i ];
+            int index = offset + i + 1;
+            if( param instanceof Integer )
+            {
+                stmt.setInt( index, (Integer)param );
+            }
+            else if( param instanceof Long )
+            {
+                stmt.setLong( index, (Long)param );
+            }
+            else if( param instanceof Double )
+            {
+                stmt.setDouble( index, (Double)param );
+            }
+            else if( param instanceof String )
+            {
+                stmt.setString( index, (String)param );
+            }
+            else
+            {
+                stmt.setNull( index, Types.NULL );
+            }
+        }
+    }
+
+    /**
+     * Writes this write to a stream so it can be read back with readFrom.
+     *
+     * @param out Stream to write to
+     * @throws IOException Thrown if the stream fails
+     */
+    void writeTo( DataOutput out ) throws IOException
+    {
+        out.writeBoolean( table != null );
+        if( table != null )
+        {
+            out.writeUTF( table );
+        }
+        out.writeLong( row );
+        out.writeUTF( sql );
+        out.writeBoolean( key != null );
+        out.writeBoolean( sheddable );
+        out.writeInt( params == null ? -1 : params.length );
+        if( params == null )
+        {
+            return;
+        }
+        for( Object param : params )
+        {
+            if( param instanceof Integer )
+            {
+                out.writeByte( 'I' );
+                out.writeInt( (Integer)param );
+            }
+            else if( param instanceof Long )
+            {
+                out.writeByte( 'L' );
+                out.writeLong( (Long)param );
+            }
+            else if( param instanceof Double )
+            {
+                out.writeByte( 'D' );
+                out.writeDouble( (Double)param );
+            }
+            else if( param instanceof String )
+            {
+                out.writeByte( 'S' );
+                out.writeUTF( (String)param );
+            }
+            else
+            {
+                out.writeByte( 'N' );
+            }
+        }
+    }
+
+    /**
+     * Reads a write written by writeTo.
+     *
+     * @param in Stream to read from
+     * @return The write that was read
+     * @throws IOException Thrown if the stream fails or is corrupt
+     */
+    static PendingWrite readFrom( DataInput in ) throws IOException
+    {
+        String table = in.readBoolean() ? in.readUTF() : null;
+        long row = in.readLong();
+        String sql = in.readUTF();
+        boolean coalesce = in.readBoolean();
+        boolean sheddable = in.readBoolean();
+        int count = in.readInt();
+        Object[] params = count < 0 ? null : new Object[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            byte type = in.readByte();
+            switch( type )
+            {
+                case 'I':
+                    params[ i ] = in.readInt();
+                    break;
+                case 'L':
+                    params[ i ] = in.readLong();
+                    break;
+                case 'D':
+                    params[ i ] = in.readDouble();
+                    break;
+                case 'S':
+                    params[ i ] = in.readUTF();
+                    break;
+                case 'N':
+                    params[ i ] = null;
+                    break;
+                default:
+                    throw new IOException( "Invalid parameter type " + type );
+            }
+        }
+        return new PendingWrite( table, row, sql, params, coalesce,
+                                 sheddable );
+    }
+
+    /**
+     * Identifies a row, or a row and the SQL written to it.
+     */
+    static final class Key
+    {
+        /**
+         * Table of the row
+         */
+        private final String table;
+
+        /**
+         * Key of the row
+         */
+        private final long row;
+
+        /**
+         * SQL written to the row, may be null
+         */
+        private final String sql;
+
+        /**
+         * Ctor
+         *
+         * @param table Table of the row
+         * @param row   Key of the row
+         * @param sql   SQL written to the row, may be null
+         */
+        Key( String table, long row, String sql )
+        {
+            this.table = table;
+            this.row = row;
+            this.sql = sql;
+        }
+
+        /**
+         * Keys are equal if the table, row and SQL all match
+         *
+         * @param other Object to compare to
+         * @return True if equal, false otherwise
+         */
+        @Override
+        public boolean equals( Object other )
+        {
+            if( !( other instanceof Key ) )
+            {
+                return false;
+            }
+            Key k = (Key)other;
+            return row == k.row && table.equals( k.table ) &&
+                   ( sql == null ? k.sql == null : sql.equals( k.sql ) );
+        }
+
+        /**
+         * Hash of the table, row and SQL
+         *
+         * @return Hash code
+         */
+        @Override
+        public int hashCode()
+        {
+            int hash = table.hashCode() * 31 + (int)( row ^ ( row >>> 32 ) );
+            return sql == null ? hash : hash * 31 + sql.hashCode();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package lad.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from one of the MySQLDB connection pools.
+ *
+ * Prepared statements are cached on the connection, so preparing the same SQL
+ * again after the connection is returned and borrowed again reuses the
+ * statement.  The connection must be released exactly once after it is
+ * borrowed, normally in a finally block.
+ *
+ * @see lad.db.MySQLDB#borrow(lad.db.MySQLDB.Lane)
+ * @author msflowers
+ */
+public class PooledConnection
+{
+    /**
+     * Pool the connection belongs to
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * Actual connection to the database
+     */
+    private Connection conn;
+
+    /**
+     * Prepared statements on the connection, by SQL
+     */
+    private final Map< String, PreparedStatement > prepared = new HashMap<>();
+
+    /**
+     * Prepared statements returning generated keys, by SQL
+     */
+    private final Map< String, PreparedStatement > preparedKeys =
+            new HashMap<>();
+
+    /**
+     * Statement for SQL without parameters
+     */
+    private Statement stmt = null;
+
+    /**
+     * Time (System.nanoTime) the connection was last asked for, before
+     * waiting on the pool
+     */
+    long requestedAt = 0;
+
+    /**
+     * Time (System.nanoTime) the connection was last borrowed
+     */
+    long borrowedAt = 0;
+
+    /**
+     * Time (System.nanoTime) the connection was last released
+     */
+    long releasedAt = 0;
+
+    /**
+     * True if the connection needs to be checked before it is used again
+     */
+    boolean suspect = false;
+
+    /**
+     * Ctor
+     *
+     * @param n_pool Pool the connection belongs to
+     * @param n_conn Connection to the database
+     */
+    PooledConnection( ConnectionPool n_pool, Connection n_conn )
+    {
+        pool = n_pool;
+        conn = n_conn;
+        releasedAt = System.nanoTime();
+    }
+
+    /**
+     * Gets the actual connection.
+     *
+     * Statements made directly on it are not cached.
+     *
+     * @return Connection to the database
+     */
+    public Connection getConnection()
+    {
+        return conn;
+    }
+
+    /**
+     * Gets a prepared statement for the SQL, preparing it if this connection
+     * has not prepared it yet.
+     *
+     * @param sql SQL of the statement
+     * @return Prepared statement
+     * @throws SQLException Thrown if the statement fails to prepare
+     */
+    public PreparedStatement prepare( String sql ) throws SQLException
+    {
+        PreparedStatement pstmt = prepared.get( sql );
+        if( pstmt == null )
+        {
+            pstmt = conn.prepareStatement( sql );
+            prepared.put( sql, pstmt );
+        }
+        return pstmt;
+    }
+
+    /**
+     * Gets a prepared statement for the SQL that returns the generated keys,
+     * preparing it if this connection has not prepared it yet.
+     *
+     * @param sql SQL of the statement (normally an insert)
+     * @return Prepared statement
+     * @throws SQLException Thrown if the statement fails to prepare
+     */
+    public PreparedStatement prepareInsert( String sql ) throws SQLException
+    {
+        PreparedStatement pstmt = preparedKeys.get( sql );
+        if( pstmt == null )
+        {
+            pstmt = conn.prepareStatement( sql,
+                                           Statement.RETURN_GENERATED_KEYS );
+            preparedKeys.put( sql, pstmt );
+        }
+        return pstmt;
+    }
+
+    /**
+     * Gets the statement used for SQL without parameters.
+     *
+     * @return Statement on this connection
+     * @throws SQLException Thrown if the statement fails to create
+     */
+    public Statement getStatement() throws SQLException
+    {
+        if( stmt == null )
+        {
+            stmt = conn.createStatement();
+        }
+        return stmt;
+    }
+
+    /**
+     * Marks the connection to be checked before it is borrowed again.
+     *
+     * Should be called when a statement on the connection fails in a way that
+     * could mean the connection itself is broken.
+     */
+    public void invalidate()
+    {
+        suspect = true;
+    }
+
+    /**
+     * Returns the connection to its pool.
+     *
+     * The time since it was asked for counts as database I/O of the tick if
+     * this is the game loop thread.
+     *
+     * @see lad.db.MySQLDB#getTickIOTime()
+     */
+    public void release()
+    {
+        pool.release( this );
+        MySQLDB.recordIO( releasedAt - requestedAt );
+    }
+
+    /**
+     * Replaces the connection with a new one and drops the statement cache.
+     *
+     * @param n_conn The new connection
+     */
+    void replace( Connection n_conn )
+    {
+        close();
+        conn = n_conn;
+        suspect = false;
+    }
+
+    /**
+     * Closes the connection, ignoring any errors since it is being dropped.
+     */
+    void close()
+    {
+        prepared.clear();
+        preparedKeys.clear();
+        stmt = null;
+        try
+        {
+            conn.close();
+        }
+        catch( SQLException e )
+        {
+        }
+    }
+}
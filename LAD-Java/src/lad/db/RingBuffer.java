@@ -0,0 +1,156 @@
+package lad.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for many producers and a single consumer.
+ *
+ * Producers claim a position by advancing the tail with a compare and set, so
+ * offering never locks.  Each position has a sequence number that tells
+ * whether it is free for the producer of the current lap or filled for the
+ * consumer, so the consumer never sees a position before its element is
+ * written.  Only one thread may poll.
+ *
+ * @param <E> Type of the elements
+ * @author msflowers
+ */
+class RingBuffer< E >
+{
+    /**
+     * Elements of the buffer
+     */
+    private final AtomicReferenceArray< E > elements;
+
+    /**
+     * Sequence of each position
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Mask used to turn a position into an index
+     */
+    private final int mask;
+
+    /**
+     * Next position to offer to
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Next position to poll from, only written by the consumer
+     */
+    private volatile long head = 0;
+
+    /**
+     * Ctor
+     *
+     * @param minCapacity Minimum capacity, rounded up to a power of two
+     */
+    RingBuffer( int minCapacity )
+    {
+        int capacity = Integer.highestOneBit( Math.max( 2, minCapacity ) );
+        if( capacity < minCapacity )
+        {
+            capacity <<= 1;
+        }
+        elements = new AtomicReferenceArray<>( capacity );
+        sequences = new AtomicLongArray( capacity );
+        for( int i = 0; i < capacity; i++ )
+        {
+            sequences.set( i, i );
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds an element to the tail of the buffer.
+     *
+     * @param element Element to add
+     * @return True if added, false if the buffer is full
+     */
+    boolean offer( E element )
+    {
+        while( true )
+        {
+            long pos = tail.get();
+            int index = (int)pos & mask;
+            long seq = sequences.get( index );
+            if( seq == pos )
+            {
+                if( tail.compareAndSet( pos, pos + 1 ) )
+                {
+                    elements.set( index, element );
+                    sequences.set( index, pos + 1 );
+                    return true;
+                }
+            }
+            else if( seq < pos )
+            {
+                // The consumer has not freed the position from the last lap
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of the buffer.  Consumer only.
+     *
+     * @return The element, or null if the buffer is empty
+     */
+    E poll()
+    {
+        long pos = head;
+        int index = (int)pos & mask;
+        if( sequences.get( index ) != pos + 1 )
+        {
+            return null;
+        }
+        E element = elements.get( index );
+        elements.lazySet( index, null );
+        sequences.lazySet( index, pos + mask + 1 );
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Gets the element at the head of the buffer without removing it.
+     *
+     * May be called from any thread, in which case the element may already
+     * be gone by the time it is used.
+     *
+     * @return The element, or null if the buffer is empty
+     */
+    E peek()
+    {
+        long pos = head;
+        int index = (int)pos & mask;
+        if( sequences.get( index ) != pos + 1 )
+        {
+            return null;
+        }
+        return elements.get( index );
+    }
+
+    /**
+     * Gets the number of elements in the buffer
+     *
+     * @return Number of elements (a snapshot if producers are active)
+     */
+    int size()
+    {
+        long size = tail.get() - head;
+        return (int)Math.max( 0, Math.min( size, mask + 1 ) );
+    }
+
+    /**
+     * Gets the number of elements the buffer can hold
+     *
+     * @return Capacity of the buffer
+     */
+    int capacity()
+    {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,473 @@
+package lad.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import lad.game.Debug;
+
+/**
+ * A binary snapshot of the loaded rows of every table that supports it.
+ *
+ * The game loop captures a snapshot every interval and when the server stops,
+ * and saves it to a file.  On startup the file is memory-mapped and each
+ * table is read back from it instead of the database.  Each table is then
+ * caught up: rows whose updated column is at or after the watermark of the
+ * snapshot are read from the database, and rows no longer in the database
+ * are removed.  The watermark is taken from the database clock a second
+ * before the snapshot is captured, so nothing written after the capture can
+ * be missed.
+ *
+ * The file starts with a version, the watermark and a directory of the
+ * tables with the headers, length and checksum of each.  A snapshot with a
+ * different version, a table whose headers changed or a bad checksum is not
+ * used.
+ *
+ * @author msflowers
+ */
+public class Snapshot
+{
+    /**
+     * Name of the column holding the time a row was last changed
+     */
+    public static final String UPDATED_COLUMN = "updated";
+
+    /**
+     * Definition of the updated column, used when creating or upgrading a
+     * table
+     */
+    public static final String UPDATED_DEFINITION = "`updated` timestamp " +
+            "NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP";
+
+    /**
+     * Definition of the index on the updated column
+     */
+    public static final String UPDATED_INDEX = "KEY `updated` (`updated`)";
+
+    /**
+     * Marks the start of a snapshot file
+     */
+    private static final int MAGIC = 0x4c414453;
+
+    /**
+     * Version of the file format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * File the snapshot is saved to
+     */
+    private static File file = new File( System.getProperty(
+            "lad.db.snapshot", "lad.snapshot" ) );
+
+    /**
+     * Milliseconds between snapshots, 0 to never take one
+     */
+    private static volatile long interval =
+            Long.getLong( "lad.db.snapshotInterval", 600000 );
+
+    /**
+     * Time (database clock, epoch milliseconds) the changes are caught up
+     * from
+     */
+    private final long watermark;
+
+    /**
+     * Contents of each table, by name
+     */
+    private final Map< String, Section > sections;
+
+    /**
+     * Ctor
+     *
+     * @param n_watermark Time the changes are caught up from
+     * @param n_sections  Contents of each table
+     */
+    private Snapshot( long n_watermark, Map< String, Section > n_sections )
+    {
+        watermark = n_watermark;
+        sections = n_sections;
+    }
+
+    /**
+     * Sets the snapshot file.
+     *
+     * Defaults to the lad.db.snapshot system property, or "lad.snapshot".
+     *
+     * @param n_file File the snapshot is saved to and loaded from
+     */
+    public static void setFile( File n_file )
+    {
+        file = n_file;
+    }
+
+    /**
+     * Sets the time between snapshots.
+     *
+     * Defaults to the lad.db.snapshotInterval system property, or 10
+     * minutes.
+     *
+     * @param millis Milliseconds between snapshots, 0 to never take one
+     */
+    public static void setInterval( long millis )
+    {
+        interval = Math.max( 0, millis );
+    }
+
+    /**
+     * Gets the time between snapshots.
+     *
+     * No snapshots are taken while the working set is used, since the tables
+     * are not loaded on startup then.
+     *
+     * @see lad.db.WorkingSet#isEnabled()
+     * @return Milliseconds between snapshots, 0 if none are taken
+     */
+    public static long getInterval()
+    {
+        return WorkingSet.isEnabled() ? 0 : interval;
+    }
+
+    /**
+     * Gets the watermark for a snapshot about to be captured.
+     *
+     * @return Database time a second ago, in epoch milliseconds
+     * @throws SQLException Thrown if the database can not be reached
+     */
+    public static long watermark() throws SQLException
+    {
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            ResultSet rs = pc.getStatement().executeQuery(
+                    "SELECT CURRENT_TIMESTAMP" );
+            try
+            {
+                rs.next();
+                return rs.getTimestamp( 1 ).getTime() - 1000;
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+
+    /**
+     * Captures the loaded rows of the managers' tables.
+     *
+     * Must be called while nothing changes the loaded rows, normally from
+     * the game loop's thread between commands.
+     *
+     * @param n_watermark Watermark from watermark(), taken before this
+     * @param managers    Managers whose tables are captured
+     * @return The snapshot
+     * @throws IOException Thrown if a table fails to write
+     */
+    public static Snapshot capture( long n_watermark, DBManager... managers )
+            throws IOException
+    {
+        Map< String, Section > captured = new LinkedHashMap<>();
+        for( DBManager manager : managers )
+        {
+            for( TableProfile profile : manager.profiles() )
+            {
+                if( !( profile instanceof SnapshotProfile ) ||
+                    !profile.loadData() )
+                {
+                    continue;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ( (SnapshotProfile)profile ).writeRows(
+                        new DataOutputStream( bytes ) );
+                captured.put( profile.tableName(), new Section(
+                        headersOf( profile ), bytes.toByteArray() ) );
+            }
+        }
+        return new Snapshot( n_watermark, captured );
+    }
+
+    /**
+     * Saves the snapshot to the snapshot file.
+     *
+     * The snapshot is written to a temporary file first and moved over the
+     * old one, so a failed save leaves the old snapshot in place.
+     *
+     * @throws IOException Thrown if the file fails to write
+     */
+    public void save() throws IOException
+    {
+        long start = System.nanoTime();
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        DataOutputStream dir = new DataOutputStream( directory );
+        dir.writeLong( watermark );
+        dir.writeInt( sections.size() );
+        long total = 0;
+        for( Map.Entry< String, Section > entry : sections.entrySet() )
+        {
+            Section section = entry.getValue();
+            dir.writeUTF( entry.getKey() );
+            dir.writeUTF( section.headers );
+            dir.writeInt( section.data.length );
+            dir.writeInt( checksum( section.data ) );
+            total += section.data.length;
+        }
+
+        File temp = new File( file.getPath() + ".tmp" );
+        try( FileOutputStream fos = new FileOutputStream( temp ) )
+        {
+            DataOutputStream out = new DataOutputStream( fos );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( directory.size() );
+            directory.writeTo( out );
+            for( Section section : sections.values() )
+            {
+                out.write( section.data );
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move( temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        Debug.log( String.format( "Saved snapshot of %d tables, %d KB in " +
+                                  "%d ms", sections.size(), total / 1024,
+                                  ( System.nanoTime() - start ) / 1000000 ),
+                   "MySQL" );
+    }
+
+    /**
+     * Opens the snapshot file if it can be used to load the given tables.
+     *
+     * The file is memory-mapped and the checksum of every table is checked
+     * before anything is used.
+     *
+     * @param profiles Profiles of every table to be loaded
+     * @return The snapshot, or null if there is none or it can't be used
+     */
+    static Snapshot open( List< TableProfile > profiles )
+    {
+        if( !file.isFile() )
+        {
+            return null;
+        }
+
+        Map< String, Section > opened = new LinkedHashMap<>();
+        long mark;
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) )
+        {
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+            if( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+            {
+                Debug.log( "Snapshot " + file + " has another version, " +
+                           "not used", "Startup" );
+                return null;
+            }
+            byte[] directory = new byte[ buffer.getInt() ];
+            buffer.get( directory );
+            DataInputStream dir = new DataInputStream(
+                    new ByteArrayInputStream( directory ) );
+            mark = dir.readLong();
+            int count = dir.readInt();
+            int offset = buffer.position();
+            for( int i = 0; i < count; i++ )
+            {
+                String table = dir.readUTF();
+                String headers = dir.readUTF();
+                int length = dir.readInt();
+                int crc = dir.readInt();
+                byte[] data = new byte[ length ];
+                buffer.position( offset );
+                buffer.get( data );
+                if( checksum( data ) != crc )
+                {
+                    Debug.log( "Snapshot " + file + " is corrupt in " +
+                               table + ", not used", "Startup" );
+                    return null;
+                }
+                opened.put( table, new Section( headers, data ) );
+                offset += length;
+            }
+        }
+        catch( IOException | RuntimeException e )
+        {
+            Debug.log( "Snapshot " + file + " can't be read, not used: " +
+                       e.toString(), "Startup" );
+            return null;
+        }
+
+        for( TableProfile profile : profiles )
+        {
+            Section section = opened.get( profile.tableName() );
+            if( !( profile instanceof SnapshotProfile ) || section == null ||
+                !section.headers.equals( headersOf( profile ) ) )
+            {
+                Debug.log( "Snapshot " + file + " does not match " +
+                           profile.tableName() + ", not used", "Startup" );
+                return null;
+            }
+        }
+        return new Snapshot( mark, opened );
+    }
+
+    /**
+     * Reads the rows of a table back from the snapshot.
+     *
+     * @param profile Profile of the table
+     * @return Number of bytes read
+     * @throws IOException Thrown if the rows can't be read
+     */
+    int restore( SnapshotProfile profile ) throws IOException
+    {
+        byte[] data = sections.get( profile.tableName() ).data;
+        profile.readRows( new DataInputStream(
+                new ByteArrayInputStream( data ) ) );
+        return data.length;
+    }
+
+    /**
+     * Brings a restored table up to date with the database.
+     *
+     * Reads every row changed since the watermark, then the keys of every
+     * row to remove the ones that were deleted.
+     *
+     * @param profile Profile of the table
+     * @return Number of rows changed and number of rows removed
+     * @throws SQLException Thrown if the selects fail
+     */
+    int[] catchUp( SnapshotProfile profile ) throws SQLException
+    {
+        String table = profile.tableName();
+        int[] counts = new int[ 2 ];
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            PreparedStatement changedStmt = pc.prepare( "SELECT * FROM " +
+                    table + " WHERE " + UPDATED_COLUMN + " >= ?" );
+            changedStmt.setTimestamp( 1, new Timestamp( watermark ) );
+            try( ResultSet rs = changedStmt.executeQuery() )
+            {
+                counts[ 0 ] = profile.catchUp( rs );
+            }
+
+            StringBuilder keys = new StringBuilder( "SELECT " );
+            String[] columns = profile.keyColumns();
+            for( int i = 0; i < columns.length; i++ )
+            {
+                keys.append( i == 0 ? "" : ", " ).append( columns[ i ] );
+            }
+            keys.append( " FROM " ).append( table );
+
+            Set< Long > present = new HashSet<>();
+            Statement stmt = pc.getConnection().createStatement(
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+            stmt.setFetchSize( MySQLDB.getBackend().streamingFetchSize() );
+            try
+            {
+                ResultSet rs = stmt.executeQuery( keys.toString() );
+                while( rs.next() )
+                {
+                    present.add( profile.rowKey( rs ) );
+                }
+            }
+            finally
+            {
+                stmt.close();
+            }
+            counts[ 1 ] = profile.retainRows( present );
+        }
+        finally
+        {
+            pc.release();
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the watermark of the snapshot
+     *
+     * @return Database time the changes are caught up from
+     */
+    public long getWatermark()
+    {
+        return watermark;
+    }
+
+    /**
+     * Gets the headers of a table as a single string
+     *
+     * @param profile Profile of the table
+     * @return The headers
+     */
+    private static String headersOf( TableProfile profile )
+    {
+        return Arrays.toString( profile.tableHeaders() );
+    }
+
+    /**
+     * Calculates the checksum of a table's contents
+     *
+     * @param data Contents of the table
+     * @return CRC32 of the contents
+     */
+    private static int checksum( byte[] data )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, data.length );
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Contents of a single table
+     */
+    private static class Section
+    {
+        /**
+         * Headers of the table when the snapshot was captured
+         */
+        private final String headers;
+
+        /**
+         * Rows of the table, as written by writeRows
+         */
+        private final byte[] data;
+
+        /**
+         * Ctor
+         *
+         * @param n_headers Headers of the table
+         * @param n_data    Contents of the table
+         */
+        Section( String n_headers, byte[] n_data )
+        {
+            headers = n_headers;
+            data = n_data;
+        }
+    }
+}
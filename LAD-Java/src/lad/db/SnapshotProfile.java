@@ -0,0 +1,75 @@
+package lad.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * Interface for a profile of a table that can be saved in a snapshot.
+ *
+ * A snapshot holds the rows of the table as they are in memory.  On startup
+ * they are read back from the snapshot instead of the database, and then
+ * brought up to date with the rows that changed since the snapshot was taken
+ * and the rows that have been deleted since.  The table must have the
+ * updated column of Snapshot as its last column, and its key columns must be
+ * the first columns.
+ *
+ * @author msflowers
+ */
+public interface SnapshotProfile extends TableProfile
+{
+    /**
+     * Implement to get the key of a row as a single number.
+     *
+     * Must be the same number getRowKey of the loaded object gives.
+     *
+     * @param rs Row starting with the key columns
+     * @return Key of the row
+     * @throws SQLException Thrown when a column lookup fails
+     */
+    public long rowKey( ResultSet rs ) throws SQLException;
+
+    /**
+     * Implement to write every loaded row of the table.
+     *
+     * Called while nothing else changes the loaded rows.
+     *
+     * @param out Output to write to
+     * @throws IOException Thrown if the output fails
+     */
+    public void writeRows( DataOutput out ) throws IOException;
+
+    /**
+     * Implement to read the rows written by writeRows and add them as if
+     * they were loaded from the database.
+     *
+     * @param in Input to read from
+     * @throws IOException Thrown if the input fails
+     */
+    public void readRows( DataInput in ) throws IOException;
+
+    /**
+     * Implement to bring the loaded rows up to date with rows that changed
+     * in the database.
+     *
+     * A row that is already loaded is updated in place, any other row is
+     * added as if it was loaded.
+     *
+     * @param rs Changed rows, every column of the table
+     * @return Number of rows updated or added
+     * @throws SQLException Thrown when a column lookup fails
+     */
+    public int catchUp( ResultSet rs ) throws SQLException;
+
+    /**
+     * Implement to remove every loaded row whose key is not in the database
+     * anymore.
+     *
+     * @param keys Keys of every row in the database
+     * @return Number of rows removed
+     */
+    public int retainRows( Set< Long > keys );
+}
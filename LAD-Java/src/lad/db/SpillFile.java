@@ -0,0 +1,185 @@
+package lad.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Overflow file for the delayed writes of one partition.
+ *
+ * When the queue of a partition is full and the policy is to spill, the
+ * writes are appended to this file instead.  The runner reads them back in
+ * the order they were appended once the queue is empty.  The file is deleted
+ * whenever everything in it has been read.
+ *
+ * @author msflowers
+ */
+class SpillFile
+{
+    /**
+     * File the writes are spilled to
+     */
+    private final File file;
+
+    /**
+     * Stream appending to the file, null if nothing is spilled
+     */
+    private DataOutputStream out = null;
+
+    /**
+     * Stream reading from the file, null if nothing has been read yet
+     */
+    private DataInputStream in = null;
+
+    /**
+     * Number of writes appended since the file was created
+     */
+    private long appended = 0;
+
+    /**
+     * Number of writes read since the file was created
+     */
+    private long read = 0;
+
+    /**
+     * Time (System.nanoTime) the oldest unread write was queued
+     */
+    private long oldest = 0;
+
+    /**
+     * Ctor
+     *
+     * @param n_file File the writes are spilled to
+     */
+    SpillFile( File n_file )
+    {
+        file = n_file;
+    }
+
+    /**
+     * Appends a write to the end of the file.
+     *
+     * @param write    Write to append
+     * @param enqueued Time (System.nanoTime) the write was queued
+     * @param position Position of the write in the log, -1 if not logged
+     * @throws IOException Thrown if the file fails to write
+     */
+    synchronized void append( PendingWrite write, long enqueued,
+                              long position ) throws IOException
+    {
+        if( out == null )
+        {
+            out = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( file ) ) );
+        }
+        if( appended == read )
+        {
+            oldest = enqueued;
+        }
+        out.writeLong( enqueued );
+        out.writeLong( position );
+        write.writeTo( out );
+        appended++;
+    }
+
+    /**
+     * Gets the number of writes appended but not read yet
+     *
+     * @return Writes waiting in the file
+     */
+    synchronized long pending()
+    {
+        return appended - read;
+    }
+
+    /**
+     * Gets the time the oldest unread write was queued
+     *
+     * @return Time (System.nanoTime), only valid if something is pending
+     */
+    synchronized long oldest()
+    {
+        return oldest;
+    }
+
+    /**
+     * Reads the next writes from the file.
+     *
+     * Once everything has been read the file is deleted and a later append
+     * starts a new one.
+     *
+     * @param max       Maximum number of writes to read
+     * @param times     Filled with the time each write read was queued
+     * @param positions Filled with the log position of each write read
+     * @return Writes read, in the order they were appended
+     * @throws IOException Thrown if the file fails to read
+     */
+    synchronized List< PendingWrite > read( int max, List< Long > times,
+                                            List< Long > positions )
+            throws IOException
+    {
+        List< PendingWrite > writes = new ArrayList<>();
+        if( appended == read )
+        {
+            return writes;
+        }
+
+        out.flush();
+        if( in == null )
+        {
+            in = new DataInputStream( new BufferedInputStream(
+                    new FileInputStream( file ) ) );
+        }
+        while( writes.size() < max && read < appended )
+        {
+            times.add( in.readLong() );
+            positions.add( in.readLong() );
+            writes.add( PendingWrite.readFrom( in ) );
+            read++;
+        }
+
+        if( read < appended )
+        {
+            // Peek at the time of the next write without reading it
+            in.mark( 8 );
+            oldest = in.readLong();
+            in.reset();
+        }
+        else
+        {
+            close();
+            if( !file.delete() )
+            {
+                throw new IOException( "Can't delete " + file );
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Closes the streams and resets the counts.
+     *
+     * @throws IOException Thrown if a stream fails to close
+     */
+    private void close() throws IOException
+    {
+        if( in != null )
+        {
+            in.close();
+            in = null;
+        }
+        if( out != null )
+        {
+            out.close();
+            out = null;
+        }
+        appended = read = 0;
+    }
+}
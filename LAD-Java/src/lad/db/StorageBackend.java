@@ -0,0 +1,60 @@
+package lad.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Interface for the database the tables are stored in.
+ *
+ * Everything above the backend (the managers, the profiles and the delayed
+ * writes) only uses plain JDBC and the SQL of the profiles.  The backend
+ * opens the connections and covers the few places the databases differ.
+ * Selected with the lad.db.backend system property, see MySQLDB.
+ *
+ * @author msflowers
+ */
+public interface StorageBackend
+{
+    /**
+     * Implement to get the name the backend is selected by
+     *
+     * @return Name of the backend
+     */
+    public String getName();
+
+    /**
+     * Implement to open a new connection to the database.
+     *
+     * The connection must already be using the game's database.
+     *
+     * @return The opened connection
+     * @throws SQLException Thrown if the connection fails
+     */
+    public Connection openConnection() throws SQLException;
+
+    /**
+     * Implement to adapt the creation string of a profile to the database.
+     *
+     * The profiles write their creation strings for MySQL.
+     *
+     * @param createStr Creation string of the profile
+     * @return Creation string the database accepts
+     */
+    public String createString( String createStr );
+
+    /**
+     * Implement to get the fetch size that streams the rows of a large
+     * select instead of reading them all into memory.
+     *
+     * @return Fetch size for a forward only, read only statement
+     */
+    public int streamingFetchSize();
+
+    /**
+     * Implement to tell if LAST_INSERT_ID( expr ) can be used to read back
+     * a value set by an update as the generated key.
+     *
+     * @return True if it can
+     */
+    public boolean supportsLastInsertId();
+}
@@ -35,6 +35,16 @@ public interface TableProfile
      */
     public String[] tableHeaders();
 
+    /**
+     * Implement to get the columns of the primary key.
+     *
+     * Used to build the upserts of the table, the other columns are the ones
+     * an upsert updates.
+     *
+     * @return Key columns, in order
+     */
+    public String[] keyColumns();
+
     /**
      * Implement to handle each row from the table when selecting.
      *
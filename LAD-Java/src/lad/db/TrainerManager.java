@@ -1,23 +1,43 @@
 package lad.db;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import lad.data.GameException;
 import lad.data.Minion;
 import lad.data.Trainer;
+import lad.game.Debug;
 
 /**
  * Manages all of the trainers (and consequently their minions)
  *
+ * Lookups do not lock, so views can read the trainers while the game loop
+ * changes them.  Changes to the indexes are synchronized.
+ *
  * @author msflowers
  */
 public class TrainerManager extends DBManager
 {
     /**
-     * The internal list of trainers.
+     * Trainers by ID
+     */
+    private final IntMap< Trainer > byID = new IntMap<>();
+
+    /**
+     * Trainers by the ID of their owner, the lists are copied on write
+     */
+    private final IntMap< List< Trainer > > byOwner = new IntMap<>();
+
+    /**
+     * Minions that were loaded before their trainer, by owner.  Only kept
+     * while the tables are loading.
      */
-    private List< Trainer > trainers = new LinkedList<>();
+    private Map< Integer, List< Minion > > orphans = new HashMap<>();
 
     /**
      * Private ctor
@@ -48,19 +68,12 @@ public class TrainerManager extends DBManager
      */
     public List< Trainer > getTrainersByUser( int userid )
     {
-        List< Trainer > ret = new LinkedList<>();
-        ListIterator< Trainer > iter = trainers.listIterator();
-
-        while( iter.hasNext() )
+        List< Trainer > owned = byOwner.get( userid );
+        if( owned == null )
         {
-            Trainer current = iter.next();
-            if( current.getOwner() == userid )
-            {
-                ret.add( current );
-            }
+            return new LinkedList<>();
         }
-
-        return ret;
+        return new LinkedList<>( owned );
     }
 
     /**
@@ -72,16 +85,121 @@ public class TrainerManager extends DBManager
      */
     public Trainer getTrainerByID( int id )
     {
-        ListIterator< Trainer > iter = trainers.listIterator();
-        while( iter.hasNext() )
+        Trainer trainer = byID.get( id );
+        if( trainer == null )
+        {
+            throw new GameException( 1, "Trainer not found:" + id );
+        }
+        return trainer;
+    }
+
+    /**
+     * Gets every trainer
+     *
+     * @return Unmodifiable copy of the list of the trainers
+     */
+    public List< Trainer > getTrainers()
+    {
+        return Collections.unmodifiableList( byID.values() );
+    }
+
+    /**
+     * Removes every trainer whose row is not in the given keys.
+     *
+     * Only drops them from the list, their rows are already gone.
+     *
+     * @param keys Keys of the trainer rows to keep
+     * @return Number of trainers removed
+     */
+    public synchronized int retainTrainers( Set< Long > keys )
+    {
+        int removed = 0;
+        for( Trainer trainer : byID.values() )
         {
-            Trainer current = iter.next();
-            if( current.getID() == id )
+            if( !keys.contains( trainer.getRowKey() ) )
             {
-                return current;
+                unindex( trainer, trainer.getOwner() );
+                removed++;
             }
         }
-        throw new GameException( 1, "Trainer not found:" + id );
+        return removed;
+    }
+
+    /**
+     * Removes every trainer of a user, and with them their minions.
+     *
+     * Only drops them from memory, used when the user is evicted from the
+     * working set.
+     *
+     * @param userid ID of the user
+     * @return IDs of the trainers removed
+     */
+    public synchronized List< Integer > removeUser( int userid )
+    {
+        List< Integer > removed = new ArrayList<>();
+        List< Trainer > owned = byOwner.remove( userid );
+        if( owned == null )
+        {
+            return removed;
+        }
+        for( Trainer trainer : owned )
+        {
+            byID.remove( trainer.getID() );
+            removed.add( trainer.getID() );
+        }
+        return removed;
+    }
+
+    /**
+     * Moves a trainer to the index of its new owner
+     *
+     * @param trainer  Trainer whose owner changed
+     * @param oldOwner ID of the previous owner
+     */
+    public synchronized void ownerChanged( Trainer trainer, int oldOwner )
+    {
+        if( byID.get( trainer.getID() ) != trainer )
+        {
+            return;
+        }
+        unindex( trainer, oldOwner );
+        index( trainer );
+    }
+
+    /**
+     * Adds a trainer to the indexes
+     *
+     * @param trainer Trainer to add
+     */
+    private void index( Trainer trainer )
+    {
+        byID.put( trainer.getID(), trainer );
+        List< Trainer > owned = byOwner.get( trainer.getOwner() );
+        if( owned == null )
+        {
+            owned = new CopyOnWriteArrayList<>();
+            byOwner.put( trainer.getOwner(), owned );
+        }
+        owned.add( trainer );
+    }
+
+    /**
+     * Removes a trainer from the indexes
+     *
+     * @param trainer Trainer to remove
+     * @param owner   ID of the owner it is indexed under
+     */
+    private void unindex( Trainer trainer, int owner )
+    {
+        if( byID.get( trainer.getID() ) == trainer )
+        {
+            byID.remove( trainer.getID() );
+        }
+        List< Trainer > owned = byOwner.get( owner );
+        if( owned != null && owned.remove( trainer ) && owned.isEmpty() )
+        {
+            byOwner.remove( owner );
+        }
     }
 
     /**
@@ -96,13 +214,81 @@ public class TrainerManager extends DBManager
     }
 
     /**
-     * Adds a trainer to the internal list of trainers
+     * Adds a trainer to the indexes of trainers
      *
      * @param trainer Trainer that has been created/loaded
      */
-    public void addTrainer( Trainer trainer )
+    public synchronized void addTrainer( Trainer trainer )
     {
-        trainers.add( trainer );
+        index( trainer );
+        if( orphans == null )
+        {
+            return;
+        }
+
+        // Give it any of its minions that were loaded before it
+        List< Minion > waiting = orphans.remove( trainer.getID() );
+        if( waiting != null )
+        {
+            for( Minion minion : waiting )
+            {
+                trainer.addMinion( minion );
+            }
+        }
+    }
+
+    /**
+     * Attaches a loaded minion to its trainer.
+     *
+     * The minions and trainers tables are loaded at the same time, so if the
+     * trainer has not been loaded yet the minion is held until it is.
+     *
+     * @param minion Minion that has been loaded
+     */
+    public synchronized void attachMinion( Minion minion )
+    {
+        int owner = minion.getOwner();
+        Trainer trainer = byID.get( owner );
+        if( trainer != null )
+        {
+            trainer.addMinion( minion );
+            return;
+        }
+        if( orphans == null )
+        {
+            throw new GameException( 1, "Trainer not found:" + owner );
+        }
+
+        List< Minion > waiting = orphans.get( owner );
+        if( waiting == null )
+        {
+            waiting = new ArrayList<>( 4 );
+            orphans.put( owner, waiting );
+        }
+        waiting.add( minion );
+    }
+
+    /**
+     * Drops the minions waiting for their trainer once the tables are
+     * loaded.
+     *
+     * Minions left over belong to trainers that no longer exist, so they are
+     * only counted.
+     */
+    @Override
+    protected synchronized void loaded()
+    {
+        int left = 0;
+        for( List< Minion > waiting : orphans.values() )
+        {
+            left += waiting.size();
+        }
+        if( left > 0 )
+        {
+            Debug.log( left + " minions without a trainer were not loaded",
+                       "Startup" );
+        }
+        orphans = null;
     }
 
     /**
@@ -0,0 +1,216 @@
+package lad.db;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SQL for writing whole rows of a table, inserting the rows that do not exist
+ * yet and updating the ones that do.
+ *
+ * The SQL is built from the headers and key columns of the table's profile.
+ * Every column but the updated column of Snapshot is named and takes a
+ * parameter, in the order of the headers, and every column that is not part
+ * of the key is updated.  Naming the columns keeps the SQL valid when a
+ * column is added to the table.  The delayed runners combine the upserts of
+ * a table into a single statement with many rows.
+ *
+ * @see lad.db.PendingWrite#upsert
+ * @author msflowers
+ */
+final class Upsert
+{
+    /**
+     * Separates the rows from the update clause
+     */
+    private static final String UPDATE = " ON DUPLICATE KEY UPDATE ";
+
+    /**
+     * Upserts already built, by table
+     */
+    private static final ConcurrentHashMap< String, Upsert > byTable =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Upserts already built or parsed, by the SQL of a single row
+     */
+    private static final ConcurrentHashMap< String, Upsert > bySQL =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Start of the statement, up to the first row
+     */
+    private final String head;
+
+    /**
+     * Values of a single row
+     */
+    private final String values;
+
+    /**
+     * Update clause at the end of the statement
+     */
+    private final String tail;
+
+    /**
+     * Number of parameters of a single row
+     */
+    private final int params;
+
+    /**
+     * SQL of a single row
+     */
+    private final String sql;
+
+    /**
+     * Ctor
+     *
+     * @param n_head   Start of the statement, up to the first row
+     * @param n_values Values of a single row
+     * @param n_tail   Update clause at the end of the statement
+     */
+    private Upsert( String n_head, String n_values, String n_tail )
+    {
+        head = n_head;
+        values = n_values;
+        tail = n_tail;
+        sql = head + values + tail;
+
+        int count = 0;
+        for( int i = 0; i < values.length(); i++ )
+        {
+            if( values.charAt( i ) == '?' )
+            {
+                count++;
+            }
+        }
+        params = count;
+    }
+
+    /**
+     * Gets the upsert of a table, building it the first time
+     *
+     * @param profile Profile of the table
+     * @return Upsert of the table
+     */
+    static Upsert of( TableProfile profile )
+    {
+        Upsert upsert = byTable.get( profile.tableName() );
+        if( upsert != null )
+        {
+            return upsert;
+        }
+
+        List< String > keys = Arrays.asList( profile.keyColumns() );
+        StringBuilder columns = new StringBuilder( "INSERT INTO " )
+                .append( profile.tableName() ).append( " ( " );
+        StringBuilder row = new StringBuilder( "( " );
+        StringBuilder update = new StringBuilder( UPDATE );
+        for( String column : profile.tableHeaders() )
+        {
+            if( column.equals( Snapshot.UPDATED_COLUMN ) )
+            {
+                continue;
+            }
+            if( row.length() > 2 )
+            {
+                columns.append( ", " );
+                row.append( ", " );
+            }
+            columns.append( column );
+            row.append( '?' );
+            if( !keys.contains( column ) )
+            {
+                if( update.length() > UPDATE.length() )
+                {
+                    update.append( ", " );
+                }
+                update.append( column ).append( " = VALUES( " )
+                      .append( column ).append( " )" );
+            }
+        }
+        columns.append( " ) VALUES " );
+        row.append( " )" );
+
+        upsert = new Upsert( columns.toString(), row.toString(),
+                             update.toString() );
+        bySQL.putIfAbsent( upsert.sql, upsert );
+        Upsert existing = byTable.putIfAbsent( profile.tableName(), upsert );
+        return existing == null ? upsert : existing;
+    }
+
+    /**
+     * Gets the upsert a statement was built from.
+     *
+     * Writes replayed from the log can be run before the table's upsert is
+     * built, so a statement that has the form of an upsert is parsed.
+     *
+     * @param stmt SQL of a single row
+     * @return The upsert, or null if the SQL is not an upsert
+     */
+    static Upsert forSQL( String stmt )
+    {
+        Upsert upsert = bySQL.get( stmt );
+        if( upsert != null || !stmt.startsWith( "INSERT INTO " ) )
+        {
+            return upsert;
+        }
+
+        int start = stmt.indexOf( " VALUES ( " );
+        int end = stmt.indexOf( " )" + UPDATE );
+        if( start < 0 || end < start )
+        {
+            return null;
+        }
+        start += " VALUES ".length();
+        end += " )".length();
+        upsert = new Upsert( stmt.substring( 0, start ),
+                             stmt.substring( start, end ),
+                             stmt.substring( end ) );
+        Upsert existing = bySQL.putIfAbsent( stmt, upsert );
+        return existing == null ? upsert : existing;
+    }
+
+    /**
+     * Gets the SQL of a single row
+     *
+     * @return SQL
+     */
+    String getSQL()
+    {
+        return sql;
+    }
+
+    /**
+     * Gets the SQL writing a number of rows in one statement
+     *
+     * @param rows Number of rows
+     * @return SQL
+     */
+    String getSQL( int rows )
+    {
+        if( rows == 1 )
+        {
+            return sql;
+        }
+        int length = head.length() + tail.length() +
+                     rows * ( values.length() + 2 );
+        StringBuilder stmt = new StringBuilder( length );
+        stmt.append( head ).append( values );
+        for( int i = 1; i < rows; i++ )
+        {
+            stmt.append( ", " ).append( values );
+        }
+        return stmt.append( tail ).toString();
+    }
+
+    /**
+     * Gets the number of parameters of a single row
+     *
+     * @return Parameter count
+     */
+    int getParamCount()
+    {
+        return params;
+    }
+}
@@ -0,0 +1,583 @@
+package lad.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+import lad.data.GameException;
+import lad.data.Minion;
+import lad.data.Modifier;
+import lad.data.Trainer;
+import lad.data.TrainerBattleStats;
+import lad.data.UserExp;
+import lad.game.Debug;
+
+/**
+ * Keeps the data of the active users in memory.
+ *
+ * Instead of loading every table on startup, the rows of a user (trainers,
+ * minions, modifiers, EXP and battle statistics) are loaded the first time
+ * the user makes a request.  Users stay in memory while they are active and
+ * are evicted once they have been idle for the idle time, least recently used
+ * first.  If a maximum number of users is set, the least recently used users
+ * past it are evicted as well.  A user with a trainer in the arena is never
+ * evicted.
+ *
+ * Before a user is evicted its changed statistics are written and a write
+ * barrier is taken.  The user is only dropped from the managers once every
+ * delayed write queued before the barrier has been committed, so loading the
+ * user again always reads its latest rows.  A request from the user while it
+ * waits keeps it in memory.
+ *
+ * The working set is off unless an idle time is set, every table is then
+ * loaded on startup as before.  It can not be used together with the
+ * snapshots of Snapshot, which need every table loaded, so turning it on
+ * also turns the snapshots off.
+ *
+ * @author msflowers
+ */
+public class WorkingSet
+{
+    /**
+     * Milliseconds a user stays in memory without a request, 0 to load every
+     * user on startup instead.  Off by default since the snapshots only work
+     * while every user is loaded.
+     */
+    private static volatile long idleTime =
+            Long.getLong( "lad.db.idleTime", 0 );
+
+    /**
+     * Maximum number of users kept in memory, 0 for no limit
+     */
+    private static volatile int maxUsers =
+            Integer.getInteger( "lad.db.maxUsers", 0 );
+
+    /**
+     * Users in memory, least recently used first
+     */
+    private final LinkedHashMap< Integer, Resident > residents =
+            new LinkedHashMap<>( 64, 0.75f, true );
+
+    /**
+     * Number of requests from users already in memory
+     */
+    private long hits = 0;
+
+    /**
+     * Number of requests that had to load the user
+     */
+    private long misses = 0;
+
+    /**
+     * Number of users evicted
+     */
+    private long evictions = 0;
+
+    /**
+     * Builds the disconnected results the rows are loaded from
+     */
+    private final RowSetFactory rowSets;
+
+    /**
+     * Private ctor
+     */
+    private WorkingSet()
+    {
+        try
+        {
+            rowSets = RowSetProvider.newFactory();
+        }
+        catch( SQLException e )
+        {
+            throw new GameException( 4, "No row set factory: " +
+                                     e.getMessage() );
+        }
+    }
+
+    /**
+     * Creates the indexes the rows of a user are selected by.
+     *
+     * Called once the tables are validated.  A missing index only slows down
+     * loading users, so errors are logged and skipped.
+     */
+    public static void prepare()
+    {
+        if( !isEnabled() )
+        {
+            return;
+        }
+        String[][] indexes = {
+            { "TRAINERS", "owner" },
+            { "MINIONS", "owner" },
+            { "MODIFIERS", "owner" }
+        };
+        for( String[] index : indexes )
+        {
+            try
+            {
+                if( MySQLDB.getInstance().ensureIndex( index[ 0 ],
+                                                       index[ 1 ] ) )
+                {
+                    Debug.log( "Indexed " + index[ 0 ] + " by " + index[ 1 ],
+                               "Startup" );
+                }
+            }
+            catch( SQLException e )
+            {
+                Debug.log( "Can't index " + index[ 0 ] + ": " + e.toString(),
+                           "Startup" );
+            }
+        }
+    }
+
+    /**
+     * Marks a request from a user.
+     *
+     * Counts a hit if the user is in memory, otherwise the caller must load
+     * it with fetch and load.
+     *
+     * @param userid ID of the user
+     * @return True if the user is in memory, false if it has to be loaded
+     */
+    public synchronized boolean touch( int userid )
+    {
+        if( !isEnabled() )
+        {
+            return true;
+        }
+        Resident resident = residents.get( userid );
+        if( resident == null )
+        {
+            misses++;
+            return false;
+        }
+        resident.lastUsed = System.currentTimeMillis();
+        resident.barrier = null;
+        hits++;
+        return true;
+    }
+
+    /**
+     * Reads every row of a user from the database.
+     *
+     * Only reads, so it should be called from the requesting thread.  The
+     * rows are then handed to load on the game loop's thread.
+     *
+     * @param userid ID of the user
+     * @return Rows of the user, by table in the order they are loaded
+     * @throws GameException Thrown if the rows could not be read
+     */
+    public Rows fetch( int userid )
+    {
+        Rows rows = new Rows( userid );
+        PooledConnection pc = null;
+        try
+        {
+            pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+            for( Query query : Query.values() )
+            {
+                PreparedStatement stmt = pc.prepare( query.sql );
+                for( int i = 1; i <= query.params; i++ )
+                {
+                    stmt.setInt( i, userid );
+                }
+                CachedRowSet result = rowSets.createCachedRowSet();
+                try( ResultSet rs = stmt.executeQuery() )
+                {
+                    result.populate( rs );
+                }
+                rows.results.add( result );
+            }
+        }
+        catch( SQLException e )
+        {
+            throw new GameException( 3, "Error while loading user " + userid +
+                                     ": " + e.getMessage() );
+        }
+        finally
+        {
+            if( pc != null )
+            {
+                pc.release();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Adds the rows of a user to the managers.
+     *
+     * Must be called from the game loop's thread.  Does nothing if the
+     * user was loaded by another request in the meantime.
+     *
+     * @param rows Rows read by fetch
+     * @throws GameException Thrown if a row could not be loaded
+     */
+    public void load( Rows rows )
+    {
+        synchronized( this )
+        {
+            if( residents.containsKey( rows.userid ) )
+            {
+                return;
+            }
+            residents.put( rows.userid,
+                           new Resident( System.currentTimeMillis() ) );
+        }
+
+        try
+        {
+            Query[] queries = Query.values();
+            for( int i = 0; i < queries.length; i++ )
+            {
+                ResultSet rs = rows.results.get( i );
+                while( rs.next() )
+                {
+                    queries[ i ].profile.loadRow( rs );
+                }
+            }
+        }
+        catch( SQLException e )
+        {
+            throw new GameException( 3, "Error while loading user " +
+                                     rows.userid + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Evicts the users that have been idle for too long, or that are past
+     * the maximum number of users.
+     *
+     * Must be called from the game loop's thread.  A user is dropped on a
+     * later call, once the writes queued before it was picked have been
+     * committed.
+     *
+     * @param now Current system time in millis
+     * @return Number of users evicted
+     */
+    public synchronized int evict( long now )
+    {
+        if( !isEnabled() )
+        {
+            return 0;
+        }
+
+        int evicted = 0;
+        boolean flushed = false;
+        int over = maxUsers > 0 ? residents.size() - maxUsers : 0;
+        Iterator< Map.Entry< Integer, Resident > > iter =
+                residents.entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            Map.Entry< Integer, Resident > entry = iter.next();
+            Resident resident = entry.getValue();
+            if( now - resident.lastUsed < idleTime && over <= 0 )
+            {
+                // Everything after this was used more recently
+                break;
+            }
+
+            int userid = entry.getKey();
+            if( inArena( userid ) )
+            {
+                continue;
+            }
+            over--;
+
+            if( resident.barrier == null )
+            {
+                // Queue the user's last statistics, then wait on them
+                if( !flushed )
+                {
+                    EXPManager.flushBattleStats();
+                    flushed = true;
+                }
+                resident.barrier = MySQLDB.writeBarrier();
+            }
+            else if( MySQLDB.isWritten( resident.barrier ) )
+            {
+                drop( userid );
+                iter.remove();
+                evictions++;
+                evicted++;
+            }
+        }
+        if( evicted > 0 )
+        {
+            Debug.log( "Evicted " + evicted + " idle users, " +
+                       residents.size() + " left in memory", "MySQL" );
+        }
+        return evicted;
+    }
+
+    /**
+     * Checks if a user has a trainer in the arena
+     *
+     * @param userid ID of the user
+     * @return True if a trainer is queued or battling
+     */
+    private static boolean inArena( int userid )
+    {
+        for( Trainer trainer :
+             TrainerManager.getInstance().getTrainersByUser( userid ) )
+        {
+            if( trainer.getBattleState() != Trainer.BattleState.NoBattle )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every row of a user from the managers
+     *
+     * @param userid ID of the user
+     */
+    private static void drop( int userid )
+    {
+        List< Integer > trainers =
+                TrainerManager.getInstance().removeUser( userid );
+        ModifierManager.getInstance().removeUser( userid );
+        EXPManager.getInstance().removeUser( userid, trainers );
+    }
+
+    /**
+     * Checks if the working set is used
+     *
+     * @return True if users are loaded on demand, false if every user is
+     *         loaded on startup
+     */
+    public static boolean isEnabled()
+    {
+        return idleTime > 0;
+    }
+
+    /**
+     * Sets the time a user stays in memory without a request.
+     *
+     * Defaults to the lad.db.idleTime system property, or 0 (off).  Only
+     * turning the working set on or off must be done before the tables are
+     * loaded.  Turning it on turns the snapshots of Snapshot off.
+     *
+     * @param millis Milliseconds a user stays in memory, 0 to load every user
+     *               on startup instead
+     */
+    public static void setIdleTime( long millis )
+    {
+        idleTime = Math.max( 0, millis );
+    }
+
+    /**
+     * Gets the time a user stays in memory without a request
+     *
+     * @return Milliseconds, 0 if the working set is off
+     */
+    public static long getIdleTime()
+    {
+        return idleTime;
+    }
+
+    /**
+     * Sets the maximum number of users kept in memory.
+     *
+     * Defaults to the lad.db.maxUsers system property, or no limit.  Users in
+     * the arena do not count against the limit.
+     *
+     * @param users Maximum users, 0 for no limit
+     */
+    public static void setMaxUsers( int users )
+    {
+        maxUsers = Math.max( 0, users );
+    }
+
+    /**
+     * Gets the maximum number of users kept in memory
+     *
+     * @return Maximum users, 0 for no limit
+     */
+    public static int getMaxUsers()
+    {
+        return maxUsers;
+    }
+
+    /**
+     * Gets the number of users in memory
+     *
+     * @return User count
+     */
+    public synchronized int getSize()
+    {
+        return residents.size();
+    }
+
+    /**
+     * Gets the number of requests from users already in memory
+     *
+     * @return Hits since startup
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that had to load the user
+     *
+     * @return Misses since startup
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Gets the number of users evicted
+     *
+     * @return Evictions since startup
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the singleton
+     *
+     * @return Singleton
+     */
+    public static WorkingSet getInstance()
+    {
+        return WorkingSetHolder.INSTANCE;
+    }
+
+    /**
+     * Rows of a user read from the database
+     */
+    public static class Rows
+    {
+        /**
+         * ID of the user
+         */
+        private final int userid;
+
+        /**
+         * Rows of each query, in order
+         */
+        private final List< ResultSet > results = new ArrayList<>();
+
+        /**
+         * Ctor
+         *
+         * @param n_userid ID of the user
+         */
+        private Rows( int n_userid )
+        {
+            userid = n_userid;
+        }
+    }
+
+    /**
+     * A user in memory
+     */
+    private static class Resident
+    {
+        /**
+         * Time (millis) of the user's last request
+         */
+        private long lastUsed;
+
+        /**
+         * Write barrier taken when the user was picked for eviction, null
+         * while it is not being evicted
+         */
+        private long[] barrier = null;
+
+        /**
+         * Ctor
+         *
+         * @param n_lastUsed Time (millis) of the user's last request
+         */
+        Resident( long n_lastUsed )
+        {
+            lastUsed = n_lastUsed;
+        }
+    }
+
+    /**
+     * Queries selecting the rows of a user, in the order they are loaded.
+     *
+     * Trainers come before minions so each minion finds its trainer.
+     */
+    private enum Query
+    {
+        /**
+         * Trainers of the user
+         */
+        TRAINERS( Trainer.getProfile(),
+                  "SELECT * FROM TRAINERS WHERE owner = ?", 1 ),
+        /**
+         * Minions of the user's trainers
+         */
+        MINIONS( Minion.getProfile(), "SELECT * FROM MINIONS WHERE owner " +
+                 "IN ( SELECT ID FROM TRAINERS WHERE owner = ? )", 1 ),
+        /**
+         * Modifiers of the user
+         */
+        MODIFIERS( Modifier.getProfile(),
+                   "SELECT * FROM MODIFIERS WHERE owner = ?", 1 ),
+        /**
+         * EXP of the user
+         */
+        USEREXP( UserExp.getProfile(),
+                 "SELECT * FROM USEREXP WHERE owner = ?", 1 ),
+        /**
+         * Statistics of the user and of its trainers
+         */
+        TRAINERBATTLESTATS( TrainerBattleStats.getProfile(),
+                "SELECT * FROM TRAINERBATTLESTATS WHERE ( type = 1 AND " +
+                "id = ? ) OR ( type = 2 AND id IN ( SELECT ID FROM " +
+                "TRAINERS WHERE owner = ? ) )", 2 );
+
+        /**
+         * Profile the rows are loaded through
+         */
+        private final TableProfile profile;
+
+        /**
+         * SQL selecting the rows, every parameter is the user's ID
+         */
+        private final String sql;
+
+        /**
+         * Number of parameters of the SQL
+         */
+        private final int params;
+
+        /**
+         * Ctor
+         *
+         * @param n_profile Profile the rows are loaded through
+         * @param n_sql     SQL selecting the rows
+         * @param n_params  Number of parameters of the SQL
+         */
+        Query( TableProfile n_profile, String n_sql, int n_params )
+        {
+            profile = n_profile;
+            sql = n_sql;
+            params = n_params;
+        }
+    }
+
+    private static class WorkingSetHolder
+    {
+        private static final WorkingSet INSTANCE = new WorkingSet();
+    }
+}
@@ -0,0 +1,569 @@
+package lad.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local log of the delayed writes of one partition.
+ *
+ * Every write is appended to the log before it is queued, so the writes that
+ * have not been committed to the database yet survive the server stopping
+ * unexpectedly.  The log is split into segments of a fixed size, each
+ * memory-mapped.  A record is its length, a CRC32 of its contents, a
+ * committed flag and the write itself.  Once the runner commits a write the
+ * flag of its record is set, and a full segment is deleted once every record
+ * in it is committed.
+ *
+ * How often the log is forced to disk depends on MySQLDB's log sync policy.
+ * When the server starts, the records of the segments left behind that are
+ * not committed are read back with read and queued again.
+ *
+ * @author msflowers
+ */
+class WriteAheadLog
+{
+    /**
+     * Bytes in front of each record (length, CRC and committed flag)
+     */
+    private static final int HEADER = 9;
+
+    /**
+     * Suffix of the segment files
+     */
+    private static final String SUFFIX = ".wal";
+
+    /**
+     * Directory the segments are kept in
+     */
+    private final File dir;
+
+    /**
+     * Partition the log belongs to
+     */
+    private final int partition;
+
+    /**
+     * Size of each segment in bytes
+     */
+    private final int segmentSize;
+
+    /**
+     * Segments that still have records, by sequence number
+     */
+    private final ConcurrentHashMap< Integer, Segment > segments =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Segment being appended to
+     */
+    private Segment current = null;
+
+    /**
+     * Sequence number of the next segment
+     */
+    private int nextSequence;
+
+    /**
+     * Number of records appended
+     */
+    private long appended = 0;
+
+    /**
+     * Number of records known to be on disk.  Guarded by syncLock.
+     */
+    private long durable = 0;
+
+    /**
+     * True while a thread is forcing the log for a group of writers.
+     * Guarded by syncLock.
+     */
+    private boolean syncing = false;
+
+    /**
+     * Lock for the group commit
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * Ctor
+     *
+     * @param n_dir         Directory the segments are kept in
+     * @param n_partition   Partition the log belongs to
+     * @param firstSequence Sequence number of the first segment, must be
+     *                      past the segments already in the directory
+     * @param n_segmentSize Size of each segment in bytes
+     */
+    WriteAheadLog( File n_dir, int n_partition, int firstSequence,
+                   int n_segmentSize )
+    {
+        dir = n_dir;
+        partition = n_partition;
+        nextSequence = firstSequence;
+        segmentSize = n_segmentSize;
+    }
+
+    /**
+     * Appends a write to the log.
+     *
+     * Depending on the sync policy this waits for the record to be on disk.
+     *
+     * @param write Write to append
+     * @return Position of the record, used to mark it committed
+     * @throws IOException Thrown if the record can not be written
+     */
+    long append( PendingWrite write ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+        write.writeTo( new DataOutputStream( bytes ) );
+        byte[] record = bytes.toByteArray();
+        if( record.length + HEADER > segmentSize )
+        {
+            throw new IOException( "Write of " + record.length +
+                                   " bytes does not fit in a log segment." );
+        }
+        CRC32 crc = new CRC32();
+        crc.update( record, 0, record.length );
+
+        Segment segment;
+        long position;
+        long count;
+        synchronized( this )
+        {
+            if( current == null || !current.fits( record.length ) )
+            {
+                roll();
+            }
+            segment = current;
+            position = ( (long)segment.sequence << 32 ) |
+                       segment.put( record, (int)crc.getValue() );
+            count = ++appended;
+        }
+
+        long start = System.nanoTime();
+        switch( MySQLDB.getLogSync() )
+        {
+            case EVERY:
+                segment.force();
+                break;
+            case GROUP:
+                awaitDurable( count );
+                break;
+            default:
+                return position;
+        }
+        MySQLDB.recordIO( System.nanoTime() - start );
+        return position;
+    }
+
+    /**
+     * Marks the record at a position as committed.
+     *
+     * @param position Position returned when the record was appended
+     */
+    void commit( long position )
+    {
+        Segment segment = segments.get( (int)( position >>> 32 ) );
+        if( segment != null )
+        {
+            segment.commit( (int)position );
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     *
+     * @throws IOException Thrown if the log could not be forced
+     */
+    void sync() throws IOException
+    {
+        long count;
+        synchronized( this )
+        {
+            count = appended;
+        }
+        awaitDurable( count );
+    }
+
+    /**
+     * Gets the number of segments that still have records
+     *
+     * @return Segment count
+     */
+    int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    /**
+     * Waits for the given number of records to be on disk.
+     *
+     * The first writer to find the log behind forces it for every writer
+     * waiting, the others wait for it to finish.
+     *
+     * @param count Number of records that must be on disk
+     * @throws IOException Thrown if the log could not be forced
+     */
+    private void awaitDurable( long count ) throws IOException
+    {
+        synchronized( syncLock )
+        {
+            while( durable < count && syncing )
+            {
+                try
+                {
+                    syncLock.wait();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted while " +
+                                                      "syncing the log." );
+                }
+            }
+            if( durable >= count )
+            {
+                return;
+            }
+            syncing = true;
+        }
+
+        long target;
+        Segment segment;
+        synchronized( this )
+        {
+            target = appended;
+            segment = current;
+        }
+        boolean forced = false;
+        try
+        {
+            // Earlier segments were forced when they filled up
+            if( segment != null )
+            {
+                segment.force();
+            }
+            forced = true;
+        }
+        finally
+        {
+            synchronized( syncLock )
+            {
+                syncing = false;
+                if( forced )
+                {
+                    durable = Math.max( durable, target );
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Seals the current segment and starts a new one.  The log's lock must
+     * be held.
+     *
+     * @throws IOException Thrown if the new segment can not be created
+     */
+    private void roll() throws IOException
+    {
+        if( current != null )
+        {
+            current.force();
+            current.seal();
+        }
+        int sequence = nextSequence++;
+        File file = new File( dir, partition + "-" + sequence + SUFFIX );
+        current = new Segment( sequence, file, segmentSize );
+        segments.put( sequence, current );
+    }
+
+    /**
+     * Gets the segment files in a directory, oldest first.
+     *
+     * @param dir Directory of the segments
+     * @return Segment files, by sequence number and then partition
+     */
+    static File[] existing( File dir )
+    {
+        File[] files = dir.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept( File file )
+            {
+                return file.isFile() && file.getName().endsWith( SUFFIX );
+            }
+        } );
+        if( files == null )
+        {
+            return new File[ 0 ];
+        }
+        Arrays.sort( files, new Comparator< File >()
+        {
+            @Override
+            public int compare( File a, File b )
+            {
+                int diff = Integer.compare( sequenceOf( a ), sequenceOf( b ) );
+                return diff != 0 ? diff : a.getName().compareTo( b.getName() );
+            }
+        } );
+        return files;
+    }
+
+    /**
+     * Gets the sequence number to start new segments at
+     *
+     * @param files Segment files already in the directory
+     * @return Sequence number past every existing segment
+     */
+    static int nextSequence( File[] files )
+    {
+        int next = 0;
+        for( File file : files )
+        {
+            next = Math.max( next, sequenceOf( file ) + 1 );
+        }
+        return next;
+    }
+
+    /**
+     * Reads the records of a segment file that were not committed.
+     *
+     * Reading stops at the end of the records or at the first record whose
+     * checksum does not match, which is a record that was being written when
+     * the server stopped.
+     *
+     * @param file Segment file
+     * @return Writes of the records not committed, in the order appended
+     * @throws IOException Thrown if the file can not be read
+     */
+    static List< PendingWrite > read( File file ) throws IOException
+    {
+        List< PendingWrite > writes = new ArrayList<>();
+        MappedByteBuffer buffer;
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) )
+        {
+            buffer = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0,
+                                           raf.length() );
+        }
+
+        int offset = 0;
+        while( offset + HEADER <= buffer.capacity() )
+        {
+            int length = buffer.getInt( offset );
+            if( length <= 0 || offset + HEADER + length > buffer.capacity() )
+            {
+                break;
+            }
+            byte[] record = new byte[ length ];
+            ByteBuffer view = buffer.duplicate();
+            view.position( offset + HEADER );
+            view.get( record );
+
+            CRC32 crc = new CRC32();
+            crc.update( record, 0, length );
+            if( (int)crc.getValue() != buffer.getInt( offset + 4 ) )
+            {
+                break;
+            }
+            if( buffer.get( offset + 8 ) == 0 )
+            {
+                writes.add( PendingWrite.readFrom( new DataInputStream(
+                        new ByteArrayInputStream( record ) ) ) );
+            }
+            offset += HEADER + length;
+        }
+        return writes;
+    }
+
+    /**
+     * Gets the sequence number from the name of a segment file
+     *
+     * @param file Segment file, named partition-sequence.wal
+     * @return Sequence number, -1 if the name is not a segment's
+     */
+    private static int sequenceOf( File file )
+    {
+        String name = file.getName();
+        int dash = name.indexOf( '-' );
+        try
+        {
+            return Integer.parseInt( name.substring( dash + 1,
+                    name.length() - SUFFIX.length() ) );
+        }
+        catch( NumberFormatException | IndexOutOfBoundsException e )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * A memory-mapped segment of the log
+     */
+    private class Segment
+    {
+        /**
+         * Sequence number of the segment
+         */
+        private final int sequence;
+
+        /**
+         * File of the segment
+         */
+        private final File file;
+
+        /**
+         * Mapped contents of the file
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Bytes used by records.  Guarded by the log's lock.
+         */
+        private int used = 0;
+
+        /**
+         * Records not committed yet
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /**
+         * True once no more records will be appended
+         */
+        private volatile boolean sealed = false;
+
+        /**
+         * True once the file has been deleted
+         */
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        /**
+         * Ctor
+         *
+         * @param n_sequence Sequence number of the segment
+         * @param n_file     File of the segment
+         * @param size       Size of the segment in bytes
+         * @throws IOException Thrown if the file can not be created
+         */
+        Segment( int n_sequence, File n_file, int size ) throws IOException
+        {
+            sequence = n_sequence;
+            file = n_file;
+            try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+            {
+                raf.setLength( size );
+                buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, size );
+            }
+        }
+
+        /**
+         * Checks if a record fits in what is left of the segment
+         *
+         * @param length Length of the record
+         * @return True if it fits
+         */
+        boolean fits( int length )
+        {
+            return used + HEADER + length <= buffer.capacity();
+        }
+
+        /**
+         * Writes a record.  The log's lock must be held.
+         *
+         * @param record Contents of the record
+         * @param crc    Checksum of the contents
+         * @return Offset of the record
+         */
+        int put( byte[] record, int crc )
+        {
+            int offset = used;
+            ByteBuffer view = buffer.duplicate();
+            view.position( offset + HEADER );
+            view.put( record );
+            buffer.putInt( offset + 4, crc );
+            buffer.put( offset + 8, (byte)0 );
+            // The length goes last, the checksum catches a record that
+            // only partly made it to disk
+            buffer.putInt( offset, record.length );
+            used += HEADER + record.length;
+            outstanding.incrementAndGet();
+            return offset;
+        }
+
+        /**
+         * Sets the committed flag of a record
+         *
+         * @param offset Offset of the record
+         */
+        void commit( int offset )
+        {
+            buffer.put( offset + 8, (byte)1 );
+            if( outstanding.decrementAndGet() == 0 && sealed )
+            {
+                delete();
+            }
+        }
+
+        /**
+         * Marks the segment full, deleting it if every record is committed
+         */
+        void seal()
+        {
+            sealed = true;
+            if( outstanding.get() == 0 )
+            {
+                delete();
+            }
+        }
+
+        /**
+         * Forces the segment to disk
+         *
+         * @throws IOException Thrown if the segment could not be forced
+         */
+        void force() throws IOException
+        {
+            try
+            {
+                buffer.force();
+            }
+            catch( RuntimeException e )
+            {
+                throw new IOException( "Forcing " + file + " failed.", e );
+            }
+        }
+
+        /**
+         * Removes the segment and deletes its file
+         */
+        private void delete()
+        {
+            if( deleted.compareAndSet( false, true ) )
+            {
+                segments.remove( sequence );
+                if( !file.delete() )
+                {
+                    System.err.println( "Can't delete log segment " + file );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package lad.game;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import lad.data.GameException;
+import lad.data.Trainer;
+
+/**
+ * Immutable state of the arena at the end of a tick.
+ *
+ * The game loop publishes a new snapshot after each tick and whenever a
+ * trainer joins or leaves the queue, so views read the arena with a single
+ * volatile load and never wait on the loop.  Every trainer in the arena has
+ * an entry with its battle state and, when battling, the tick its battle
+ * ends on.  Entries that did not change are carried over from the previous
+ * snapshot instead of being created again.
+ *
+ * @author msflowers
+ */
+public final class ArenaSnapshot
+{
+    /**
+     * Snapshot of an arena without trainers
+     */
+    static final ArenaSnapshot EMPTY = new ArenaSnapshot(
+            0, Collections.< Integer, Entry >emptyMap(), 0 );
+
+    /**
+     * Tick the snapshot was taken on
+     */
+    private final long tick;
+
+    /**
+     * Entries by trainer ID, never changed after construction
+     */
+    private final Map< Integer, Entry > entries;
+
+    /**
+     * Number of battles taking place
+     */
+    private final int battles;
+
+    /**
+     * Number of trainers waiting to battle
+     */
+    private final int queued;
+
+    /**
+     * Ctor
+     *
+     * @param n_tick    Tick the snapshot is taken on
+     * @param n_entries Entries by trainer ID, must not be changed afterwards
+     * @param n_battles Number of battles taking place
+     */
+    private ArenaSnapshot( long n_tick, Map< Integer, Entry > n_entries,
+                           int n_battles )
+    {
+        tick = n_tick;
+        entries = n_entries;
+        battles = n_battles;
+
+        int waiting = 0;
+        for( Entry entry : entries.values() )
+        {
+            if( entry.state != Trainer.BattleState.InBattle )
+            {
+                waiting++;
+            }
+        }
+        queued = waiting;
+    }
+
+    /**
+     * Gets the tick the snapshot was taken on
+     *
+     * @return Tick number, 0 before the first tick
+     */
+    public long getTick()
+    {
+        return tick;
+    }
+
+    /**
+     * Gets the number of battles taking place
+     *
+     * @return Battle count
+     */
+    public int getBattleCount()
+    {
+        return battles;
+    }
+
+    /**
+     * Gets the number of trainers waiting to battle
+     *
+     * @return Trainers queued or looking for a battle
+     */
+    public int getQueueSize()
+    {
+        return queued;
+    }
+
+    /**
+     * Gets the battle state of a trainer
+     *
+     * @param trainerID ID of the trainer
+     * @return State of the trainer, NoBattle if it is not in the arena
+     */
+    public Trainer.BattleState getBattleState( int trainerID )
+    {
+        Entry entry = entries.get( trainerID );
+        return entry == null ? Trainer.BattleState.NoBattle : entry.state;
+    }
+
+    /**
+     * Gets the time a trainer has left in its battle
+     *
+     * @param trainerID ID of the trainer
+     * @return Time(ticks) remaining in the battle
+     * @throws GameException Thrown if the trainer is not in a battle.
+     */
+    public int getTimeLeft( int trainerID )
+    {
+        Entry entry = entries.get( trainerID );
+        if( entry == null || entry.state != Trainer.BattleState.InBattle )
+        {
+            throw new GameException( 1, "Trainer is not in a battle." );
+        }
+        return (int)( entry.endTick - tick );
+    }
+
+    /**
+     * Creates a copy with the current battle state of a single trainer
+     *
+     * @param trainer Trainer whose state changed
+     * @return New snapshot of the same tick
+     */
+    ArenaSnapshot withState( Trainer trainer )
+    {
+        Map< Integer, Entry > copy = new HashMap<>( entries );
+        Trainer.BattleState state = trainer.getBattleState();
+        if( state == Trainer.BattleState.NoBattle )
+        {
+            copy.remove( trainer.getID() );
+        }
+        else
+        {
+            copy.put( trainer.getID(), new Entry( state, 0 ) );
+        }
+        return new ArenaSnapshot( tick, Collections.unmodifiableMap( copy ),
+                                  battles );
+    }
+
+    /**
+     * State of a single trainer in the arena
+     */
+    private static final class Entry
+    {
+        /**
+         * Battle state of the trainer
+         */
+        final Trainer.BattleState state;
+
+        /**
+         * Tick the trainer's battle ends on, 0 if not battling
+         */
+        final long endTick;
+
+        /**
+         * Ctor
+         *
+         * @param n_state   Battle state of the trainer
+         * @param n_endTick Tick the battle ends on, 0 if not battling
+         */
+        Entry( Trainer.BattleState n_state, long n_endTick )
+        {
+            state = n_state;
+            endTick = n_endTick;
+        }
+    }
+
+    /**
+     * Collects the state of the arena into the next snapshot
+     */
+    static final class Builder
+    {
+        /**
+         * Snapshot the entries are carried over from
+         */
+        private final ArenaSnapshot previous;
+
+        /**
+         * Tick the snapshot is taken on
+         */
+        private final long tick;
+
+        /**
+         * Entries collected so far
+         */
+        private final Map< Integer, Entry > entries = new HashMap<>();
+
+        /**
+         * Number of battles collected
+         */
+        private int battles = 0;
+
+        /**
+         * Ctor
+         *
+         * @param n_previous Last published snapshot
+         * @param n_tick     Tick the snapshot is taken on
+         */
+        Builder( ArenaSnapshot n_previous, long n_tick )
+        {
+            previous = n_previous;
+            tick = n_tick;
+        }
+
+        /**
+         * Adds a battle that is still running
+         *
+         * @param battle Battle to add
+         */
+        void battle( TrainerBattle battle )
+        {
+            long endTick = tick + battle.getTicksRemaining();
+            add( battle.getSide( 0 ).getTrainer(), endTick );
+            add( battle.getSide( 1 ).getTrainer(), endTick );
+            battles++;
+        }
+
+        /**
+         * Adds the battling trainer of a side
+         *
+         * @param trainer Trainer of the side, ignored if an NPC
+         * @param endTick Tick the battle ends on
+         */
+        private void add( Trainer trainer, long endTick )
+        {
+            if( !trainer.isNPC() )
+            {
+                put( trainer.getID(), Trainer.BattleState.InBattle, endTick );
+            }
+        }
+
+        /**
+         * Adds a trainer waiting to battle
+         *
+         * @param trainer Queued trainer
+         */
+        void queued( Trainer trainer )
+        {
+            put( trainer.getID(), trainer.getBattleState(), 0 );
+        }
+
+        /**
+         * Adds an entry, reusing the previous snapshot's if it is the same
+         *
+         * @param id      ID of the trainer
+         * @param state   Battle state of the trainer
+         * @param endTick Tick the battle ends on, 0 if not battling
+         */
+        private void put( int id, Trainer.BattleState state, long endTick )
+        {
+            Entry entry = previous.entries.get( id );
+            if( entry == null || entry.state != state ||
+                entry.endTick != endTick )
+            {
+                entry = new Entry( state, endTick );
+            }
+            entries.put( id, entry );
+        }
+
+        /**
+         * Creates the snapshot
+         *
+         * @return Snapshot of the collected state
+         */
+        ArenaSnapshot build()
+        {
+            return new ArenaSnapshot( tick,
+                                      Collections.unmodifiableMap( entries ),
+                                      battles );
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import lad.data.Modifier;
 import lad.data.ModifierTarget;
 import lad.data.Trainer;
@@ -414,11 +415,13 @@ public class ArenaTrainer
 
         Integer shots = maxShots.intValue();
         int shotsHitTarget = 0;
+        double accuracy = getAttribute( ModifierTarget.Accuracy );
+        ThreadLocalRandom random = ThreadLocalRandom.current();
 
         for( int j = 0; j < shots; j++ )
         {
             // If accuracy misses, shot misses
-            if( Math.random() <= getAttribute( ModifierTarget.Accuracy ) )
+            if( random.nextDouble() <= accuracy )
             {
                 shotsHitTarget++;
             }
@@ -438,7 +441,8 @@ public class ArenaTrainer
      */
     public boolean evade()
     {
-        if( Math.random() < getAttribute( ModifierTarget.Flexibility ) )
+        if( ThreadLocalRandom.current().nextDouble() <
+            getAttribute( ModifierTarget.Flexibility ) )
         {
             this.shotsEvaded++;
             return true;
@@ -472,7 +476,8 @@ public class ArenaTrainer
     public double getDamageOutput()
     {
         Double damage = getAttribute( ModifierTarget.Damage );
-        if( Math.random() < getAttribute( ModifierTarget.Aim ) )
+        if( ThreadLocalRandom.current().nextDouble() <
+            getAttribute( ModifierTarget.Aim ) )
         {
             damage *= 2;
             this.criticalsHit++;
@@ -0,0 +1,119 @@
+package lad.game;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Advances a range of trainer battles one tick, splitting the range across
+ * a fork/join pool.
+ *
+ * Battles do not share any state while they tick, so each one can run on
+ * any thread.  Only the simulation runs here: finished battles are resolved
+ * afterwards by the game loop's thread.
+ *
+ * @author msflowers
+ */
+final class BattleTicker extends RecursiveAction
+{
+    /**
+     * Serial version
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Battles to tick
+     */
+    private final List< TrainerBattle > battles;
+
+    /**
+     * First battle of the range
+     */
+    private final int from;
+
+    /**
+     * Battle after the last of the range
+     */
+    private final int to;
+
+    /**
+     * Largest range ticked without splitting
+     */
+    private final int leaf;
+
+    /**
+     * Ctor
+     *
+     * @param n_battles Battles to tick
+     * @param n_from    First battle of the range
+     * @param n_to      Battle after the last of the range
+     * @param n_leaf    Largest range ticked without splitting
+     */
+    private BattleTicker( List< TrainerBattle > n_battles, int n_from,
+                          int n_to, int n_leaf )
+    {
+        battles = n_battles;
+        from = n_from;
+        to = n_to;
+        leaf = n_leaf;
+    }
+
+    /**
+     * Ticks every battle once.
+     *
+     * Runs on the calling thread if there are fewer battles than the
+     * threshold, otherwise splits them into a few ranges per pool thread.
+     *
+     * @param pool      Pool to tick the battles on
+     * @param battles   Battles to tick, must not change until this returns
+     * @param threshold Fewest battles ticked in parallel, 0 to always tick
+     *                  on the calling thread
+     */
+    static void tick( ForkJoinPool pool, List< TrainerBattle > battles,
+                      int threshold )
+    {
+        int count = battles.size();
+        if( threshold <= 0 || count < threshold ||
+            pool.getParallelism() == 1 )
+        {
+            tickRange( battles, 0, count );
+            return;
+        }
+
+        // A few ranges per thread so a slow range does not hold up the rest
+        int leaf = Math.max( 1, count / ( pool.getParallelism() * 4 ) );
+        pool.invoke( new BattleTicker( battles, 0, count, leaf ) );
+    }
+
+    /**
+     * Ticks a range of battles on the calling thread
+     *
+     * @param battles Battles to tick
+     * @param from    First battle of the range
+     * @param to      Battle after the last of the range
+     */
+    private static void tickRange( List< TrainerBattle > battles, int from,
+                                   int to )
+    {
+        for( int i = from; i < to; i++ )
+        {
+            battles.get( i ).tick( 1 );
+        }
+    }
+
+    /**
+     * Ticks the range, or splits it in half if it is too large
+     */
+    @Override
+    protected void compute()
+    {
+        if( to - from <= leaf )
+        {
+            tickRange( battles, from, to );
+            return;
+        }
+        int middle = ( from + to ) >>> 1;
+        invokeAll( new BattleTicker( battles, from, middle, leaf ),
+                   new BattleTicker( battles, middle, to, leaf ) );
+    }
+}
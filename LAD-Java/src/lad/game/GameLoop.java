@@ -1,51 +1,91 @@
 package lad.game;
 
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import lad.data.GameException;
 import lad.data.Modifier;
 import lad.data.ModifierTarget;
 import lad.data.Trainer;
 import lad.data.UserExpTarget;
 import lad.data.Weapon;
+import lad.db.DBManager;
 import lad.db.EXPManager;
 import lad.db.ModifierManager;
 import lad.db.MySQLDB;
+import lad.db.Snapshot;
 import lad.db.TrainerManager;
+import lad.db.WorkingSet;
 
 /**
  * Performs the game loop to update data accordingly.  Run in a separate thread,
  * this class performs all of the updates each frame.  Data is also pulled
- * and pushed from this class to/from the database.  Connecting users are
- * blocked from the data until this loop has finished after which they are
- * allowed to run.
+ * and pushed from this class to/from the database.
+ *
+ * Only this thread changes the game data.  Input threads submit their
+ * changes as commands, which this thread runs between ticks, and wait for
+ * the result.  Commands submitted before the data is loaded wait until it
+ * is.  Views read the data without waiting on this thread.
  *
  * @author msflowers
  */
 public class GameLoop implements Runnable
 {
     /**
-     * Locks out access to the game data so only one thread may use it at a
-     * time.  Although this thread will periodically lock it, the input threads
-     * are also allowed to lock it.
+     * Commands waiting to be run by this thread
+     */
+    final Commands commands = new Commands();
+
+    /**
+     * Fewest battles that are ticked in parallel
+     */
+    private static volatile int parallelThreshold =
+            Integer.getInteger( "lad.game.parallelThreshold", 256 );
+
+    /**
+     * Ticks the battles in parallel, one thread per core by default
      */
-    private Semaphore semaphore = null;
+    private final ForkJoinPool tickPool = new ForkJoinPool(
+            Integer.getInteger( "lad.game.tickThreads",
+                                Runtime.getRuntime().availableProcessors() ) );
 
     /**
-     * Simple object used to synchronize data
+     * Time (micros) each tick took, without the commands run after it
      */
-    private final Object data = new Object();
+    private final Histogram tickTimes = new Histogram();
 
     /**
      * Holds all of the battles taking place
      */
     private final List< TrainerBattle > battles = new ArrayList<>( 100 );
 
+    /**
+     * State of the arena published for the views
+     */
+    private volatile ArenaSnapshot arena = ArenaSnapshot.EMPTY;
+
+    /**
+     * Number of ticks run
+     */
+    private long ticks = 0;
+
     /**
      * Holds all of the trainers waiting to battle
      */
@@ -57,22 +97,40 @@ public class GameLoop implements Runnable
     private final Map< Trainer, Weapon > battleWeapons = new HashMap<>( 100 );
 
     /**
-     * Initializes the game loop by creating the semaphore and acquiring the
-     * first lock on it.
+     * Saves the snapshots in the background
      */
-    private GameLoop()
+    private final ExecutorService snapshotSaver =
+            Executors.newSingleThreadExecutor( new ThreadFactory()
     {
-        semaphore = new Semaphore( 1, true );
-        try
-        {
-            semaphore.acquire();
-        }
-        catch( InterruptedException e )
+        @Override
+        public Thread newThread( Runnable r )
         {
-            System.err.println( "Managed to get interrupted during init " +
-                                "of game loop semaphore." );
-            System.exit( -1 );
+            Thread thread = new Thread( r, "Snapshot Saver" );
+            thread.setDaemon( true );
+            return thread;
         }
+    } );
+
+    /**
+     * Time (millis) the last snapshot was taken
+     */
+    private long lastSnapshot = System.currentTimeMillis();
+
+    /**
+     * Time (millis) the battle statistics were last flushed
+     */
+    private long lastStatsFlush = System.currentTimeMillis();
+
+    /**
+     * Time (millis) the exhausted modifiers were last compacted
+     */
+    private long lastCompaction = 0;
+
+    /**
+     * Private ctor
+     */
+    private GameLoop()
+    {
     }
 
     /**
@@ -91,7 +149,8 @@ public class GameLoop implements Runnable
      * Connects to MySQL DB and pulls data.
      *
      * Initializes the MySQL Connection and selects the appropriate database.
-     * After the connection, all of the data will be pulled.
+     * After the connection, all of the data will be pulled, with the tables
+     * loading concurrently.
      */
     private void initializeData()
     {
@@ -99,9 +158,78 @@ public class GameLoop implements Runnable
         MySQLDB.getConn();
 
         // Pull the rest of the data from the DB
-        TrainerManager.getInstance().initialize();
-        ModifierManager.getInstance().initialize();
-        EXPManager.getInstance().initialize();
+        DBManager.initializeAll( managers() );
+        WorkingSet.prepare();
+    }
+
+    /**
+     * Gets the managers of the game data
+     *
+     * @return Every manager, in the order they are loaded
+     */
+    private static DBManager[] managers()
+    {
+        return new DBManager[]{ TrainerManager.getInstance(),
+                                ModifierManager.getInstance(),
+                                EXPManager.getInstance() };
+    }
+
+    /**
+     * Takes a snapshot of the game data in the background.
+     *
+     * The saver's thread reads the watermark from the database and then
+     * submits the capture of the rows as a command, so the loop's thread
+     * only spends the capture itself on the snapshot.  Errors are logged and
+     * the snapshot is skipped.
+     */
+    private void takeSnapshot()
+    {
+        lastSnapshot = System.currentTimeMillis();
+        snapshotSaver.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final long watermark = Snapshot.watermark();
+                    Snapshot snapshot = GameLoop.call(
+                            new Callable< Snapshot >()
+                    {
+                        @Override
+                        public Snapshot call() throws IOException
+                        {
+                            return captureSnapshot( watermark );
+                        }
+                    } );
+                    snapshot.save();
+                }
+                catch( SQLException | IOException | GameException e )
+                {
+                    Debug.log( "Snapshot failed: " + e.toString(), "MySQL" );
+                }
+                catch( InterruptedException e )
+                {
+                    Debug.log( "Interrupted while taking a snapshot",
+                               "Thread" );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Captures the rows of the game data.  Must be run by the game loop's
+     * thread, or once it has stopped.
+     *
+     * @param watermark Watermark read before the capture
+     * @return The snapshot
+     * @throws IOException Thrown if a table fails to write
+     */
+    private static Snapshot captureSnapshot( long watermark )
+            throws IOException
+    {
+        EXPManager.flushBattleStats();
+        return Snapshot.capture( watermark, managers() );
     }
 
     /**
@@ -115,27 +243,35 @@ public class GameLoop implements Runnable
     }
 
     /**
-     * Acquires the semaphore.
+     * Submits a change to the game data.
      *
-     * By only allowing the semaphore to acquire one lock at a time this will
-     * ensure only one thread has control a time.
+     * The command is run by the game loop's thread between ticks, in the
+     * order commands were submitted.  Never blocks.
      *
-     * @see lad.game.GameLoop#release()
-     * @throws InterruptedException
+     * @param <T>     Type of the command's result
+     * @param command Change to run
+     * @return Future of the command's result, cancelled if the loop stopped
      */
-    public static void acquire() throws InterruptedException
+    public static < T > Future< T > submit( Callable< T > command )
     {
-        getInstance().semaphore.acquire();
+        return getInstance().commands.submit( command );
     }
 
     /**
-     * Releases the semaphore.
+     * Submits a change to the game data and waits for its result.
+     *
+     * Errors thrown by the command are rethrown as they are.
      *
-     * @see lad.game.GameLoop#acquire()
+     * @param <T>     Type of the command's result
+     * @param command Change to run
+     * @return Result of the command
+     * @throws InterruptedException Thrown if interrupted while waiting
+     * @throws GameException Thrown if the command failed or was cancelled
      */
-    public static void release()
+    public static < T > T call( Callable< T > command )
+            throws InterruptedException
     {
-        getInstance().semaphore.release();
+        return getInstance().commands.call( command );
     }
 
     /**
@@ -143,32 +279,60 @@ public class GameLoop implements Runnable
      *
      * @param trainer Trainer to queue for battling in the arena
      * @param weapon  Weapon the trainer will be fighting with
-     * @throws InterruptedException Thrown if interrupted while acquiring
+     * @throws InterruptedException Thrown if interrupted while waiting
      */
-    public static void queueTrainer( Trainer trainer, Weapon weapon )
+    public static void queueTrainer( final Trainer trainer,
+                                     final Weapon weapon )
             throws InterruptedException
     {
-        acquire();
-        trainer.setBattleState( Trainer.BattleState.InBattleQueue );
-        getInstance().battleQueue.put( trainer, System.currentTimeMillis() );
-        getInstance().battleWeapons.put( trainer, weapon );
-        release();
+        call( new Callable< Void >()
+        {
+            @Override
+            public Void call()
+            {
+                GameLoop loop = getInstance();
+                trainer.setBattleState( Trainer.BattleState.InBattleQueue );
+                loop.battleQueue.put( trainer, System.currentTimeMillis() );
+                loop.battleWeapons.put( trainer, weapon );
+                loop.arena = loop.arena.withState( trainer );
+                return null;
+            }
+        } );
     }
 
     /**
      * Removes a trainer from the battle queue.
      *
+     * Only a trainer waiting to battle can leave, a trainer that is already
+     * battling has to finish its battle.
+     *
      * @param trainer Trainer to dequeue from battling in the arena
-     * @throws InterruptedException Thrown if interrupted while acquiring
+     * @throws InterruptedException Thrown if interrupted while waiting
+     * @throws GameException Thrown if the trainer is not waiting to battle
      */
-    public static void dequeueTrainer( Trainer trainer )
+    public static void dequeueTrainer( final Trainer trainer )
             throws InterruptedException
     {
-        acquire();
-        trainer.setBattleState( Trainer.BattleState.NoBattle );
-        getInstance().battleQueue.remove( trainer );
-        getInstance().battleWeapons.remove( trainer );
-        release();
+        call( new Callable< Void >()
+        {
+            @Override
+            public Void call()
+            {
+                Trainer.BattleState state = trainer.getBattleState();
+                if( state != Trainer.BattleState.InBattleQueue &&
+                    state != Trainer.BattleState.LookingForBattle )
+                {
+                    throw new GameException( 1, "Trainer is not waiting " +
+                                             "to battle." );
+                }
+                GameLoop loop = getInstance();
+                trainer.setBattleState( Trainer.BattleState.NoBattle );
+                loop.battleQueue.remove( trainer );
+                loop.battleWeapons.remove( trainer );
+                loop.arena = loop.arena.withState( trainer );
+                return null;
+            }
+        } );
     }
 
     /**
@@ -180,25 +344,45 @@ public class GameLoop implements Runnable
      */
     public static int getTimeLeftInTrainerBattle( Trainer trainer )
     {
-        ListIterator< TrainerBattle > iter =
-                getInstance().battles.listIterator();
-        while( iter.hasNext() )
+        return getArena().getTimeLeft( trainer.getID() );
+    }
+
+    /**
+     * Gets the state of the arena as of the last tick or queue change.
+     *
+     * Never blocks, and the snapshot does not change once returned.
+     *
+     * @return Latest arena snapshot
+     */
+    public static ArenaSnapshot getArena()
+    {
+        return getInstance().arena;
+    }
+
+    /**
+     * Publishes the state of the arena at the end of a tick
+     */
+    private void publishArena()
+    {
+        ArenaSnapshot.Builder next = new ArenaSnapshot.Builder( arena, ticks );
+        for( TrainerBattle battle : battles )
         {
-            TrainerBattle battle = iter.next();
-            if( battle.hasTrainer( trainer ) )
-            {
-                return battle.getTicksRemaining();
-            }
+            next.battle( battle );
+        }
+        for( Trainer trainer : battleQueue.keySet() )
+        {
+            next.queued( trainer );
         }
-        throw new GameException( 1, "Trainer is not in a battle." );
+        arena = next.build();
     }
 
     /**
      * Performs the thread run loop.
      *
-     * Starts by initializing all data.  Runs the game loop and acquires the
-     * lock before performing any data and releases it afterword.  When running
-     * is set to true the loop is aborted and the thread is finished.
+     * Starts by initializing all data, then runs the commands submitted in
+     * the meantime.  Between ticks the commands are run as they come in.
+     * When running is set to false the loop is aborted and the thread is
+     * finished.
      */
     @Override
     public void run()
@@ -206,63 +390,177 @@ public class GameLoop implements Runnable
         Debug.log( "Started Game Loop Thread", "Thread" );
         initializeHandlers();
         initializeData();
-        semaphore.release();
-        synchronized( data )
+        MySQLDB.setTickThread( Thread.currentThread() );
+        commands.setRunner( Thread.currentThread() );
+        long lastRunTime = System.currentTimeMillis();
+        while( LADJava.running && !Thread.currentThread().isInterrupted() )
         {
-            try
+            long tickIO = MySQLDB.getTickIOTime();
+            long tickStart = System.nanoTime();
+            ticks++;
+            updateTrainerBattles( lastRunTime );
+            pumpTrainerBattleQueue( lastRunTime );
+            publishArena();
+            if( lastRunTime - lastStatsFlush >=
+                EXPManager.getStatsFlushInterval() )
             {
-                long lastRunTime = System.currentTimeMillis();
-                while( LADJava.running )
+                lastStatsFlush = lastRunTime;
+                EXPManager.flushBattleStats();
+            }
+            long compact = ModifierManager.getCompactInterval();
+            if( compact > 0 && lastRunTime - lastCompaction >= compact )
+            {
+                lastCompaction = lastRunTime;
+                ModifierManager.compactExhausted();
+            }
+            WorkingSet.getInstance().evict( lastRunTime );
+            tickIO = MySQLDB.getTickIOTime() - tickIO;
+            if( tickIO > 0 )
+            {
+                Debug.log( "Tick spent " + tickIO + "us on database I/O",
+                           "MySQL" );
+            }
+
+            long interval = Snapshot.getInterval();
+            if( interval > 0 && lastRunTime - lastSnapshot >= interval )
+            {
+                takeSnapshot();
+            }
+            recordTick( System.nanoTime() - tickStart );
+
+            // Only tick once a second, running commands until then.  Commands
+            // still waiting at the next tick run after it.
+            long ran = commands.getRunCount();
+            long nextRunTime = lastRunTime + 1000;
+            while( System.currentTimeMillis() < nextRunTime &&
+                   !Thread.currentThread().isInterrupted() )
+            {
+                commands.runUntil( nextRunTime );
+                long left = nextRunTime - System.currentTimeMillis();
+                if( left > 0 )
                 {
-                    semaphore.acquire();
-                    updateTrainerBattles( lastRunTime );
-                    pumpTrainerBattleQueue( lastRunTime );
-                    semaphore.release();
-
-                    // Only run the loop once a second
-                    long elapsedRunTime = System.currentTimeMillis() -
-                                          lastRunTime;
-                    if( elapsedRunTime < 1000 )
-                    {
-                        data.wait( 1000 - elapsedRunTime );
-                    }
-                    lastRunTime = System.currentTimeMillis();
+                    LockSupport.parkNanos( this,
+                            TimeUnit.MILLISECONDS.toNanos( left ) );
                 }
             }
+            if( commands.getRunCount() > ran )
+            {
+                Debug.log( "Ran " + ( commands.getRunCount() - ran ) +
+                           " commands between ticks", "Commands" );
+            }
+            lastRunTime = System.currentTimeMillis();
+        }
+
+        // Finish the commands that got in, refuse any later ones
+        commands.stop();
+        tickPool.shutdown();
+
+        // Write the last of the statistics even if snapshots are off
+        EXPManager.flushBattleStats();
+        if( Snapshot.getInterval() > 0 )
+        {
+            // No more commands run, so the last one is captured right here
+            try
+            {
+                snapshotSaver.shutdown();
+                snapshotSaver.awaitTermination( 1, TimeUnit.MINUTES );
+                captureSnapshot( Snapshot.watermark() ).save();
+            }
+            catch( SQLException | IOException e )
+            {
+                Debug.log( "Snapshot failed: " + e.toString(), "MySQL" );
+            }
             catch( InterruptedException e )
             {
-                //wait
+                Debug.log( "Interrupted before the last snapshot", "Thread" );
             }
         }
         MySQLDB.notifyRunner();
         Debug.log( "Ended Game Loop Thread", "Thread" );
     }
 
+    /**
+     * Records the time a tick took, logging the distribution once a minute
+     *
+     * @param nanos Nanoseconds the tick took
+     */
+    private void recordTick( long nanos )
+    {
+        tickTimes.record( TimeUnit.NANOSECONDS.toMicros( nanos ) );
+        final String log = "Tick";
+        if( ticks % 60 == 0 && Debug.isLogEnabled( log ) )
+        {
+            Debug.log( "Ticks of " + battles.size() + " battles on " +
+                       tickPool.getParallelism() + " threads: p50 " +
+                       tickTimes.getPercentile( 50 ) + "us, p99 " +
+                       tickTimes.getPercentile( 99 ) + "us, max " +
+                       tickTimes.getMax() + "us", log );
+            tickTimes.reset();
+        }
+    }
+
+    /**
+     * Gets the times the ticks took since they were last logged
+     *
+     * @return Histogram of the tick times in microseconds
+     */
+    public static Histogram getTickTimes()
+    {
+        return getInstance().tickTimes;
+    }
+
+    /**
+     * Sets the fewest battles that are ticked in parallel.
+     *
+     * Defaults to the lad.game.parallelThreshold system property, or 256.
+     * Below it, splitting the battles costs more than it saves.
+     *
+     * @param battles Fewest battles, 0 to always tick on the loop's thread
+     */
+    public static void setParallelThreshold( int battles )
+    {
+        parallelThreshold = Math.max( 0, battles );
+    }
+
+    /**
+     * Gets the fewest battles that are ticked in parallel
+     *
+     * @return Fewest battles, 0 if the battles are never ticked in parallel
+     */
+    public static int getParallelThreshold()
+    {
+        return parallelThreshold;
+    }
+
     /**
      * Updates all of the trainer battles.
      *
-     * Cycles through each trainer battle and advances them each one tick.  If
-     * the battle is finished the trainers and users are updated accordingly
-     * and the battle is removed from the list
+     * Advances each trainer battle one tick, in parallel on the tick pool if
+     * there are enough of them.  Then, on this thread, the trainers and users
+     * of each finished battle are updated accordingly and the battle is
+     * removed from the list.
      *
      * @param currentTime Current system time in millis
      */
     private void updateTrainerBattles( Long currentTime )
     {
-        ListIterator< TrainerBattle > iter = battles.listIterator();
-        while( iter.hasNext() )
-        {
-            // Tick each battle forward one second
-            TrainerBattle current = iter.next();
-            current.tick( 1 );
+        // Tick each battle forward one second
+        BattleTicker.tick( tickPool, battles, parallelThreshold );
 
-            if( current.isFinished() )
+        int kept = 0;
+        for( int i = 0; i < battles.size(); i++ )
+        {
+            TrainerBattle current = battles.get( i );
+            if( !current.isFinished() )
+            {
+                battles.set( kept++, current );
+            }
+            else
             {
                 ArenaTrainer loser = current.getLoser();
                 ArenaTrainer winner = current.getWinner();
                 trainerPostBattle( currentTime, loser, false );
                 trainerPostBattle( currentTime, winner, true );
-                iter.remove();
 
                 final String log = "TrainerBattleResults";
                 if( Debug.isLogEnabled( log ) )
@@ -283,6 +581,7 @@ public class GameLoop implements Runnable
                 }
             }
         }
+        battles.subList( kept, battles.size() ).clear();
     }
 
     /**
@@ -429,4 +728,157 @@ public class GameLoop implements Runnable
         private static final GameLoop INSTANCE = new GameLoop();
     }
 
+    /**
+     * Queue of the commands the game loop's thread runs between ticks
+     */
+    static final class Commands
+    {
+        /**
+         * Commands waiting to be run
+         */
+        private final ConcurrentLinkedQueue< FutureTask< ? > > queue =
+                new ConcurrentLinkedQueue<>();
+
+        /**
+         * Thread running the commands, woken up when one is submitted
+         */
+        private volatile Thread runner = null;
+
+        /**
+         * Set once no more commands are run
+         */
+        private volatile boolean stopped = false;
+
+        /**
+         * Number of commands run
+         */
+        private long runCount = 0;
+
+        /**
+         * Sets the thread that runs the commands
+         *
+         * @param thread Thread to wake up when a command is submitted
+         */
+        void setRunner( Thread thread )
+        {
+            runner = thread;
+        }
+
+        /**
+         * Submits a command, cancelling it if the queue is stopped
+         *
+         * @param <T>     Type of the command's result
+         * @param command Command to run
+         * @return Future of the command's result
+         */
+        < T > Future< T > submit( Callable< T > command )
+        {
+            FutureTask< T > task = new FutureTask<>( command );
+            queue.add( task );
+            if( stopped )
+            {
+                cancelAll();
+            }
+            Thread thread = runner;
+            if( thread != null )
+            {
+                LockSupport.unpark( thread );
+            }
+            return task;
+        }
+
+        /**
+         * Submits a command and waits for its result
+         *
+         * @param <T>     Type of the command's result
+         * @param command Command to run
+         * @return Result of the command
+         * @throws InterruptedException Thrown if interrupted while waiting
+         * @throws GameException Thrown if the command failed or was
+         *                       cancelled
+         */
+        < T > T call( Callable< T > command ) throws InterruptedException
+        {
+            Future< T > future = submit( command );
+            try
+            {
+                return future.get();
+            }
+            catch( ExecutionException e )
+            {
+                Throwable cause = e.getCause();
+                if( cause instanceof RuntimeException )
+                {
+                    throw (RuntimeException)cause;
+                }
+                if( cause instanceof Error )
+                {
+                    throw (Error)cause;
+                }
+                throw new GameException( 3, "Command failed: " + cause );
+            }
+            catch( CancellationException e )
+            {
+                throw new GameException( 3, "Server is shutting down." );
+            }
+        }
+
+        /**
+         * Runs commands in the order they were submitted until none are
+         * left or the deadline has passed
+         *
+         * @param deadline Time (millis) to stop at
+         * @return Number of commands run
+         */
+        int runUntil( long deadline )
+        {
+            int ran = 0;
+            FutureTask< ? > task;
+            while( System.currentTimeMillis() < deadline &&
+                   ( task = queue.poll() ) != null )
+            {
+                task.run();
+                ran++;
+            }
+            runCount += ran;
+            return ran;
+        }
+
+        /**
+         * Runs the commands that were submitted so far and cancels any
+         * submitted afterwards
+         */
+        void stop()
+        {
+            stopped = true;
+            FutureTask< ? > task;
+            while( ( task = queue.poll() ) != null )
+            {
+                task.run();
+                runCount++;
+            }
+        }
+
+        /**
+         * Cancels every waiting command
+         */
+        private void cancelAll()
+        {
+            FutureTask< ? > task;
+            while( ( task = queue.poll() ) != null )
+            {
+                task.cancel( false );
+            }
+        }
+
+        /**
+         * Gets the number of commands run
+         *
+         * @return Command count
+         */
+        long getRunCount()
+        {
+            return runCount;
+        }
+    }
 }
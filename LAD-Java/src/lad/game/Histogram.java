@@ -0,0 +1,178 @@
+package lad.game;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Utility class for a histogram of positive values (normally durations).
+ *
+ * Values are counted in buckets that double in size, each split into eight
+ * equal sub-buckets, so a percentile is accurate to within 12.5%.  Recording
+ * does not lock, so any number of threads can record into the same
+ * histogram.
+ *
+ * @author msflowers
+ */
+public class Histogram
+{
+    /**
+     * Number of sub-buckets each power of two is split into (as a shift)
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Number of sub-buckets each power of two is split into
+     */
+    private static final int SUBS = 1 << SUB_BITS;
+
+    /**
+     * Counts of each bucket
+     */
+    private final AtomicLongArray counts =
+            new AtomicLongArray( ( 64 - SUB_BITS + 1 ) * SUBS );
+
+    /**
+     * Number of values recorded
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Largest value recorded
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value Value to record, negative values are counted as 0
+     */
+    public void record( long value )
+    {
+        value = Math.max( 0, value );
+        counts.incrementAndGet( bucketOf( value ) );
+        total.incrementAndGet();
+
+        long current = max.get();
+        while( value > current && !max.compareAndSet( current, value ) )
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Gets the number of values recorded
+     *
+     * @return Count of values
+     */
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    /**
+     * Gets the largest value recorded
+     *
+     * @return Largest value, 0 if nothing was recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Gets the value that the given percentage of values are at or below.
+     *
+     * The upper bound of the bucket the percentile falls into is returned, so
+     * the actual value may be up to 12.5% lower.
+     *
+     * @param percent Percentile between 0 and 100
+     * @return Value at the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile( double percent )
+    {
+        long count = total.get();
+        if( count == 0 )
+        {
+            return 0;
+        }
+
+        long wanted = (long)Math.ceil( count * Math.min( 100, percent ) / 100 );
+        wanted = Math.max( 1, wanted );
+        long seen = 0;
+        for( int i = 0; i < counts.length(); i++ )
+        {
+            seen += counts.get( i );
+            if( seen >= wanted )
+            {
+                return Math.min( upperBound( i ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all the recorded values.
+     *
+     * Values recorded while clearing may or may not be kept.
+     */
+    public void reset()
+    {
+        for( int i = 0; i < counts.length(); i++ )
+        {
+            counts.set( i, 0 );
+        }
+        total.set( 0 );
+        max.set( 0 );
+    }
+
+    /**
+     * Summarizes the histogram with the common percentiles
+     *
+     * @return Count and percentiles as a single line
+     */
+    @Override
+    public String toString()
+    {
+        return "count " + getCount() + ", p50 " + getPercentile( 50 ) +
+               ", p90 " + getPercentile( 90 ) + ", p99 " +
+               getPercentile( 99 ) + ", max " + getMax();
+    }
+
+    /**
+     * Gets the bucket a value is counted in.
+     *
+     * Values below SUBS each get their own bucket.  Above that, the bucket is
+     * the power of two of the value followed by the next SUB_BITS bits.
+     *
+     * @param value Value to find the bucket of
+     * @return Index of the bucket
+     */
+    private static int bucketOf( long value )
+    {
+        if( value < SUBS )
+        {
+            return (int)value;
+        }
+        int power = 63 - Long.numberOfLeadingZeros( value );
+        int sub = (int)( value >>> ( power - SUB_BITS ) ) & ( SUBS - 1 );
+        return ( power - SUB_BITS + 1 ) * SUBS + sub;
+    }
+
+    /**
+     * Gets the largest value counted in a bucket
+     *
+     * @param bucket Index of the bucket
+     * @return Largest value of the bucket
+     */
+    private static long upperBound( int bucket )
+    {
+        if( bucket < SUBS )
+        {
+            return bucket;
+        }
+        int power = bucket / SUBS + SUB_BITS - 1;
+        long sub = bucket % SUBS;
+        long low = ( SUBS + sub ) << ( power - SUB_BITS );
+        return low + ( 1L << ( power - SUB_BITS ) ) - 1;
+    }
+}
@@ -2,6 +2,7 @@ package lad.game;
 
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Callable;
 import lad.data.GameException;
 import lad.data.Modifier;
 import lad.db.ModifierManager;
@@ -62,9 +63,13 @@ public class IOModifier extends MessageHandler
 
     /**
      * Handles pieces based on their pieces
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting on
+     *                              the game loop
      */
     @Override
-    public void handle( MessageList pieces, int userid )
+    public void handle( MessageList pieces, final int userid )
+            throws InterruptedException
     {
         if( pieces.contains( viewModifiersPiece ) )
         {
@@ -72,26 +77,36 @@ public class IOModifier extends MessageHandler
         }
         else if( pieces.contains( deleteModifierPiece ) )
         {
-            ModifierManager mm = ModifierManager.getInstance();
-            int modID = Integer.valueOf( pieces.getValue( "deletemodifier" ) );
-            Modifier mod = mm.getByID( modID );
-
-            // Make sure user actually owns piece
-            if( mod.getOwner() != userid )
+            final int modID =
+                    Integer.valueOf( pieces.getValue( "deletemodifier" ) );
+            GameLoop.call( new Callable< Void >()
             {
-                throw new GameException( 2, "Modifier does not belong to " +
-                                         "requestor (mod:" + modID + ",owner:" +
-                                         mod.getOwner() + ")" );
-            }
-
-            // Don't allow modifiers in battle to be deleted
-            if( mod.getEquipped() != null )
-            {
-                throw new GameException( 2, "Modifer is in battle." );
-            }
-
-            // User owns it, delete it
-            mm.deleteModifier( mod );
+                @Override
+                public Void call()
+                {
+                    ModifierManager mm = ModifierManager.getInstance();
+                    Modifier mod = mm.getByID( modID );
+
+                    // Make sure user actually owns piece
+                    if( mod.getOwner() != userid )
+                    {
+                        throw new GameException( 2, "Modifier does not " +
+                                                 "belong to requestor (mod:" +
+                                                 modID + ",owner:" +
+                                                 mod.getOwner() + ")" );
+                    }
+
+                    // Don't allow modifiers in battle to be deleted
+                    if( mod.getEquipped() != null )
+                    {
+                        throw new GameException( 2, "Modifer is in battle." );
+                    }
+
+                    // User owns it, delete it
+                    mm.deleteModifier( mod );
+                    return null;
+                }
+            } );
 
             // Re-output new listing
             outputModifiers( userid );
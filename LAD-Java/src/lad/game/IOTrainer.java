@@ -2,6 +2,7 @@ package lad.game;
 
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Callable;
 import lad.data.GameException;
 import lad.data.Minion;
 import lad.data.Trainer;
@@ -127,7 +128,7 @@ public class IOTrainer extends MessageHandler
      * @throws InterruptedException Thrown if a sub function throws it
      */
     @Override
-    public void handle( MessageList pieces, int userid )
+    public void handle( MessageList pieces, final int userid )
             throws InterruptedException
     {
 
@@ -137,20 +138,28 @@ public class IOTrainer extends MessageHandler
         }
         else if( pieces.contains( addtrainerPiece ) )
         {
-            TrainerManager tm = TrainerManager.getInstance();
-            // Validation: User has less than 8 trainers
-            List< Trainer > trainers = tm.getTrainersByUser( userid );
-            if( trainers.size() >= 8 )
+            // Add the trainer and output default view
+            boolean added = GameLoop.call( new Callable< Boolean >()
+            {
+                @Override
+                public Boolean call()
+                {
+                    // Validation: User has less than 8 trainers
+                    TrainerManager tm = TrainerManager.getInstance();
+                    if( tm.getTrainersByUser( userid ).size() >= 8 )
+                    {
+                        return false;
+                    }
+                    tm.addTrainer( userid );
+                    return true;
+                }
+            } );
+            if( !added )
             {
                 // abort, user shouldn't be able to get above 8
                 writeReplace( "" );
                 return;
             }
-
-            // Add the trainer and output default view
-            GameLoop.acquire();
-            tm.addTrainer( userid );
-            GameLoop.release();
             outputMainView( userid );
         }
         else if( pieces.contains( viewtrainerPiece ) )
@@ -190,15 +199,22 @@ public class IOTrainer extends MessageHandler
                 throw new GameException( 1, "Minion not owned." );
             }
 
-            GameLoop.acquire();
-            target.adjustExp( 1 );
-            GameLoop.release();
+            final Minion trained = target;
+            GameLoop.call( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    trained.adjustExp( 1 );
+                    return null;
+                }
+            } );
             outputTrainerView( userid, trnr.getID() );
         }
         else if( pieces.contains( addminionPiece ) )
         {
             // Make sure the trainer belongs to the user
-            Trainer trnr = TrainerManager.getInstance().getTrainerByID(
+            final Trainer trnr = TrainerManager.getInstance().getTrainerByID(
                     Integer.valueOf( pieces.getValue( "trainer" ) ) );
 
             if( trnr.getOwner() != userid )
@@ -206,23 +222,29 @@ public class IOTrainer extends MessageHandler
                 throw new GameException( 2, "User ID mismatch." );
             }
 
-            // Make sure the trainer doesn't already have 8 minions
-            if( trnr.getMinions().size() >= 8 )
+            GameLoop.call( new Callable< Void >()
             {
-                throw new GameException( 1, "8 minions max." );
-            }
-
-            GameLoop.acquire();
-            Minion adder = Minion.create( trnr.getID() );
-            trnr.addMinion( adder );
-            GameLoop.release();
+                @Override
+                public Void call()
+                {
+                    // Make sure the trainer doesn't already have 8 minions
+                    if( trnr.getMinions().size() >= 8 )
+                    {
+                        throw new GameException( 1, "8 minions max." );
+                    }
+
+                    Minion adder = Minion.create( trnr.getID() );
+                    trnr.addMinion( adder );
+                    return null;
+                }
+            } );
 
             outputTrainerView( userid, trnr.getID() );
         }
         else if( pieces.contains( battleminionPiece ) )
         {
             // Make sure the trainer belongs to the user
-            Trainer trnr = TrainerManager.getInstance().getTrainerByID(
+            final Trainer trnr = TrainerManager.getInstance().getTrainerByID(
                     Integer.valueOf( pieces.getValue( "battleminion" ) ) );
             int minion1ID = Integer.valueOf( pieces.getValue( "minion1" ) );
             int minion2ID = Integer.valueOf( pieces.getValue( "minion2" ) );
@@ -268,11 +290,26 @@ public class IOTrainer extends MessageHandler
             }
 
             // Battle them and grant a modifier
-            GameLoop.acquire();
-            Minion loser = trnr.battle( target1, target2 );
-            int luck = loser.getLevel() + trnr.getLevel();
-            ModifierManager.getInstance().addModifier( userid, luck );
-            GameLoop.release();
+            final Minion first = target1, second = target2;
+            GameLoop.call( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    // An earlier battle may have taken one of them
+                    List< Minion > minions = trnr.getMinions();
+                    if( !minions.contains( first ) ||
+                        !minions.contains( second ) )
+                    {
+                        throw new GameException( 1, "Minion not owned." );
+                    }
+
+                    Minion loser = trnr.battle( first, second );
+                    int luck = loser.getLevel() + trnr.getLevel();
+                    ModifierManager.getInstance().addModifier( userid, luck );
+                    return null;
+                }
+            } );
             outputTrainerView( userid, trnr.getID() );
         }
         else if( pieces.contains( trainertoarenaPiece ) )
@@ -308,12 +345,8 @@ public class IOTrainer extends MessageHandler
                 throw new GameException( 2, "User ID does not match." );
             }
 
-            // Check if the trainer is actually in a queue
-            if( trnr.getBattleState() == Trainer.BattleState.InBattleQueue ||
-                trnr.getBattleState() == Trainer.BattleState.LookingForBattle )
-            {
-                GameLoop.dequeueTrainer( trnr );
-            }
+            // Fails if the trainer is not in the queue
+            GameLoop.dequeueTrainer( trnr );
 
             // Output the trainer again
             outputTrainerView( userid, trnrID );
@@ -385,7 +418,8 @@ public class IOTrainer extends MessageHandler
 
         int level = trnr.getLevel();
         int exp = trnr.getExp();
-        Trainer.BattleState battleState = trnr.getBattleState();
+        ArenaSnapshot arena = GameLoop.getArena();
+        Trainer.BattleState battleState = arena.getBattleState( trainer );
         String battleStateStr = battleState.toString();
         String stateNumber;
 
@@ -394,10 +428,10 @@ public class IOTrainer extends MessageHandler
         if( battleState == Trainer.BattleState.InBattle )
         {
             battleStateStr +=
-                "(" + GameLoop.getTimeLeftInTrainerBattle( trnr ) + "s left)";
+                "(" + arena.getTimeLeft( trainer ) + "s left)";
             stateNumber = "0";
         }
-        else if( trnr.getBattleState() == Trainer.BattleState.NoBattle )
+        else if( battleState == Trainer.BattleState.NoBattle )
         {
             stateNumber = "1";
         }
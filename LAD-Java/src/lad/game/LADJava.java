@@ -32,6 +32,7 @@ public class LADJava
         // Set debug state
         Debug.enableLog( "Thread" );
         Debug.enableLog( "BATTLEMATCHES" );
+        Debug.enableLog( "Startup" );
         // Variables
         ServerSocket socket = null;
 
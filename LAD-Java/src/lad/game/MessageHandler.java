@@ -92,8 +92,8 @@ public abstract class MessageHandler
      * @param pieces List of pieces sent by the user.
      * @param userid ID of the user issuing the request.
      * @throws InterruptedException Possibly thrown if a data accessor gets
-     *                              interrupted while trying to acquire the lock
-     *                              on the game loop's data.
+     *                              interrupted while waiting on the game
+     *                              loop.
      */
     public void doHandle( MessageList pieces, int userid )
             throws InterruptedException
@@ -107,8 +107,8 @@ public abstract class MessageHandler
      * @param pieces List of pieces sent by the user.
      * @param userid ID of the user issuing the request.
      * @throws InterruptedException Possibly thrown if a data accessor gets
-     *                              interrupted while trying to acquire the lock
-     *                              on the game loop's data.
+     *                              interrupted while waiting on the game
+     *                              loop.
      */
     public abstract void handle( MessageList pieces, int userid )
             throws InterruptedException;
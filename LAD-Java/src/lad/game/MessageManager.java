@@ -6,7 +6,9 @@ import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import lad.data.GameException;
+import lad.db.WorkingSet;
 
 /**
  * Manages all incoming messages and dispatches them to the appropriate handler.
@@ -174,6 +176,22 @@ public class MessageManager
         // Run the handler and return it's result
         try
         {
+            // Load the user's data first if it is not in memory
+            final WorkingSet users = WorkingSet.getInstance();
+            if( !users.touch( userid ) )
+            {
+                final WorkingSet.Rows rows = users.fetch( userid );
+                GameLoop.call( new Callable< Void >()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        users.load( rows );
+                        return null;
+                    }
+                } );
+            }
+
             handler.doHandle( pieces, userid );
             return buffer.toString();
         }
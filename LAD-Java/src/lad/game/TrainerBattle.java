@@ -122,6 +122,17 @@ public class TrainerBattle
         return ticksRemaining;
     }
 
+    /**
+     * Returns a side of the battle.
+     *
+     * @param index 0 for the first trainer, 1 for the second
+     * @return Trainer of the side
+     */
+    public ArenaTrainer getSide( int index )
+    {
+        return trainer[ index ];
+    }
+
     /**
      * Returns whether a given trainer is/was a participant in this battle.
      *
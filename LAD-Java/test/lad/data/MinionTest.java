@@ -1,6 +1,9 @@
 package lad.data;
 
 import java.sql.SQLException;
+import lad.db.IdAllocator;
+import lad.db.MySQLDB;
+import lad.db.TableProfile;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -13,7 +16,10 @@ import org.junit.Test;
 public class MinionTest
 {
     /**
-     * Sets up the class before all the tests
+     * Sets up the class before all the tests.
+     *
+     * Creates the tables the minions need if the database does not have them
+     * yet, then prepares the minions' statements.
      * 
      * @throws SQLException Thrown if the class fails to prepare statements
      */
@@ -21,6 +27,13 @@ public class MinionTest
     public static void setUpClass() throws SQLException
     {
         System.out.println( "===Minion===" );
+        MySQLDB.getConn();
+        MySQLDB db = MySQLDB.getInstance();
+        for( TableProfile profile : new TableProfile[]{
+                IdAllocator.getProfile(), Minion.getProfile() } )
+        {
+            db.validateTable( profile.tableName(), profile.createString() );
+        }
         Minion.getProfile().postinit();
     }
 
@@ -0,0 +1,281 @@
+package lad.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import lad.data.GameException;
+import lad.data.Minion;
+import lad.data.Modifier;
+import lad.data.ModifierTarget;
+import lad.data.Trainer;
+import lad.data.TrainerBattleStats;
+import lad.data.UserExp;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Stress test of the views reading the managers while the game loop changes
+ * them.
+ *
+ * @author msflowers
+ */
+public class ConcurrentReadTest
+{
+    /**
+     * First ID of the users, trainers and modifiers added by the test
+     */
+    private static final int BASE = 1 << 25;
+
+    /**
+     * Number of users the test changes
+     */
+    private static final int USERS = 64;
+
+    /**
+     * Number of changes the tick makes
+     */
+    private static final int CHANGES = 200000;
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===ConcurrentRead===" );
+    }
+
+    /**
+     * Removes everything the test added
+     */
+    @After
+    public void tearDown()
+    {
+        Set< Long > keep = new HashSet<>();
+        for( Trainer trainer : TrainerManager.getInstance().getTrainers() )
+        {
+            if( trainer.getID() < BASE )
+            {
+                keep.add( trainer.getRowKey() );
+            }
+        }
+        TrainerManager.getInstance().retainTrainers( keep );
+
+        keep.clear();
+        for( Modifier modifier : ModifierManager.getInstance().getModifiers() )
+        {
+            if( modifier.getID() < BASE )
+            {
+                keep.add( modifier.getRowKey() );
+            }
+        }
+        ModifierManager.getInstance().retainModifiers( keep );
+
+        EXPManager exp = EXPManager.getInstance();
+        keep.clear();
+        for( UserExp block : exp.getExps() )
+        {
+            if( block.getOwner() < BASE )
+            {
+                keep.add( block.getRowKey() );
+            }
+        }
+        exp.retainExps( keep );
+        keep.clear();
+        for( TrainerBattleStats stats : exp.getAllBattleStats() )
+        {
+            if( stats.getID() < BASE )
+            {
+                keep.add( stats.getRowKey() );
+            }
+        }
+        exp.retainBattleStats( keep );
+    }
+
+    /**
+     * Test of the read paths of the managers during changes.
+     *
+     * One thread makes the changes a tick makes while others run the reads
+     * of the views.  The views must never fail and must only see the data of
+     * the user they asked for.
+     *
+     * @throws InterruptedException Thrown if interrupted while joining
+     */
+    @Test
+    public void testViewsDuringTick() throws InterruptedException
+    {
+        System.out.println( "viewsDuringTick" );
+        final AtomicReference< Throwable > failure = new AtomicReference<>();
+        final AtomicLong views = new AtomicLong();
+        Thread tick = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    tick();
+                }
+                catch( Throwable t )
+                {
+                    failure.compareAndSet( null, t );
+                }
+            }
+        } );
+
+        Thread[] readers = new Thread[ 4 ];
+        for( int i = 0; i < readers.length; i++ )
+        {
+            final int seed = i;
+            final Thread ticking = tick;
+            readers[ i ] = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Random random = new Random( seed );
+                    try
+                    {
+                        while( ticking.isAlive() && failure.get() == null )
+                        {
+                            view( BASE + random.nextInt( USERS ) );
+                            views.incrementAndGet();
+                        }
+                    }
+                    catch( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            } );
+        }
+
+        tick.start();
+        for( Thread reader : readers )
+        {
+            reader.start();
+        }
+        tick.join();
+        for( Thread reader : readers )
+        {
+            reader.join();
+        }
+        System.out.println( views.get() + " views during the tick" );
+        if( failure.get() != null )
+        {
+            failure.get().printStackTrace();
+            fail( "View failed: " + failure.get() );
+        }
+    }
+
+    /**
+     * Makes the changes of the game loop
+     */
+    private static void tick()
+    {
+        TrainerManager trainers = TrainerManager.getInstance();
+        ModifierManager modifiers = ModifierManager.getInstance();
+        EXPManager exp = EXPManager.getInstance();
+        Trainer npc = new Trainer( true );
+        Random random = new Random( 42 );
+        int[] ints = new int[]{ 1, 1, 1, 1, 1, 1, 1, 1, 1 };
+        double[] doubles = new double[]{ 1, 1, 1, 1 };
+        for( int i = 0; i < CHANGES; i++ )
+        {
+            int user = BASE + random.nextInt( USERS );
+            int id = BASE + i;
+            switch( random.nextInt( 6 ) )
+            {
+                case 0:
+                    Trainer trainer = new Trainer( id, user, 0, 1 );
+                    trainer.addMinion( new Minion( id, 0, 1, id ) );
+                    trainers.addTrainer( trainer );
+                    break;
+                case 1:
+                    modifiers.addModifier( new Modifier(
+                            id, random.nextInt( 10 ), 1, user, 5, 1 ) );
+                    break;
+                case 2:
+                    for( Modifier modifier :
+                         modifiers.getAvailableSetByUserID( user, 3 ) )
+                    {
+                        modifier.setEquipped( npc );
+                    }
+                    for( Modifier modifier : modifiers.getByUserID( user ) )
+                    {
+                        modifier.setEquipped( null );
+                    }
+                    break;
+                case 3:
+                    exp.addEXP( new UserExp( user, 1 + random.nextInt( 13 ),
+                                             random.nextInt( 10 ), 1, 0, 0 ) );
+                    break;
+                case 4:
+                    EXPManager.addBattleStats( 1, user, ints, doubles );
+                    break;
+                default:
+                    if( random.nextInt( 20 ) == 0 )
+                    {
+                        trainers.removeUser( user );
+                        modifiers.removeUser( user );
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the reads of the views of a user
+     *
+     * @param user ID of the user
+     */
+    private static void view( int user )
+    {
+        for( Trainer trainer :
+             TrainerManager.getInstance().getTrainersByUser( user ) )
+        {
+            assertEquals( user, trainer.getOwner() );
+            for( Minion minion : trainer.getMinions() )
+            {
+                assertEquals( trainer.getID(), minion.getOwner() );
+            }
+            try
+            {
+                TrainerManager.getInstance().getTrainerByID( trainer.getID() );
+            }
+            catch( GameException e )
+            {
+                // Removed since it was listed
+            }
+        }
+
+        List< Modifier > owned =
+                ModifierManager.getInstance().getByUserID( user );
+        for( Modifier modifier : owned )
+        {
+            assertEquals( user, modifier.getOwner() );
+        }
+        Set< ModifierTarget > targets = new HashSet<>();
+        for( Modifier modifier :
+             ModifierManager.getInstance().getAvailableSetByUserID( user ) )
+        {
+            assertTrue( "Target picked twice.",
+                        targets.add( modifier.getTarget() ) );
+        }
+
+        for( UserExp block : EXPManager.getExpByUserID( user ) )
+        {
+            assertEquals( user, block.getOwner() );
+            block.getBonusLevels().size();
+        }
+        if( EXPManager.battleStatsExist( 1, user ) )
+        {
+            EXPManager.getBattleStats( 1, user ).toJSString();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package lad.db;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import lad.data.Trainer;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the EmbeddedBackend class.
+ *
+ * @author msflowers
+ */
+public class EmbeddedBackendTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===EmbeddedBackend===" );
+    }
+
+    /**
+     * Test of createString, of class EmbeddedBackend.
+     *
+     * The unsigned attributes and the table options are dropped, everything
+     * else is kept.
+     */
+    @Test
+    public void testCreateString()
+    {
+        System.out.println( "createString" );
+        EmbeddedBackend backend = new EmbeddedBackend( new File( "unused" ) );
+        String created = backend.createString(
+            "CREATE TABLE `STATS` (" +
+            "`ID` int(10) unsigned NOT NULL AUTO_INCREMENT," +
+            "`damage` double UNSIGNED NOT NULL," +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`ID`)," +
+            Snapshot.UPDATED_INDEX +
+            ") ENGINE = MyISAM DEFAULT CHARSET=latin1" );
+        assertEquals(
+            "CREATE TABLE `STATS` (" +
+            "`ID` int(10) NOT NULL AUTO_INCREMENT," +
+            "`damage` double NOT NULL," +
+            Snapshot.UPDATED_DEFINITION + "," +
+            "PRIMARY KEY (`ID`)," +
+            Snapshot.UPDATED_INDEX + ")", created );
+    }
+
+    /**
+     * Test of the persistence path on an embedded database.
+     *
+     * Starts the database in a temporary directory, creates the tables of
+     * the ID allocator and the trainers, reserves IDs past a row that is
+     * already there, upserts several rows in one statement, updates one
+     * through the delayed runner and reads the rows back.
+     *
+     * @throws Exception Thrown if the database fails
+     */
+    @Test
+    public void testDatabase() throws Exception
+    {
+        System.out.println( "database" );
+        File dir = Files.createTempDirectory( "lad-h2" ).toFile();
+        MySQLDB.setBackend( new EmbeddedBackend( new File( dir, "lad" ) ) );
+        MySQLDB.setLogDir( new File( dir, "wal" ) );
+        MySQLDB.getConn();
+        MySQLDB db = MySQLDB.getInstance();
+        TableProfile[] profiles = { IdAllocator.getProfile(),
+                                    Trainer.getProfile() };
+        for( TableProfile profile : profiles )
+        {
+            db.validateTable( profile.tableName(), profile.createString() );
+            db.validateStructure( profile.tableHeaders(),
+                                  profile.tableName() );
+        }
+        execute( "INSERT INTO TRAINERS ( ID, owner, exp, level ) " +
+                 "VALUES ( 41, 1, 0, 0 )" );
+
+        // The first block starts past the row that is already there
+        IdAllocator ids = IdAllocator.forTable( "TRAINERS" );
+        int first = ids.next();
+        assertEquals( 42, first );
+        assertEquals( first + 1, ids.next() );
+        assertEquals( first + IdAllocator.getBlockSize(),
+                      query( "SELECT NEXTID FROM IDBLOCKS WHERE " +
+                             "NAME = 'TRAINERS'" ) );
+
+        // One new row and one existing row in a single statement
+        TableProfile trainers = Trainer.getProfile();
+        Upsert upsert = Upsert.of( trainers );
+        PendingWrite inserted = PendingWrite.upsert( trainers, first, first,
+                                                     2, 5, 1 );
+        PendingWrite updated = PendingWrite.upsert( trainers, 41, 41, 1, 30,
+                                                    2 );
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            PreparedStatement stmt = pc.prepare( upsert.getSQL( 2 ) );
+            inserted.bind( stmt, 0 );
+            updated.bind( stmt, upsert.getParamCount() );
+            stmt.executeUpdate();
+        }
+        finally
+        {
+            pc.release();
+        }
+
+        MySQLDB.delaySQL( PendingWrite.update( "TRAINERS", first,
+                "UPDATE TRAINERS SET exp = ? WHERE ID = ?", 7, first ) );
+        MySQLDB.flush();
+
+        assertEquals( 2, query( "SELECT COUNT(*) FROM TRAINERS" ) );
+        assertEquals( 30, query( "SELECT exp FROM TRAINERS WHERE ID = 41" ) );
+        assertEquals( 2, query( "SELECT level FROM TRAINERS WHERE ID = 41" ) );
+        assertEquals( 7, query( "SELECT exp FROM TRAINERS WHERE ID = " +
+                                first ) );
+        assertEquals( 2, query( "SELECT owner FROM TRAINERS WHERE ID = " +
+                                first ) );
+    }
+
+    /**
+     * Runs a statement on a synchronous connection
+     *
+     * @param sql Statement to run
+     * @throws SQLException Thrown if the statement fails
+     */
+    private static void execute( String sql ) throws SQLException
+    {
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try
+        {
+            pc.getStatement().executeUpdate( sql );
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+
+    /**
+     * Reads a single number on a synchronous connection
+     *
+     * @param sql Query of one row with one column
+     * @return The number
+     * @throws SQLException Thrown if the query fails
+     */
+    private static long query( String sql ) throws SQLException
+    {
+        PooledConnection pc = MySQLDB.borrow( MySQLDB.Lane.SYNC );
+        try( ResultSet rs = pc.getStatement().executeQuery( sql ) )
+        {
+            assertTrue( "No row for " + sql, rs.next() );
+            return rs.getLong( 1 );
+        }
+        finally
+        {
+            pc.release();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package lad.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the IntMap class.
+ *
+ * @author msflowers
+ */
+public class IntMapTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===IntMap===" );
+    }
+
+    /**
+     * Test of put, get and remove, of class IntMap.
+     *
+     * Random changes to a small range of keys collide and wrap around the
+     * table often, and the map has to agree with a HashMap after each one.
+     */
+    @Test
+    public void testRandom()
+    {
+        System.out.println( "random" );
+        IntMap< Integer > map = new IntMap<>();
+        Map< Integer, Integer > expected = new HashMap<>();
+        Random random = new Random( 1 );
+        for( int i = 0; i < 100000; i++ )
+        {
+            int key = random.nextInt( 500 ) - 250;
+            if( random.nextInt( 3 ) == 0 )
+            {
+                assertEquals( expected.remove( key ), map.remove( key ) );
+            }
+            else
+            {
+                assertEquals( expected.put( key, i ), map.put( key, i ) );
+            }
+            assertEquals( expected.size(), map.size() );
+        }
+        for( int key = -250; key < 250; key++ )
+        {
+            assertEquals( expected.get( key ), map.get( key ) );
+        }
+    }
+}
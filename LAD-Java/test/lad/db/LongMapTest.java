@@ -0,0 +1,60 @@
+package lad.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the LongMap class.
+ *
+ * @author msflowers
+ */
+public class LongMapTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===LongMap===" );
+    }
+
+    /**
+     * Test of put, get and remove, of class LongMap.
+     *
+     * Random changes to keys packing a type and a small ID, the way battle
+     * statistics are keyed, and the map has to agree with a HashMap after
+     * each one.
+     */
+    @Test
+    public void testRandom()
+    {
+        System.out.println( "random" );
+        LongMap< Integer > map = new LongMap<>();
+        Map< Long, Integer > expected = new HashMap<>();
+        Random random = new Random( 1 );
+        for( int i = 0; i < 100000; i++ )
+        {
+            long key = ( (long)random.nextInt( 2 ) << 32 ) |
+                       ( random.nextInt( 250 ) & 0xffffffffL );
+            if( random.nextInt( 3 ) == 0 )
+            {
+                assertEquals( expected.remove( key ), map.remove( key ) );
+            }
+            else
+            {
+                assertEquals( expected.put( key, i ), map.put( key, i ) );
+            }
+            assertEquals( expected.size(), map.size() );
+        }
+        for( long key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ), map.get( key ) );
+        }
+        assertNull( map.get( 250 ) );
+    }
+}
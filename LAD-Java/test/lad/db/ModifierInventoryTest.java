@@ -0,0 +1,85 @@
+package lad.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import lad.data.Modifier;
+import lad.data.ModifierTarget;
+import lad.data.Trainer;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the ModifierInventory class.
+ *
+ * @author msflowers
+ */
+public class ModifierInventoryTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===ModifierInventory===" );
+    }
+
+    /**
+     * Test of availableSet, of class ModifierInventory.
+     *
+     * Picked modifiers have distinct targets and are available, and a
+     * modifier stops being picked once it is equipped.
+     */
+    @Test
+    public void testAvailableSet()
+    {
+        System.out.println( "availableSet" );
+        ModifierInventory inventory = new ModifierInventory();
+        int targets = ModifierTarget.values().length;
+        for( int i = 0; i < 2000; i++ )
+        {
+            // Every third modifier is used up
+            inventory.add( new Modifier( i, i % targets, 1, 1,
+                                         i % 3 == 0 ? 0 : 5, 1 ) );
+        }
+        assertEquals( 2000, inventory.size() );
+
+        Random random = new Random( 1 );
+        for( int round = 0; round < 100; round++ )
+        {
+            List< Modifier > set = inventory.availableSet( 3, random );
+            assertEquals( 3, set.size() );
+            Set< ModifierTarget > seen = new HashSet<>();
+            for( Modifier modifier : set )
+            {
+                assertTrue( "Used up modifier picked.",
+                            modifier.getBattles() > 0 );
+                assertTrue( "Target picked twice.",
+                            seen.add( modifier.getTarget() ) );
+            }
+        }
+        assertEquals( targets, inventory.availableSet( 0, random ).size() );
+
+        // Equip every available modifier of one target
+        Trainer trainer = new Trainer( true );
+        for( Modifier modifier : inventory.available() )
+        {
+            if( modifier.getTarget() == ModifierTarget.Damage )
+            {
+                modifier.setEquipped( trainer );
+                inventory.refresh( modifier );
+            }
+        }
+        for( Modifier modifier : inventory.availableSet( 0, random ) )
+        {
+            assertTrue( "Equipped modifier picked.",
+                        modifier.getTarget() != ModifierTarget.Damage );
+        }
+        assertEquals( targets - 1,
+                      inventory.availableSet( 0, random ).size() );
+        assertEquals( 2000, inventory.all().size() );
+    }
+}
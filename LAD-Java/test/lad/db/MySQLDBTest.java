@@ -1,6 +1,7 @@
 package lad.db;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -72,4 +73,41 @@ public class MySQLDBTest
         // If it makes it this far it passed.
     }
 
+    /**
+     * Test borrowing from the pools, of class MySQLDB.
+     *
+     * Borrows a connection from each lane and makes sure it is valid and
+     * that releasing it shows up in the pool's metrics.
+     *
+     * @throws SQLException Thrown if a connection fails to open
+     */
+    @Test
+    public void testBorrow() throws SQLException
+    {
+        System.out.println( "borrow" );
+        for( MySQLDB.Lane lane : MySQLDB.Lane.values() )
+        {
+            ConnectionPool pool = MySQLDB.getPool( lane );
+            long borrows = pool.getBorrows();
+
+            PooledConnection pc = MySQLDB.borrow( lane );
+            try
+            {
+                assertTrue( "Borrowed connection is invalid.",
+                            pc.getConnection().isValid( 2 ) );
+                assertSame( "Statement is not cached.",
+                            pc.prepare( "SELECT 1" ),
+                            pc.prepare( "SELECT 1" ) );
+            }
+            finally
+            {
+                pc.release();
+            }
+
+            assertEquals( "Borrow not counted.", borrows + 1,
+                          pool.getBorrows() );
+            assertEquals( "Connection not released.", 0, pool.getBusy() );
+        }
+    }
+
 }
@@ -0,0 +1,125 @@
+package lad.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import lad.data.GameException;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the PendingWrite class.
+ *
+ * @author msflowers
+ */
+public class PendingWriteTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===PendingWrite===" );
+    }
+
+    /**
+     * Test of getPartition, of class PendingWrite.
+     *
+     * Every write of a row has to land in the same partition no matter the
+     * SQL, and the partitions of many rows should all be used.
+     */
+    @Test
+    public void testPartition()
+    {
+        System.out.println( "getPartition" );
+        final int count = 4;
+        int[] used = new int[ count ];
+        for( int id = 0; id < 1000; id++ )
+        {
+            PendingWrite update = PendingWrite.update( "TRAINERS", id,
+                                                       "UPDATE", id );
+            PendingWrite delete = PendingWrite.execute( "TRAINERS", id,
+                                                        "DELETE", id );
+            int partition = update.getPartition( count );
+            assertTrue( "Partition out of range.",
+                        partition >= 0 && partition < count );
+            assertEquals( "Row split across partitions.", partition,
+                          delete.getPartition( count ) );
+            used[ partition ]++;
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            assertTrue( "Partition " + i + " unused.", used[ i ] > 0 );
+        }
+        assertEquals( "Raw statement not in first partition.", 0,
+                      PendingWrite.raw( "SELECT 1" ).getPartition( count ) );
+    }
+
+    /**
+     * Test of the keys, of class PendingWrite.
+     */
+    @Test
+    public void testKey()
+    {
+        System.out.println( "getKey" );
+        PendingWrite first = PendingWrite.update( "MINIONS", 5, "SQL", 1 );
+        PendingWrite second = PendingWrite.update( "MINIONS", 5, "SQL", 2 );
+        PendingWrite other = PendingWrite.update( "TRAINERS", 5, "SQL", 2 );
+        assertEquals( "Same row not coalesced.", first.getKey(),
+                      second.getKey() );
+        assertFalse( "Different tables coalesced.",
+                     first.getKey().equals( other.getKey() ) );
+        assertNull( "Execute may be coalesced.",
+                    PendingWrite.execute( "MINIONS", 5, "SQL" ).getKey() );
+    }
+
+    /**
+     * Test of writeTo and readFrom, of class PendingWrite.
+     *
+     * @throws IOException Thrown if the streams fail
+     */
+    @Test
+    public void testStream() throws IOException
+    {
+        System.out.println( "writeTo/readFrom" );
+        PendingWrite write = PendingWrite.statistic( "STATS", 7L << 32, "SQL",
+                                                     1, 2L, 3.5, "four", null );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write.writeTo( new DataOutputStream( bytes ) );
+        PendingWrite read = PendingWrite.readFrom( new DataInputStream(
+                new ByteArrayInputStream( bytes.toByteArray() ) ) );
+
+        assertEquals( "Table lost.", write.getTable(), read.getTable() );
+        assertEquals( "Row lost.", write.getRow(), read.getRow() );
+        assertEquals( "SQL lost.", write.getSQL(), read.getSQL() );
+        assertEquals( "Key lost.", write.getKey(), read.getKey() );
+        assertTrue( "Priority lost.", read.isSheddable() );
+
+        PendingWrite raw = PendingWrite.raw( "SELECT 1" );
+        bytes.reset();
+        raw.writeTo( new DataOutputStream( bytes ) );
+        assertTrue( "Raw lost.", PendingWrite.readFrom( new DataInputStream(
+                new ByteArrayInputStream( bytes.toByteArray() ) ) ).isRaw() );
+    }
+
+    /**
+     * Test that mutable parameters are refused, of class PendingWrite.
+     */
+    @Test
+    public void testMutableParameter()
+    {
+        System.out.println( "mutable parameter" );
+        try
+        {
+            PendingWrite.update( "MINIONS", 5, "SQL", new StringBuilder() );
+            fail( "Mutable parameter accepted." );
+        }
+        catch( GameException e )
+        {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package lad.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the RingBuffer class.
+ *
+ * @author msflowers
+ */
+public class RingBufferTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===RingBuffer===" );
+    }
+
+    /**
+     * Test of offer and poll on a single thread, of class RingBuffer.
+     */
+    @Test
+    public void testBounded()
+    {
+        System.out.println( "bounded" );
+        RingBuffer< Integer > ring = new RingBuffer<>( 5 );
+        assertEquals( "Capacity not rounded up.", 8, ring.capacity() );
+
+        // Go around a few times to make sure positions are reused
+        for( int lap = 0; lap < 3; lap++ )
+        {
+            for( int i = 0; i < 8; i++ )
+            {
+                assertTrue( "Offer failed with room.", ring.offer( i ) );
+            }
+            assertFalse( "Offer passed when full.", ring.offer( 8 ) );
+            assertEquals( "Wrong size.", 8, ring.size() );
+            for( int i = 0; i < 8; i++ )
+            {
+                assertEquals( "Out of order.", Integer.valueOf( i ),
+                              ring.poll() );
+            }
+            assertNull( "Poll passed when empty.", ring.poll() );
+        }
+    }
+
+    /**
+     * Test of many producers and one consumer, of class RingBuffer.
+     *
+     * Every element has to come out exactly once, and the elements of each
+     * producer have to come out in the order that producer offered them.
+     *
+     * @throws InterruptedException Thrown if interrupted while joining
+     */
+    @Test
+    public void testProducers() throws InterruptedException
+    {
+        System.out.println( "producers" );
+        final int producers = 4;
+        final int each = 100000;
+        final RingBuffer< long[] > ring = new RingBuffer<>( 64 );
+
+        List< Thread > threads = new ArrayList<>( producers );
+        for( int p = 0; p < producers; p++ )
+        {
+            final int id = p;
+            Thread t = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for( int i = 0; i < each; i++ )
+                    {
+                        long[] element = new long[]{ id, i };
+                        while( !ring.offer( element ) )
+                        {
+                            Thread.yield();
+                        }
+                    }
+                }
+            } );
+            threads.add( t );
+            t.start();
+        }
+
+        long[] next = new long[ producers ];
+        long received = 0;
+        while( received < (long)producers * each )
+        {
+            long[] element = ring.poll();
+            if( element == null )
+            {
+                Thread.yield();
+                continue;
+            }
+            int id = (int)element[ 0 ];
+            assertEquals( "Producer " + id + " out of order.", next[ id ],
+                          element[ 1 ] );
+            next[ id ]++;
+            received++;
+        }
+        for( Thread t : threads )
+        {
+            t.join();
+        }
+        assertNull( "Extra elements.", ring.poll() );
+    }
+}
@@ -0,0 +1,312 @@
+package lad.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the Snapshot class.
+ *
+ * @author msflowers
+ */
+public class SnapshotTest
+{
+    /**
+     * File the snapshot of a test is saved to
+     */
+    private File file;
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===Snapshot===" );
+    }
+
+    /**
+     * Points the snapshot at a new temporary file
+     *
+     * @throws IOException Thrown if the file can not be created
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile( "lad", ".snapshot" );
+        assertTrue( file.delete() );
+        Snapshot.setFile( file );
+    }
+
+    /**
+     * Deletes the snapshot file
+     */
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    /**
+     * Test of save and open, of class Snapshot.
+     *
+     * The rows read back are the rows that were captured.
+     *
+     * @throws IOException Thrown if the snapshot fails
+     */
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        System.out.println( "roundTrip" );
+        Rows rows = new Rows( "ROWS", 1, 2, 3 );
+        Snapshot.capture( 1234, new Manager( rows ) ).save();
+
+        Rows restored = new Rows( "ROWS" );
+        Snapshot snapshot = Snapshot.open(
+                Arrays.< TableProfile >asList( restored ) );
+        assertNotNull( "Snapshot not opened.", snapshot );
+        assertEquals( 1234, snapshot.getWatermark() );
+        snapshot.restore( restored );
+        assertEquals( rows.values, restored.values );
+    }
+
+    /**
+     * Test of open, of class Snapshot.
+     *
+     * A snapshot missing a table or with a corrupt table is not used.
+     *
+     * @throws IOException Thrown if the snapshot fails
+     */
+    @Test
+    public void testMismatch() throws IOException
+    {
+        System.out.println( "mismatch" );
+        Snapshot.capture( 0, new Manager( new Rows( "ROWS", 1, 2 ) ) ).save();
+        assertNull( "Used without a table.", Snapshot.open(
+                Arrays.< TableProfile >asList( new Rows( "ROWS" ),
+                                               new Rows( "OTHER" ) ) ) );
+
+        try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+        {
+            // Flip the last byte of the only table
+            raf.seek( raf.length() - 1 );
+            int last = raf.read();
+            raf.seek( raf.length() - 1 );
+            raf.write( last ^ 0xff );
+        }
+        assertNull( "Used a corrupt table.", Snapshot.open(
+                Arrays.< TableProfile >asList( new Rows( "ROWS" ) ) ) );
+    }
+
+    /**
+     * Manager of a single table
+     */
+    private static class Manager extends DBManager
+    {
+        /**
+         * Profile of the table
+         */
+        private final Rows rows;
+
+        /**
+         * Ctor
+         *
+         * @param n_rows Profile of the table
+         */
+        Manager( Rows n_rows )
+        {
+            rows = n_rows;
+        }
+
+        /**
+         * Returns the table
+         *
+         * @return The only table
+         */
+        @Override
+        public TableProfile[] profiles()
+        {
+            return new TableProfile[]{ rows };
+        }
+    }
+
+    /**
+     * Table holding a list of numbers
+     */
+    private static class Rows implements SnapshotProfile
+    {
+        /**
+         * Name of the table
+         */
+        private final String name;
+
+        /**
+         * Loaded rows
+         */
+        private final List< Integer > values = new ArrayList<>();
+
+        /**
+         * Ctor
+         *
+         * @param n_name   Name of the table
+         * @param n_values Loaded rows
+         */
+        Rows( String n_name, Integer... n_values )
+        {
+            name = n_name;
+            values.addAll( Arrays.asList( n_values ) );
+        }
+
+        /**
+         * Gets the name of the table
+         *
+         * @return Name
+         */
+        @Override
+        public String tableName()
+        {
+            return name;
+        }
+
+        /**
+         * Not used
+         *
+         * @return null
+         */
+        @Override
+        public String createString()
+        {
+            return null;
+        }
+
+        /**
+         * Gets the headers of the table
+         *
+         * @return [ID,updated]
+         */
+        @Override
+        public String[] tableHeaders()
+        {
+            return new String[]{ "ID", Snapshot.UPDATED_COLUMN };
+        }
+
+        /**
+         * Not used
+         *
+         * @param rs Unused
+         */
+        @Override
+        public void loadRow( ResultSet rs )
+        {
+        }
+
+        /**
+         * Not used
+         */
+        @Override
+        public void postinit()
+        {
+        }
+
+        /**
+         * Tells the manager to load the table
+         *
+         * @return true
+         */
+        @Override
+        public boolean loadData()
+        {
+            return true;
+        }
+
+        /**
+         * Gets the columns of the key
+         *
+         * @return [ID]
+         */
+        @Override
+        public String[] keyColumns()
+        {
+            return new String[]{ "ID" };
+        }
+
+        /**
+         * Not used
+         *
+         * @param rs Unused
+         * @return 0
+         */
+        @Override
+        public long rowKey( ResultSet rs )
+        {
+            return 0;
+        }
+
+        /**
+         * Writes the rows
+         *
+         * @param out Output to write to
+         * @throws IOException Thrown if the output fails
+         */
+        @Override
+        public void writeRows( DataOutput out ) throws IOException
+        {
+            out.writeInt( values.size() );
+            for( int value : values )
+            {
+                out.writeInt( value );
+            }
+        }
+
+        /**
+         * Reads the rows
+         *
+         * @param in Input to read from
+         * @throws IOException Thrown if the input fails
+         */
+        @Override
+        public void readRows( DataInput in ) throws IOException
+        {
+            for( int count = in.readInt(); count > 0; count-- )
+            {
+                values.add( in.readInt() );
+            }
+        }
+
+        /**
+         * Not used
+         *
+         * @param rs Unused
+         * @return 0
+         */
+        @Override
+        public int catchUp( ResultSet rs )
+        {
+            return 0;
+        }
+
+        /**
+         * Not used
+         *
+         * @param keys Unused
+         * @return 0
+         */
+        @Override
+        public int retainRows( Set< Long > keys )
+        {
+            return 0;
+        }
+    }
+}
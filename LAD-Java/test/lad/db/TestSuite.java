@@ -11,7 +11,18 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses(
 {
-    lad.db.MySQLDBTest.class
+    lad.db.ConcurrentReadTest.class,
+    lad.db.EmbeddedBackendTest.class,
+    lad.db.IntMapTest.class,
+    lad.db.LongMapTest.class,
+    lad.db.ModifierInventoryTest.class,
+    lad.db.MySQLDBTest.class,
+    lad.db.PendingWriteTest.class,
+    lad.db.RingBufferTest.class,
+    lad.db.SnapshotTest.class,
+    lad.db.TrainerManagerTest.class,
+    lad.db.UpsertTest.class,
+    lad.db.WriteAheadLogTest.class
 })
 public class TestSuite
 {
@@ -0,0 +1,168 @@
+package lad.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import lad.data.GameException;
+import lad.data.Trainer;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the TrainerManager class.
+ *
+ * @author msflowers
+ */
+public class TrainerManagerTest
+{
+    /**
+     * First ID of the trainers added by the tests, past any real trainer
+     */
+    private static final int BASE = 1 << 24;
+
+    /**
+     * Number of trainers each test owner has
+     */
+    private static final int PER_OWNER = 4;
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===TrainerManager===" );
+    }
+
+    /**
+     * Removes the trainers added by a test
+     */
+    @After
+    public void tearDown()
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        Set< Long > keep = new HashSet<>();
+        for( Trainer trainer : manager.getTrainers() )
+        {
+            if( trainer.getID() < BASE )
+            {
+                keep.add( trainer.getRowKey() );
+            }
+        }
+        manager.retainTrainers( keep );
+    }
+
+    /**
+     * Adds test trainers up to a count
+     *
+     * @param from  Number of test trainers already added
+     * @param count Number of test trainers to have
+     */
+    private static void fill( int from, int count )
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        for( int i = from; i < count; i++ )
+        {
+            manager.addTrainer( new Trainer( BASE + i, BASE + i / PER_OWNER,
+                                             0, 1 ) );
+        }
+    }
+
+    /**
+     * Test of the trainer indexes, of class TrainerManager.
+     *
+     * Trainers are found by ID and by owner until their owner is removed.
+     */
+    @Test
+    public void testIndexes()
+    {
+        System.out.println( "indexes" );
+        TrainerManager manager = TrainerManager.getInstance();
+        fill( 0, 100 );
+
+        assertEquals( BASE + 42, manager.getTrainerByID( BASE + 42 ).getID() );
+        List< Trainer > owned = manager.getTrainersByUser( BASE + 3 );
+        assertEquals( PER_OWNER, owned.size() );
+        for( Trainer trainer : owned )
+        {
+            assertEquals( BASE + 3, trainer.getOwner() );
+        }
+
+        List< Integer > removed = manager.removeUser( BASE + 3 );
+        assertEquals( PER_OWNER, removed.size() );
+        assertTrue( manager.getTrainersByUser( BASE + 3 ).isEmpty() );
+        for( int id : removed )
+        {
+            try
+            {
+                manager.getTrainerByID( id );
+                fail( "Removed trainer found." );
+            }
+            catch( GameException e )
+            {
+            }
+        }
+        assertEquals( PER_OWNER, manager.getTrainersByUser( BASE + 4 ).size() );
+    }
+
+    /**
+     * Benchmark of getTrainerByID and getTrainersByUser, of class
+     * TrainerManager.
+     *
+     * The cost of a lookup must not grow with the number of trainers.
+     */
+    @Test
+    public void testLookupScaling()
+    {
+        System.out.println( "lookupScaling" );
+        int[] sizes = { 1000, 10000, 100000 };
+        double[] costs = new double[ sizes.length ];
+        int added = 0;
+        for( int s = 0; s < sizes.length; s++ )
+        {
+            fill( added, sizes[ s ] );
+            added = sizes[ s ];
+
+            // Best of a few runs, the first warms up the JIT
+            costs[ s ] = Double.MAX_VALUE;
+            for( int run = 0; run < 5; run++ )
+            {
+                costs[ s ] = Math.min( costs[ s ], lookups( sizes[ s ] ) );
+            }
+            System.out.printf( "%d trainers: %.1f ns per lookup%n",
+                               sizes[ s ], costs[ s ] );
+        }
+
+        // A scan would be a hundred times slower, leave room for cache misses
+        assertTrue( "Lookups grew with the trainers.",
+                    costs[ sizes.length - 1 ] < costs[ 0 ] * 10 );
+    }
+
+    /**
+     * Times random lookups of the test trainers
+     *
+     * @param count Number of test trainers
+     * @return Average nanoseconds per lookup
+     */
+    private static double lookups( int count )
+    {
+        TrainerManager manager = TrainerManager.getInstance();
+        Random random = new Random( count );
+        int rounds = 200000;
+        long found = 0;
+        long start = System.nanoTime();
+        for( int i = 0; i < rounds; i++ )
+        {
+            int index = random.nextInt( count );
+            found += manager.getTrainerByID( BASE + index ).getLevel();
+            found += manager.getTrainersByUser(
+                    BASE + index / PER_OWNER ).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals( rounds * ( 1 + PER_OWNER ), found );
+        return elapsed / ( rounds * 2.0 );
+    }
+}
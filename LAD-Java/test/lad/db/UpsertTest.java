@@ -0,0 +1,162 @@
+package lad.db;
+
+import java.sql.ResultSet;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the Upsert class.
+ *
+ * @author msflowers
+ */
+public class UpsertTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===Upsert===" );
+    }
+
+    /**
+     * Test of of, of class Upsert.
+     *
+     * Every column but the updated column is named and takes a parameter,
+     * and only the columns outside the key are updated.
+     */
+    @Test
+    public void testOf()
+    {
+        System.out.println( "of" );
+        Upsert upsert = Upsert.of( new Profile() );
+        assertEquals( "INSERT INTO UPSERTS ( owner, id, value ) " +
+                      "VALUES ( ?, ?, ? ) " +
+                      "ON DUPLICATE KEY UPDATE value = VALUES( value )",
+                      upsert.getSQL() );
+        assertEquals( 3, upsert.getParamCount() );
+        assertSame( upsert, Upsert.of( new Profile() ) );
+    }
+
+    /**
+     * Test of getSQL, of class Upsert.
+     *
+     * A statement of many rows repeats the values of a single row.
+     */
+    @Test
+    public void testRows()
+    {
+        System.out.println( "getSQL" );
+        Upsert upsert = Upsert.of( new Profile() );
+        assertEquals( "INSERT INTO UPSERTS ( owner, id, value ) " +
+                      "VALUES ( ?, ?, ? ), ( ?, ?, ? ), ( ?, ?, ? ) " +
+                      "ON DUPLICATE KEY UPDATE value = VALUES( value )",
+                      upsert.getSQL( 3 ) );
+    }
+
+    /**
+     * Test of forSQL, of class Upsert.
+     *
+     * An upsert read back from its SQL builds the same statements, and other
+     * SQL is not an upsert.
+     */
+    @Test
+    public void testForSQL()
+    {
+        System.out.println( "forSQL" );
+        String sql = "INSERT INTO PARSED VALUES ( ?, ?, DEFAULT ) " +
+                     "ON DUPLICATE KEY UPDATE b = VALUES( b )";
+        Upsert parsed = Upsert.forSQL( sql );
+        assertNotNull( "Upsert not parsed.", parsed );
+        assertEquals( sql, parsed.getSQL() );
+        assertEquals( 2, parsed.getParamCount() );
+        assertEquals( "INSERT INTO PARSED VALUES ( ?, ?, DEFAULT ), " +
+                      "( ?, ?, DEFAULT ) ON DUPLICATE KEY UPDATE " +
+                      "b = VALUES( b )", parsed.getSQL( 2 ) );
+
+        assertNull( Upsert.forSQL( "INSERT INTO PARSED VALUES( ?, ? )" ) );
+        assertNull( Upsert.forSQL( "UPDATE PARSED SET b = ? WHERE a = ?" ) );
+    }
+
+    /**
+     * Table with a key of two columns and one value
+     */
+    private static class Profile implements TableProfile
+    {
+        /**
+         * Gets the name of the table
+         *
+         * @return UPSERTS
+         */
+        @Override
+        public String tableName()
+        {
+            return "UPSERTS";
+        }
+
+        /**
+         * Not used
+         *
+         * @return null
+         */
+        @Override
+        public String createString()
+        {
+            return null;
+        }
+
+        /**
+         * Gets the headers of the table
+         *
+         * @return [owner,id,value,updated]
+         */
+        @Override
+        public String[] tableHeaders()
+        {
+            return new String[]{ "owner", "id", "value",
+                                 Snapshot.UPDATED_COLUMN };
+        }
+
+        /**
+         * Gets the columns of the key
+         *
+         * @return [owner,id]
+         */
+        @Override
+        public String[] keyColumns()
+        {
+            return new String[]{ "owner", "id" };
+        }
+
+        /**
+         * Not used
+         *
+         * @param rs Unused
+         */
+        @Override
+        public void loadRow( ResultSet rs )
+        {
+        }
+
+        /**
+         * Not used
+         */
+        @Override
+        public void postinit()
+        {
+        }
+
+        /**
+         * Not used
+         *
+         * @return false
+         */
+        @Override
+        public boolean loadData()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package lad.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the WriteAheadLog class.
+ *
+ * @author msflowers
+ */
+public class WriteAheadLogTest
+{
+    /**
+     * Directory the segments of a test are written to
+     */
+    private File dir;
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===WriteAheadLog===" );
+    }
+
+    /**
+     * Creates an empty directory for the segments
+     *
+     * @throws IOException Thrown if the directory can not be created
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = File.createTempFile( "lad-wal", "" );
+        assertTrue( dir.delete() && dir.mkdir() );
+    }
+
+    /**
+     * Deletes the directory and any segments left in it
+     */
+    @After
+    public void tearDown()
+    {
+        for( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of read, of class WriteAheadLog.
+     *
+     * Only the records that were not committed are read back, in order.
+     *
+     * @throws IOException Thrown if the log fails
+     */
+    @Test
+    public void testReplay() throws IOException
+    {
+        System.out.println( "read" );
+        WriteAheadLog log = new WriteAheadLog( dir, 0, 0, 4096 );
+        long first = log.append( PendingWrite.update( "MINIONS", 1, "SQL",
+                                                      1 ) );
+        log.append( PendingWrite.update( "MINIONS", 2, "SQL", 2 ) );
+        log.append( PendingWrite.execute( "MINIONS", 3, "SQL", "three" ) );
+        log.commit( first );
+        log.sync();
+
+        File[] segments = WriteAheadLog.existing( dir );
+        assertEquals( "Wrong segment count.", 1, segments.length );
+        assertEquals( "Wrong next sequence.", 1,
+                      WriteAheadLog.nextSequence( segments ) );
+        List< PendingWrite > writes = WriteAheadLog.read( segments[ 0 ] );
+        assertEquals( "Wrong replay count.", 2, writes.size() );
+        assertEquals( 2, writes.get( 0 ).getRow() );
+        assertEquals( 3, writes.get( 1 ).getRow() );
+    }
+
+    /**
+     * Test of the segments, of class WriteAheadLog.
+     *
+     * A full segment is deleted once all of its records are committed.
+     *
+     * @throws IOException Thrown if the log fails
+     */
+    @Test
+    public void testSegments() throws IOException
+    {
+        System.out.println( "segments" );
+        WriteAheadLog log = new WriteAheadLog( dir, 1, 5, 128 );
+        long[] positions = new long[ 20 ];
+        for( int i = 0; i < positions.length; i++ )
+        {
+            positions[ i ] = log.append( PendingWrite.update( "TRAINERS", i,
+                                                              "SQL", i ) );
+        }
+        int segments = log.getSegmentCount();
+        assertTrue( "Log did not roll.", segments > 1 );
+        assertEquals( segments, WriteAheadLog.existing( dir ).length );
+
+        for( int i = 0; i < positions.length - 1; i++ )
+        {
+            log.commit( positions[ i ] );
+        }
+        assertEquals( "Committed segments not deleted.", 1,
+                      log.getSegmentCount() );
+        assertEquals( 1, WriteAheadLog.existing( dir ).length );
+    }
+
+    /**
+     * Test of the checksums, of class WriteAheadLog.
+     *
+     * Reading stops at a record that does not match its checksum.
+     *
+     * @throws IOException Thrown if the log fails
+     */
+    @Test
+    public void testChecksum() throws IOException
+    {
+        System.out.println( "checksum" );
+        WriteAheadLog log = new WriteAheadLog( dir, 0, 0, 4096 );
+        log.append( PendingWrite.update( "MINIONS", 1, "SQL", 1 ) );
+        long second = log.append( PendingWrite.update( "MINIONS", 2, "SQL",
+                                                       2 ) );
+        log.append( PendingWrite.update( "MINIONS", 3, "SQL", 3 ) );
+        log.sync();
+
+        File segment = WriteAheadLog.existing( dir )[ 0 ];
+        try( RandomAccessFile raf = new RandomAccessFile( segment, "rw" ) )
+        {
+            // Flip the first byte of the second record's contents
+            raf.seek( (int)second + 9 );
+            raf.write( raf.read() ^ 0xff );
+        }
+        assertEquals( "Read past a torn record.", 1,
+                      WriteAheadLog.read( segment ).size() );
+    }
+}
@@ -0,0 +1,84 @@
+package lad.game;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import lad.data.GameException;
+import lad.data.Modifier;
+import lad.data.ModifierTarget;
+import lad.data.Trainer;
+import lad.data.Weapon;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the ArenaSnapshot class.
+ *
+ * @author msflowers
+ */
+public class ArenaSnapshotTest
+{
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===ArenaSnapshot===" );
+    }
+
+    /**
+     * Test of the snapshots published by the game loop, of class
+     * ArenaSnapshot.
+     *
+     * A battle's time left counts down with the ticks, and a change to the
+     * queue creates a new snapshot without changing the old one.
+     */
+    @Test
+    public void testSnapshots()
+    {
+        System.out.println( "snapshots" );
+        Trainer first = new Trainer( 1, 1, 0, 1 );
+        Trainer second = new Trainer( 2, 2, 0, 1 );
+        Trainer waiting = new Trainer( 3, 3, 0, 1 );
+        ArrayList< Modifier > mods = new ArrayList<>( 0 );
+        HashMap< ModifierTarget, Double > bonus = new HashMap<>( 0 );
+        TrainerBattle battle = new TrainerBattle(
+                first, second, Weapon.getRandom(), Weapon.getRandom(),
+                mods, mods, bonus, bonus );
+
+        ArenaSnapshot.Builder builder =
+                new ArenaSnapshot.Builder( ArenaSnapshot.EMPTY, 1 );
+        builder.battle( battle );
+        ArenaSnapshot started = builder.build();
+        assertEquals( 1, started.getBattleCount() );
+        assertEquals( Trainer.BattleState.InBattle,
+                      started.getBattleState( 2 ) );
+        int left = battle.getTicksRemaining();
+        assertEquals( left, started.getTimeLeft( 1 ) );
+
+        battle.tick( 10 );
+        builder = new ArenaSnapshot.Builder( started, 11 );
+        builder.battle( battle );
+        ArenaSnapshot later = builder.build();
+        assertEquals( left - 10, later.getTimeLeft( 2 ) );
+        assertEquals( left, started.getTimeLeft( 2 ) );
+
+        waiting.setBattleState( Trainer.BattleState.InBattleQueue );
+        ArenaSnapshot queued = later.withState( waiting );
+        assertEquals( 1, queued.getQueueSize() );
+        assertEquals( 0, later.getQueueSize() );
+        assertEquals( Trainer.BattleState.InBattleQueue,
+                      queued.getBattleState( 3 ) );
+        assertEquals( Trainer.BattleState.NoBattle,
+                      later.getBattleState( 3 ) );
+        try
+        {
+            queued.getTimeLeft( 3 );
+            fail( "Queued trainer has time left." );
+        }
+        catch( GameException e )
+        {
+        }
+    }
+}
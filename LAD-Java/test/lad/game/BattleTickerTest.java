@@ -0,0 +1,104 @@
+package lad.game;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import lad.data.Modifier;
+import lad.data.ModifierTarget;
+import lad.data.Trainer;
+import lad.data.Weapon;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the BattleTicker class.
+ *
+ * @author msflowers
+ */
+public class BattleTickerTest
+{
+    /**
+     * Number of battles ticked
+     */
+    private static final int BATTLES = 2000;
+
+    /**
+     * Number of ticks timed for each pool size
+     */
+    private static final int TICKS = 30;
+
+    /**
+     * Pool sizes the battles are ticked on
+     */
+    private static final int[] THREADS = { 1, 2, 4 };
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===BattleTicker===" );
+    }
+
+    /**
+     * Creates battles between NPCs
+     *
+     * @return New battles
+     */
+    private static List< TrainerBattle > battles()
+    {
+        Trainer npc = new Trainer( true );
+        ArrayList< Modifier > mods = new ArrayList<>( 0 );
+        HashMap< ModifierTarget, Double > bonus = new HashMap<>( 0 );
+        List< TrainerBattle > ret = new ArrayList<>( BATTLES );
+        for( int i = 0; i < BATTLES; i++ )
+        {
+            ret.add( new TrainerBattle( npc, npc, Weapon.getRandom(),
+                                        Weapon.getRandom(), mods, mods,
+                                        bonus, bonus ) );
+        }
+        return ret;
+    }
+
+    /**
+     * Test of tick, of class BattleTicker.
+     *
+     * Ticks the same number of battles on pools of 1, 2 and 4 threads.
+     * Every battle must be ticked exactly once per tick no matter how the
+     * battles are split.  The tick times are only printed for information.
+     */
+    @Test
+    public void testScaling()
+    {
+        System.out.println( "scaling" );
+        for( int threads : THREADS )
+        {
+            ForkJoinPool pool = new ForkJoinPool( threads );
+            List< TrainerBattle > battles = battles();
+            int start = battles.get( 0 ).getTicksRemaining();
+            Histogram times = new Histogram();
+            for( int i = 0; i < TICKS; i++ )
+            {
+                long begin = System.nanoTime();
+                BattleTicker.tick( pool, battles, 1 );
+                times.record( TimeUnit.NANOSECONDS.toMicros(
+                        System.nanoTime() - begin ) );
+            }
+            pool.shutdown();
+
+            for( TrainerBattle battle : battles )
+            {
+                assertEquals( "Battle ticked wrong on " + threads +
+                              " threads", start - TICKS,
+                              battle.getTicksRemaining() );
+            }
+            System.out.printf( "%d threads: p50 %dus, p99 %dus%n", threads,
+                               times.getPercentile( 50 ),
+                               times.getPercentile( 99 ) );
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package lad.game;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import lad.data.GameException;
+import lad.data.Trainer;
+import lad.data.Weapon;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the command queue of the GameLoop class.
+ *
+ * @author msflowers
+ */
+public class GameLoopTest
+{
+    /**
+     * Number of commands submitted by the ordering tests
+     */
+    private static final int COMMANDS = 100;
+
+    /**
+     * Sets up the class before all the tests
+     */
+    @BeforeClass
+    public static void setUpClass()
+    {
+        System.out.println( "===GameLoop===" );
+    }
+
+    /**
+     * Submits commands that each add their number to a list
+     *
+     * @param commands Queue to submit to
+     * @param ran      List the commands add to
+     * @return Futures of the commands, in the order submitted
+     */
+    private static List< Future< Void > > submitNumbered(
+            GameLoop.Commands commands, final List< Integer > ran )
+    {
+        List< Future< Void > > futures = new ArrayList<>( COMMANDS );
+        for( int i = 0; i < COMMANDS; i++ )
+        {
+            final int number = i;
+            futures.add( commands.submit( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    ran.add( number );
+                    return null;
+                }
+            } ) );
+        }
+        return futures;
+    }
+
+    /**
+     * Test of runUntil, of class GameLoop.Commands.
+     *
+     * Commands run in the order they were submitted, and none run once the
+     * deadline has passed.
+     */
+    @Test
+    public void testOrder()
+    {
+        System.out.println( "order" );
+        GameLoop.Commands commands = new GameLoop.Commands();
+        List< Integer > ran = new ArrayList<>( COMMANDS );
+        List< Future< Void > > futures = submitNumbered( commands, ran );
+
+        assertEquals( 0, commands.runUntil( 0 ) );
+        assertTrue( ran.isEmpty() );
+
+        assertEquals( COMMANDS, commands.runUntil( Long.MAX_VALUE ) );
+        assertEquals( COMMANDS, commands.getRunCount() );
+        for( int i = 0; i < COMMANDS; i++ )
+        {
+            assertEquals( i, (int)ran.get( i ) );
+            assertTrue( futures.get( i ).isDone() );
+        }
+    }
+
+    /**
+     * Runs an action on another thread while this thread runs the commands
+     * it submits in place of the game loop
+     *
+     * @param commands Queue the action submits to
+     * @param action   Action to run
+     * @return What the action threw, null if nothing
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    private static Throwable onLoop( GameLoop.Commands commands,
+                                     final Callable< Void > action )
+            throws InterruptedException
+    {
+        final AtomicReference< Throwable > caught = new AtomicReference<>();
+        Thread caller = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    action.call();
+                }
+                catch( Exception e )
+                {
+                    caught.set( e );
+                }
+            }
+        } );
+        caller.start();
+        while( caller.isAlive() )
+        {
+            commands.runUntil( Long.MAX_VALUE );
+            caller.join( 1 );
+        }
+        return caught.get();
+    }
+
+    /**
+     * Test of call, of class GameLoop.Commands.
+     *
+     * A GameException thrown by a command reaches the caller unchanged.
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    @Test
+    public void testRethrow() throws InterruptedException
+    {
+        System.out.println( "rethrow" );
+        final GameException error = new GameException( 1, "Not allowed." );
+        final GameLoop.Commands commands = new GameLoop.Commands();
+        Throwable caught = onLoop( commands, new Callable< Void >()
+        {
+            @Override
+            public Void call() throws InterruptedException
+            {
+                return commands.call( new Callable< Void >()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        throw error;
+                    }
+                } );
+            }
+        } );
+        assertSame( error, caught );
+    }
+
+    /**
+     * Test of dequeueTrainer, of class GameLoop.
+     *
+     * A queued trainer leaves the queue, and a trainer that is not waiting
+     * to battle is refused with a GameException.
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    @Test
+    public void testDequeue() throws InterruptedException
+    {
+        System.out.println( "dequeueTrainer" );
+        GameLoop.Commands commands = GameLoop.getInstance().commands;
+        final Trainer trainer = new Trainer( 1 << 24, 1, 0, 1 );
+        Callable< Void > dequeue = new Callable< Void >()
+        {
+            @Override
+            public Void call() throws InterruptedException
+            {
+                GameLoop.dequeueTrainer( trainer );
+                return null;
+            }
+        };
+
+        assertTrue( "Idle trainer left the queue.",
+                    onLoop( commands, dequeue ) instanceof GameException );
+
+        assertNull( onLoop( commands, new Callable< Void >()
+        {
+            @Override
+            public Void call() throws InterruptedException
+            {
+                GameLoop.queueTrainer( trainer, Weapon.getRandom() );
+                return null;
+            }
+        } ) );
+        assertEquals( Trainer.BattleState.InBattleQueue,
+                      GameLoop.getArena().getBattleState( trainer.getID() ) );
+
+        assertNull( onLoop( commands, dequeue ) );
+        assertEquals( Trainer.BattleState.NoBattle,
+                      trainer.getBattleState() );
+        assertEquals( Trainer.BattleState.NoBattle,
+                      GameLoop.getArena().getBattleState( trainer.getID() ) );
+    }
+
+    /**
+     * Test of stop, of class GameLoop.Commands.
+     *
+     * Commands submitted before the stop still run, and commands submitted
+     * after it are cancelled.
+     *
+     * @throws InterruptedException Thrown if interrupted while waiting
+     */
+    @Test
+    public void testStop() throws InterruptedException
+    {
+        System.out.println( "stop" );
+        GameLoop.Commands commands = new GameLoop.Commands();
+        List< Integer > ran = new ArrayList<>( COMMANDS );
+        List< Future< Void > > before = submitNumbered( commands, ran );
+        commands.stop();
+        assertEquals( COMMANDS, ran.size() );
+        assertFalse( before.get( 0 ).isCancelled() );
+
+        List< Future< Void > > after = submitNumbered( commands, ran );
+        for( Future< Void > future : after )
+        {
+            assertTrue( "Command ran after the stop.", future.isCancelled() );
+        }
+        assertEquals( COMMANDS, ran.size() );
+
+        try
+        {
+            commands.call( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    return null;
+                }
+            } );
+            fail( "Call after the stop returned." );
+        }
+        catch( GameException e )
+        {
+        }
+    }
+}
@@ -11,6 +11,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses(
 {
+    lad.game.ArenaSnapshotTest.class,
+    lad.game.BattleTickerTest.class,
+    lad.game.GameLoopTest.class,
     lad.game.MessagePieceTest.class,
     lad.game.TrainerBattleTest.class
 })